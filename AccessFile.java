@@ -8,18 +8,49 @@ public class AccessFile
 	public String inputPath;
 	public String cachePath;
 	public String permissions;// read or write
-	public RandomAccessFile rAFile;
+	public SeekableFile rAFile;
 	public boolean isModified;
+	//file is not tracked by the cache, delete on close.
+	public boolean isPassThrough;
+	//background download of the master, null once it is complete.
+	public ChunkDownloader fill;
+	//ranges written through this fd, and the length it was opened with.
+	public ExtentSet dirtyExtents;
+	public long baseLength;
+	//server version a private copy was made from, -1 if from a queued upload.
+	public long baseVersion;
+	//reads a copy queued for upload, see WriteBackQueue; not in the cache.
+	public boolean isQueuedCopy;
+	//reads through the BlockCache; not in the cache.
+	public boolean isBlockCached;
+	//master an overlay copy reads from, pinned until close; else null.
+	public CachedFileInfo master;
 		
 	/**
 	 * Constructor
 	 */
 	public AccessFile(String fPath,RandomAccessFile rAccessFile,String fPermissions)
+	{
+		this(fPath,new PlainFile(rAccessFile),fPermissions);
+	}
+
+	/**
+	 * Constructor
+	 */
+	public AccessFile(String fPath,SeekableFile rAccessFile,String fPermissions)
 	{
 		this.inputPath = fPath;
 		this.rAFile = rAccessFile;
 		this.permissions = fPermissions;
 		this.isModified = false;
+		this.isPassThrough = false;
+		this.fill = null;
+		this.dirtyExtents = new ExtentSet();
+		this.baseLength = 0;
+		this.baseVersion = -1;
+		this.isQueuedCopy = false;
+		this.isBlockCached = false;
+		this.master = null;
 	}
 
 	/**
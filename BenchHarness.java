@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+
+/**
+ * Set up shared by the benchmarks and checks that run the cache, the
+ * server or the transports in process.
+ */
+public class BenchHarness
+{
+	/**
+	 * Silences the debug output of the cache, proxy and server, which log
+	 * every call on System.err, and makes a scratch directory.
+	 * @param  prefix name of the directory
+	 * @return  new empty directory
+	 * @throws IOException if it can not be created
+	 */
+	public static Path setUp(String prefix) throws IOException
+	{
+		System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+		return Files.createTempDirectory(prefix);
+	}
+
+	/**
+	 * Starts a server on the directory in this process, with its NIO
+	 * transport on rmiPort + 1.
+	 * @param  rmiPort
+	 * @param  serverDir root of the server
+	 * @return  RMI stub of the server
+	 * @throws Exception if it does not come up
+	 */
+	public static RemoteCallable startServer(int rmiPort,Path serverDir) throws Exception
+	{
+		System.setProperty("server.nioPort",Integer.toString(rmiPort + 1));
+		Server.main(new String[]{Integer.toString(rmiPort),serverDir.toString()});
+		return (RemoteCallable)Naming.lookup("//127.0.0.1:"+rmiPort+"/Server");
+	}
+
+	/**
+	 * A read only master that exists only in the cache. Evicting it
+	 * deletes nothing as long as its path names no file.
+	 * @param  cachePath
+	 * @param  fileSize
+	 * @return  info to put in a cache
+	 */
+	public static CachedFileInfo master(String cachePath,long fileSize)
+	{
+		CachedFileInfo info = new CachedFileInfo();
+		info.putCachePath(cachePath);
+		info.putFileSize(fileSize);
+		info.setReadOnly();
+		return info;
+	}
+}
@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of large files in fixed size blocks, for files read only in a few
+ * places or too large for the whole file cache.
+ *
+ * Each file version is a sparse set of blocks with a bitmap of the ones
+ * present. Blocks are fetched from the server when a read touches them,
+ * with the version the file was opened at, and kept in slots of one store
+ * file that never grows past the capacity. When the slots are full the
+ * least recently read block not being copied out right now is evicted, no
+ * matter which file it belongs to. So a file larger than the whole cache
+ * can be read, and what the cache holds is what was read.
+ *
+ * A version is dropped with its blocks once a newer one of the same path
+ * is opened and nobody reads the old one any more.
+ */
+public class BlockCache
+{
+	/**
+	 * The blocks of one version of a file.
+	 */
+	public static class Version
+	{
+		public String path;
+		public long version;
+		public long size;
+		//slot of each block, -1 if not present
+		int[] slots;
+		BitSet present;
+		//blocks being fetched right now
+		BitSet loading;
+		int openCount;
+		boolean superseded;
+	}
+
+	private RemoteCallable server;
+	private int blockSize;
+	private FileChannel store;
+
+	//path vs newest version opened
+	private HashMap<String,Version> versions;
+
+	//owner and block of each slot, null owner if free
+	private Version[] slotOwner;
+	private int[] slotBlock;
+	//reads copying out of the slot, it is not evicted meanwhile
+	private int[] slotPins;
+	//slots holding a block, least recently read first
+	private LinkedHashMap<Integer,Boolean> usage;
+	private ArrayDeque<Integer> freeSlots;
+
+	private long hitBytes;
+	private long missBytes;
+	private long fetchedBytes;
+	private long evictions;
+
+	/**
+	 * Constructor
+	 * @param  rmiServer server to fetch blocks from
+	 * @param  storePath file the blocks are kept in, emptied
+	 * @param  capacity  bytes of blocks kept
+	 * @param  size      block size
+	 * @throws IOException if the store can not be created
+	 */
+	public BlockCache(RemoteCallable rmiServer,String storePath,long capacity,int size) throws IOException
+	{
+		this.server = rmiServer;
+		this.blockSize = size;
+		RandomAccessFile file = new RandomAccessFile(storePath,"rw");
+		file.setLength(0);
+		this.store = file.getChannel();
+
+		int slotCount = (int)Math.max(capacity / blockSize,1);
+		this.versions = new HashMap<String,Version>();
+		this.slotOwner = new Version[slotCount];
+		this.slotBlock = new int[slotCount];
+		this.slotPins = new int[slotCount];
+		this.usage = new LinkedHashMap<Integer,Boolean>(16,0.75f,true);
+		this.freeSlots = new ArrayDeque<Integer>();
+		for(int slot = 0; slot < slotCount; slot++)
+		{
+			freeSlots.add(slot);
+		}
+	}
+
+	/**
+	 * Opens a version of a file. An older version nobody reads is dropped.
+	 * @param  path    server path
+	 * @param  version last modified time
+	 * @param  size    file size
+	 * @return  the version, to read and close
+	 */
+	public synchronized Version open(String path,long version,long size)
+	{
+		Version current = versions.get(path);
+		if(current != null && current.version == version && current.size == size)
+		{
+			current.openCount++;
+			return current;
+		}
+
+		if(current != null)
+		{
+			current.superseded = true;
+			if(current.openCount == 0)
+			{
+				dropBlocks(current);
+			}
+		}
+
+		Version opened = new Version();
+		opened.path = path;
+		opened.version = version;
+		opened.size = size;
+		int blocks = (int)((size + blockSize - 1) / blockSize);
+		opened.slots = new int[blocks];
+		Arrays.fill(opened.slots,-1);
+		opened.present = new BitSet(blocks);
+		opened.loading = new BitSet(blocks);
+		opened.openCount = 1;
+		versions.put(path,opened);
+		return opened;
+	}
+
+	/**
+	 * Closes a version opened with open.
+	 * @param opened
+	 */
+	public synchronized void close(Version opened)
+	{
+		opened.openCount--;
+		if(opened.openCount == 0 && opened.superseded)
+		{
+			dropBlocks(opened);
+		}
+	}
+
+	/**
+	 * Drops a version from the cache, e.g. when the file changed.
+	 * @param path
+	 */
+	public synchronized void invalidate(String path)
+	{
+		Version current = versions.get(path);
+		if(current == null)
+		{
+			return;
+		}
+		versions.remove(path);
+		current.superseded = true;
+		if(current.openCount == 0)
+		{
+			dropBlocks(current);
+		}
+	}
+
+	private void dropBlocks(Version old)
+	{
+		for(int block = old.present.nextSetBit(0); block >= 0; block = old.present.nextSetBit(block + 1))
+		{
+			int slot = old.slots[block];
+			if(slotPins[slot] == 0)
+			{
+				freeSlot(slot);
+			}
+		}
+		if(versions.get(old.path) == old)
+		{
+			versions.remove(old.path);
+		}
+	}
+
+	private void freeSlot(int slot)
+	{
+		Version owner = slotOwner[slot];
+		owner.slots[slotBlock[slot]] = -1;
+		owner.present.clear(slotBlock[slot]);
+		slotOwner[slot] = null;
+		usage.remove(slot);
+		freeSlots.add(slot);
+	}
+
+	/**
+	 * Reads from a version, fetching the blocks that are not present.
+	 * @param  opened   version from open
+	 * @param  position offset in the file
+	 * @param  buffer
+	 * @param  offset   in buffer
+	 * @param  length   bytes wanted
+	 * @return  bytes read, -1 at the end of the file
+	 * @throws IOException if a block could not be fetched
+	 */
+	public int read(Version opened,long position,byte[] buffer,int offset,int length) throws IOException
+	{
+		if(length == 0)
+		{
+			return 0;
+		}
+		if(position >= opened.size)
+		{
+			return -1;
+		}
+
+		int total = (int)Math.min(length,opened.size - position);
+		int done = 0;
+		while(done < total)
+		{
+			int block = (int)(position / blockSize);
+			int inBlock = (int)(position - (long)block * blockSize);
+			int piece = Math.min(total - done,blockSize - inBlock);
+
+			int slot = acquire(opened,block,piece);
+			try
+			{
+				ByteBuffer target = ByteBuffer.wrap(buffer,offset + done,piece);
+				long from = (long)slot * blockSize + inBlock;
+				while(target.hasRemaining())
+				{
+					if(store.read(target,from + target.position() - offset - done) < 0)
+					{
+						throw new IOException("Block store shorter than block "+block);
+					}
+				}
+			}
+			finally
+			{
+				release(slot);
+			}
+			done += piece;
+			position += piece;
+		}
+		return total;
+	}
+
+	/**
+	 * Pins the slot of a block, fetching the block if needed.
+	 * @param  opened
+	 * @param  block
+	 * @param  wanted bytes the read takes from it, for the statistics
+	 * @return  slot
+	 */
+	private int acquire(Version opened,int block,int wanted) throws IOException
+	{
+		int slot;
+		synchronized(this)
+		{
+			while(true)
+			{
+				slot = opened.slots[block];
+				if(slot >= 0)
+				{
+					slotPins[slot]++;
+					usage.get(slot);
+					hitBytes += wanted;
+					return slot;
+				}
+				if(!opened.loading.get(block))
+				{
+					break;
+				}
+				waitForChange();
+			}
+
+			opened.loading.set(block);
+			try
+			{
+				slot = allocateSlot();
+			}
+			catch(IOException e)
+			{
+				opened.loading.clear(block);
+				notifyAll();
+				throw e;
+			}
+			slotOwner[slot] = opened;
+			slotBlock[slot] = block;
+			slotPins[slot] = 1;
+			missBytes += wanted;
+		}
+
+		boolean fetched = false;
+		try
+		{
+			fetch(opened,block,slot);
+			fetched = true;
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				opened.loading.clear(block);
+				if(fetched)
+				{
+					opened.slots[block] = slot;
+					opened.present.set(block);
+					usage.put(slot,Boolean.TRUE);
+				}
+				else
+				{
+					slotOwner[slot] = null;
+					slotPins[slot] = 0;
+					freeSlots.add(slot);
+				}
+				notifyAll();
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * A free slot, or the one of the least recently read block nobody is
+	 * copying out of. Called with the lock held.
+	 */
+	private int allocateSlot() throws IOException
+	{
+		while(true)
+		{
+			if(!freeSlots.isEmpty())
+			{
+				return freeSlots.poll();
+			}
+
+			Iterator<Integer> it = usage.keySet().iterator();
+			while(it.hasNext())
+			{
+				int slot = it.next();
+				if(slotPins[slot] == 0)
+				{
+					freeSlot(slot);
+					evictions++;
+					return freeSlots.poll();
+				}
+			}
+			//every slot is being read or fetched, wait for one.
+			waitForChange();
+		}
+	}
+
+	private void waitForChange() throws IOException
+	{
+		try
+		{
+			wait();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a block");
+		}
+	}
+
+	private synchronized void release(int slot)
+	{
+		slotPins[slot]--;
+		if(slotPins[slot] == 0)
+		{
+			Version owner = slotOwner[slot];
+			//dropped while we read it
+			if(owner != null && owner.superseded && owner.openCount == 0)
+			{
+				freeSlot(slot);
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Fetches a block of the version into a slot.
+	 * @param opened
+	 * @param block
+	 * @param slot
+	 * @throws IOException if the server failed or the file changed
+	 */
+	private void fetch(Version opened,int block,int slot) throws IOException
+	{
+		long offset = (long)block * blockSize;
+		long end = Math.min(offset + blockSize,opened.size);
+		long target = (long)slot * blockSize;
+
+		while(offset < end)
+		{
+			Chunk chunk = server.downloadChunkFromServer(opened.path,offset,
+														 (int)(end - offset),opened.version);
+			if(chunk == null)
+			{
+				throw new RemoteException("Block at "+offset+" of "+opened.path
+										  +" gone, changed on the server?");
+			}
+			if(chunk.size <= 0)
+			{
+				throw new IOException("File shrank on the server:"+opened.path);
+			}
+
+			try
+			{
+				int length = (int)Math.min(chunk.size,end - offset);
+				ByteBuffer buffer = ByteBuffer.wrap(chunk.buffer,0,length);
+				long position = target + offset - (long)block * blockSize;
+				while(buffer.hasRemaining())
+				{
+					position += store.write(buffer,position);
+				}
+				offset += length;
+			}
+			finally
+			{
+				ChunkBufferPool.release(chunk);
+			}
+		}
+		synchronized(this)
+		{
+			fetchedBytes += end - (long)block * blockSize;
+		}
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public synchronized String toString()
+	{
+		long total = hitBytes + missBytes;
+		return "block cache: "+usage.size()+"/"+slotOwner.length+" blocks used, "
+			   +hitBytes+" bytes read hit, "+missBytes+" missed ("
+			   +(total == 0 ? 0 : hitBytes * 100 / total)+"% hit), "+fetchedBytes+" bytes fetched, "
+			   +evictions+" evictions";
+	}
+}
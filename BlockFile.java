@@ -0,0 +1,93 @@
+import java.io.IOException;
+
+/**
+ * Read only fd of a file cached in blocks, see BlockCache. Reads fetch
+ * the blocks they touch.
+ */
+public class BlockFile implements SeekableFile
+{
+	private BlockCache cache;
+	private BlockCache.Version version;
+	private long position;
+
+	/**
+	 * Constructor
+	 * @param  blockCache
+	 * @param  opened     version from BlockCache.open, closed with this
+	 */
+	public BlockFile(BlockCache blockCache,BlockCache.Version opened)
+	{
+		this.cache = blockCache;
+		this.version = opened;
+		this.position = 0;
+	}
+
+	public int read(byte[] buffer) throws IOException
+	{
+		return read(buffer,0,buffer.length);
+	}
+
+	public int read(byte[] buffer,int offset,int length) throws IOException
+	{
+		int result = cache.read(version,position,buffer,offset,length);
+		if(result > 0)
+		{
+			position += result;
+		}
+		return result;
+	}
+
+	public void write(byte[] buffer) throws IOException
+	{
+		throw new IOException("Block cached files are read only");
+	}
+
+	public void seek(long newPosition) throws IOException
+	{
+		if(newPosition < 0)
+		{
+			throw new IOException("negative seek");
+		}
+		position = newPosition;
+	}
+
+	public long getFilePointer()
+	{
+		return position;
+	}
+
+	public long length()
+	{
+		return version.size;
+	}
+
+	public void sync()
+	{
+		//nothing written
+	}
+
+	public long growthFor(long position,int count)
+	{
+		//read only
+		return 0;
+	}
+
+	public long growthForDetach()
+	{
+		return 0;
+	}
+
+	public void detach()
+	{
+		//nothing written
+	}
+
+	public void close()
+	{
+		if(version != null)
+		{
+			cache.close(version);
+			version = null;
+		}
+	}
+}
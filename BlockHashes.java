@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Per block checksums of one version of a file, rsync style: a cheap
+ * rolling checksum to find candidate blocks at any offset of an older
+ * copy, and a SHA-256 to confirm them.
+ *
+ * The server computes them for the new version, the proxy slides the
+ * rolling checksum over the version it already has and copies every block
+ * found there instead of downloading it.
+ */
+public class BlockHashes implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	public static final int STRONGSIZE = 32;
+
+	public int blockSize;
+	public long fileSize;
+	//last modified time of the version hashed
+	public long version;
+	public int[] weak;
+	//STRONGSIZE bytes per block
+	public byte[] strong;
+
+	/**
+	 * Hashes every block of the file.
+	 * @param  channel   file to hash
+	 * @param  blockSize
+	 * @param  version   last modified time of the file
+	 * @return  hashes
+	 * @throws IOException
+	 */
+	public static BlockHashes compute(FileChannel channel,int blockSize,long version) throws IOException
+	{
+		BlockHashes hashes = new BlockHashes();
+		hashes.blockSize = blockSize;
+		hashes.fileSize = channel.size();
+		hashes.version = version;
+
+		int blocks = (int)((hashes.fileSize + blockSize - 1) / blockSize);
+		hashes.weak = new int[blocks];
+		hashes.strong = new byte[blocks * STRONGSIZE];
+
+		MessageDigest digest = newDigest();
+		byte[] block = new byte[blockSize];
+		for(int index = 0; index < blocks; index++)
+		{
+			long position = (long)index * blockSize;
+			int length = (int)Math.min(blockSize,hashes.fileSize - position);
+			ByteBuffer buffer = ByteBuffer.wrap(block,0,length);
+			while(buffer.hasRemaining())
+			{
+				if(channel.read(buffer,position + buffer.position()) < 0)
+				{
+					throw new IOException("file shrank while hashing");
+				}
+			}
+			hashes.weak[index] = weakChecksum(block,0,length);
+			digest.update(block,0,length);
+			System.arraycopy(digest.digest(),0,hashes.strong,index * STRONGSIZE,STRONGSIZE);
+		}
+		return hashes;
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * rsync rolling checksum: a is the sum of the bytes, b the sum of the
+	 * running sums, both mod 2^16.
+	 * @param  data
+	 * @param  offset
+	 * @param  length
+	 * @return  b << 16 | a
+	 */
+	public static int weakChecksum(byte[] data,int offset,int length)
+	{
+		int a = 0;
+		int b = 0;
+		for(int index = 0; index < length; index++)
+		{
+			a += data[offset + index] & 0xff;
+			b += a;
+		}
+		return (b << 16) | (a & 0xffff);
+	}
+
+	/**
+	 * Finds the full blocks of this version in an older copy.
+	 * @param  old older copy of the file
+	 * @return  for every block the offset in old it can be copied from,
+	 *          -1 if it has to be fetched.
+	 * @throws IOException
+	 */
+	public long[] findMatches(FileChannel old) throws IOException
+	{
+		int blocks = weak.length;
+		long[] sources = new long[blocks];
+		Arrays.fill(sources,-1);
+
+		//only full blocks; a short tail is always fetched.
+		HashMap<Integer,ArrayList<Integer>> candidates = new HashMap<Integer,ArrayList<Integer>>();
+		int unmatched = 0;
+		for(int index = 0; index < blocks; index++)
+		{
+			if((long)(index + 1) * blockSize <= fileSize)
+			{
+				ArrayList<Integer> list = candidates.get(weak[index]);
+				if(list == null)
+				{
+					list = new ArrayList<Integer>();
+					candidates.put(weak[index],list);
+				}
+				list.add(index);
+				unmatched++;
+			}
+		}
+
+		long oldSize = old.size();
+		byte[] window = new byte[Math.max(4 * blockSize,1024 * 1024) + blockSize];
+		long windowStart = 0;
+		int windowLength = 0;
+
+		MessageDigest digest = newDigest();
+		long position = 0;
+		boolean fresh = true;
+		int a = 0;
+		int b = 0;
+
+		while(unmatched > 0 && position + blockSize <= oldSize)
+		{
+			//block and the byte after it must be in the window.
+			if(position + blockSize + 1 > windowStart + windowLength
+			   && windowStart + windowLength < oldSize)
+			{
+				windowStart = position;
+				windowLength = read(old,windowStart,window);
+			}
+			int offset = (int)(position - windowStart);
+
+			if(fresh)
+			{
+				int sum = weakChecksum(window,offset,blockSize);
+				a = sum & 0xffff;
+				b = sum >>> 16;
+				fresh = false;
+			}
+
+			ArrayList<Integer> list = candidates.get((b << 16) | (a & 0xffff));
+			if(list != null)
+			{
+				digest.update(window,offset,blockSize);
+				byte[] hash = digest.digest();
+				boolean matched = false;
+				for(int index : list)
+				{
+					if(sources[index] < 0
+					   && Arrays.equals(hash,0,STRONGSIZE,strong,index * STRONGSIZE,(index + 1) * STRONGSIZE))
+					{
+						sources[index] = position;
+						unmatched--;
+						matched = true;
+					}
+				}
+				if(matched)
+				{
+					position += blockSize;
+					fresh = true;
+					continue;
+				}
+			}
+
+			if(position + blockSize >= oldSize)
+			{
+				break;
+			}
+
+			//roll one byte forward
+			int out = window[offset] & 0xff;
+			int in = window[offset + blockSize] & 0xff;
+			a = (a - out + in) & 0xffff;
+			b = (b - blockSize * out + a) & 0xffff;
+			position++;
+		}
+		return sources;
+	}
+
+	private static int read(FileChannel channel,long position,byte[] into) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(into);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer,position + buffer.position()) < 0)
+			{
+				break;
+			}
+		}
+		return buffer.position();
+	}
+}
@@ -0,0 +1,678 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Content addressed store of the masters' data, so that content found
+ * under several paths or versions is kept and downloaded once.
+ *
+ * A master is cut in fixed size blocks and every block is kept once, in a
+ * file named by its SHA-256. The master file in the cache directory is
+ * then only a manifest: the size and the hash of every block. Blocks are
+ * counted by the manifests referring to them and deleted with the last
+ * one. The server advertises the hashes of a version, see
+ * Server.getBlockHashes, so fetching a master downloads only the blocks
+ * the store does not hold yet, whatever path they came with.
+ *
+ * Blocks are checked against their hash and forced to disk before a
+ * manifest refers to them. On start the manifests the cache index brings
+ * back are restored and the blocks nobody refers to are deleted.
+ */
+public class BlockStore
+{
+	public static final int MANIFESTMAGIC = 0x424c4b4d;
+	private static final HexFormat HEX = HexFormat.of();
+
+	/**
+	 * The blocks of one master.
+	 */
+	public static class Manifest
+	{
+		public long size;
+		public int blockSize;
+		//BlockHashes.STRONGSIZE bytes per block
+		public byte[] hashes;
+		//bytes of the blocks the store did not have when reserved
+		public long missingBytes;
+		//blocks this manifest holds a reference to
+		boolean[] held;
+
+		public int blockCount()
+		{
+			return hashes.length / BlockHashes.STRONGSIZE;
+		}
+
+		public int blockLength(int block)
+		{
+			return (int)Math.min(blockSize,size - (long)block * blockSize);
+		}
+
+		String name(int block)
+		{
+			return HEX.formatHex(hashes,block * BlockHashes.STRONGSIZE,(block + 1) * BlockHashes.STRONGSIZE);
+		}
+	}
+
+	/**
+	 * One stored block.
+	 */
+	private static class Block
+	{
+		int refs;
+		long size;
+	}
+
+	private String directory;
+	//hash in hex vs block
+	private HashMap<String,Block> blocks;
+	//master cache path vs its manifest
+	private HashMap<String,Manifest> manifests;
+	private volatile long storedBytes;
+	private long logicalBytes;
+	private long fetchedBytes;
+	private long reusedBytes;
+	private AtomicInteger tempCounter;
+
+	//open block files, read by many fds at once.
+	private FileHandleCache handles;
+
+	/**
+	 * Constructor. Finds the blocks of an earlier run; they are kept only
+	 * if a restored manifest refers to them, see sweep.
+	 * @param  storeDir directory of the blocks, created
+	 * @throws IOException if it can not be created
+	 */
+	public BlockStore(String storeDir) throws IOException
+	{
+		this.directory = storeDir;
+		this.blocks = new HashMap<String,Block>();
+		this.manifests = new HashMap<String,Manifest>();
+		this.tempCounter = new AtomicInteger(0);
+		this.handles = new FileHandleCache(256,10000);
+
+		File root = new File(directory);
+		root.mkdirs();
+		if(!root.isDirectory())
+		{
+			throw new IOException("Can not create block store "+directory);
+		}
+
+		File[] subdirs = root.listFiles();
+		for(File subdir : subdirs)
+		{
+			//downloads that never finished
+			if(!subdir.isDirectory())
+			{
+				subdir.delete();
+				continue;
+			}
+			for(File file : subdir.listFiles())
+			{
+				if(file.getName().length() != 2 * BlockHashes.STRONGSIZE)
+				{
+					file.delete();
+					continue;
+				}
+				Block block = new Block();
+				block.size = file.length();
+				blocks.put(file.getName(),block);
+			}
+		}
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private String blockPath(String name)
+	{
+		return directory + "/" + name.substring(0,2) + "/" + name;
+	}
+
+	/**
+	 * @return  bytes of the blocks on disk, each counted once
+	 */
+	public long getStoredBytes()
+	{
+		return storedBytes;
+	}
+
+	/**
+	 * Pins the blocks of a version the store already has.
+	 * @param  hashes advertised by the server
+	 * @return  manifest to fetch and commit, or abandon
+	 */
+	public synchronized Manifest reserve(BlockHashes hashes)
+	{
+		Manifest manifest = new Manifest();
+		manifest.size = hashes.fileSize;
+		manifest.blockSize = hashes.blockSize;
+		manifest.hashes = hashes.strong;
+		manifest.held = new boolean[manifest.blockCount()];
+
+		HashSet<String> missing = new HashSet<String>();
+		for(int index = 0; index < manifest.held.length; index++)
+		{
+			String name = manifest.name(index);
+			Block block = blocks.get(name);
+			if(block != null)
+			{
+				block.refs++;
+				manifest.held[index] = true;
+			}
+			else if(missing.add(name))
+			{
+				manifest.missingBytes += manifest.blockLength(index);
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Downloads the blocks of a reserved manifest the store lacks, each
+	 * once, window of them at a time.
+	 * @param  manifest from reserve
+	 * @param  server
+	 * @param  path     server path
+	 * @param  version  last modified time the hashes are of
+	 * @param  pool     threads for the downloads
+	 * @param  window   blocks fetched at once
+	 * @throws IOException if a block could not be fetched or the file
+	 *         changed; the manifest has to be abandoned then.
+	 */
+	public void fetch(final Manifest manifest,final RemoteCallable server,final String path,
+					  final long version,ExecutorService pool,int window) throws IOException
+	{
+		final Semaphore inFlight = new Semaphore(Math.max(window,1));
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		ArrayList<Future<?>> downloads = new ArrayList<Future<?>>();
+		HashSet<String> started = new HashSet<String>();
+		IOException failure = null;
+
+		for(int index = 0; index < manifest.held.length && !failed.get(); index++)
+		{
+			if(manifest.held[index] || !started.add(manifest.name(index)))
+			{
+				continue;
+			}
+			try
+			{
+				inFlight.acquire();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				failure = new IOException("Interrupted fetching blocks");
+				failed.set(true);
+			}
+
+			final int block = index;
+			downloads.add(pool.submit(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						fetchBlock(manifest,block,server,path,version);
+					}
+					catch(IOException e)
+					{
+						failed.set(true);
+						throw new RuntimeException(e);
+					}
+					finally
+					{
+						inFlight.release();
+					}
+				}
+			}));
+		}
+
+		//all of them finish before returning, failed or not.
+		for(Future<?> download : downloads)
+		{
+			try
+			{
+				download.get();
+			}
+			catch(ExecutionException e)
+			{
+				if(failure == null)
+				{
+					Throwable cause = e.getCause().getCause();
+					failure = cause instanceof IOException ? (IOException)cause
+								: new IOException(e.getCause());
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				failure = new IOException("Interrupted fetching blocks");
+			}
+		}
+		if(failure != null)
+		{
+			throw failure;
+		}
+
+		//blocks the file has more than once were fetched for the first.
+		synchronized(this)
+		{
+			for(int index = 0; index < manifest.held.length; index++)
+			{
+				if(!manifest.held[index])
+				{
+					Block block = blocks.get(manifest.name(index));
+					if(block == null)
+					{
+						throw new IOException("Block "+index+" of "+path+" not fetched");
+					}
+					block.refs++;
+					manifest.held[index] = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Downloads one block into a temporary file, checks it against its
+	 * hash, forces it and moves it into the store.
+	 */
+	private void fetchBlock(Manifest manifest,int index,RemoteCallable server,
+							String path,long version) throws IOException
+	{
+		long start = (long)index * manifest.blockSize;
+		long end = start + manifest.blockLength(index);
+		String name = manifest.name(index);
+		File temp = new File(directory,"tmp-"+tempCounter.getAndIncrement());
+		MessageDigest digest = newDigest();
+
+		try
+		{
+			try(FileOutputStream out = new FileOutputStream(temp))
+			{
+				long offset = start;
+				while(offset < end)
+				{
+					Chunk chunk = server.downloadChunkFromServer(path,offset,(int)(end - offset),version);
+					if(chunk == null)
+					{
+						throw new RemoteException("Block at "+offset+" of "+path
+												  +" gone, changed on the server?");
+					}
+					if(chunk.size <= 0)
+					{
+						throw new IOException("File shrank on the server:"+path);
+					}
+					try
+					{
+						int length = (int)Math.min(chunk.size,end - offset);
+						digest.update(chunk.buffer,0,length);
+						out.write(chunk.buffer,0,length);
+						offset += length;
+					}
+					finally
+					{
+						ChunkBufferPool.release(chunk);
+					}
+				}
+				if(!Arrays.equals(digest.digest(),0,BlockHashes.STRONGSIZE,manifest.hashes,
+								  index * BlockHashes.STRONGSIZE,(index + 1) * BlockHashes.STRONGSIZE))
+				{
+					throw new IOException("Block "+index+" of "+path+" does not match its hash");
+				}
+				out.getFD().sync();
+			}
+			adopt(manifest,index,name,temp);
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Moves a fetched block into the store, unless someone else stored it
+	 * meanwhile, and references it.
+	 */
+	private synchronized void adopt(Manifest manifest,int index,String name,File temp) throws IOException
+	{
+		Block block = blocks.get(name);
+		if(block == null)
+		{
+			File target = new File(blockPath(name));
+			target.getParentFile().mkdirs();
+			Files.move(temp.toPath(),target.toPath(),StandardCopyOption.ATOMIC_MOVE);
+			block = new Block();
+			block.size = manifest.blockLength(index);
+			blocks.put(name,block);
+			storedBytes += block.size;
+			fetchedBytes += block.size;
+		}
+		block.refs++;
+		manifest.held[index] = true;
+	}
+
+	/**
+	 * Writes the manifest of a fetched master as its cache file, after
+	 * which it can be read through StoredFile.
+	 * @param  manifest  fetched
+	 * @param  cachePath cache file of the master
+	 * @throws IOException if it could not be written, abandon it then.
+	 */
+	public void commit(Manifest manifest,String cachePath) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(MANIFESTMAGIC);
+		data.writeLong(manifest.size);
+		data.writeInt(manifest.blockSize);
+		data.writeInt(manifest.hashes.length);
+		data.write(manifest.hashes);
+		data.flush();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		data.writeLong(crc.getValue());
+		data.flush();
+
+		try(FileOutputStream out = new FileOutputStream(cachePath))
+		{
+			out.write(bytes.toByteArray());
+		}
+
+		synchronized(this)
+		{
+			manifests.put(cachePath,manifest);
+			logicalBytes += manifest.size;
+			reusedBytes += manifest.size - manifest.missingBytes;
+		}
+	}
+
+	/**
+	 * Reads a manifest written by commit.
+	 * @param  cachePath
+	 * @return  the manifest, null if the file is not one
+	 */
+	public static Manifest readManifest(String cachePath)
+	{
+		File file = new File(cachePath);
+		long length = file.length();
+		//magic, size, block size, hash bytes, crc
+		if(length < 28)
+		{
+			return null;
+		}
+
+		try(DataInputStream in = new DataInputStream(new FileInputStream(file)))
+		{
+			if(in.readInt() != MANIFESTMAGIC)
+			{
+				return null;
+			}
+			byte[] content = new byte[(int)Math.min(length - 8,Integer.MAX_VALUE)];
+			ByteBuffer.wrap(content).putInt(MANIFESTMAGIC);
+			in.readFully(content,4,content.length - 4);
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			if(in.readLong() != crc.getValue())
+			{
+				return null;
+			}
+
+			ByteBuffer fields = ByteBuffer.wrap(content,4,16);
+			Manifest manifest = new Manifest();
+			manifest.size = fields.getLong();
+			manifest.blockSize = fields.getInt();
+			int hashBytes = fields.getInt();
+			if(manifest.blockSize <= 0 || hashBytes != content.length - 20
+			   || hashBytes % BlockHashes.STRONGSIZE != 0)
+			{
+				return null;
+			}
+			manifest.hashes = Arrays.copyOfRange(content,20,content.length);
+			manifest.held = new boolean[manifest.blockCount()];
+			return manifest;
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Takes back a manifest of an earlier run, if all of its blocks are
+	 * still there.
+	 * @param  cachePath cache file of the master
+	 * @param  manifest  from readManifest
+	 * @return  false if blocks are missing
+	 */
+	public synchronized boolean restore(String cachePath,Manifest manifest)
+	{
+		for(int index = 0; index < manifest.held.length; index++)
+		{
+			Block block = blocks.get(manifest.name(index));
+			if(block == null || block.size != manifest.blockLength(index))
+			{
+				return false;
+			}
+		}
+		//counted as they are taken, so the cache evicts with them.
+		for(int index = 0; index < manifest.held.length; index++)
+		{
+			Block block = blocks.get(manifest.name(index));
+			if(block.refs++ == 0)
+			{
+				storedBytes += block.size;
+			}
+			manifest.held[index] = true;
+		}
+		manifests.put(cachePath,manifest);
+		logicalBytes += manifest.size;
+		return true;
+	}
+
+	/**
+	 * Deletes the blocks nothing refers to, after the restore.
+	 * @return  bytes kept
+	 */
+	public synchronized long sweep()
+	{
+		long kept = 0;
+		int deleted = 0;
+		Iterator<Map.Entry<String,Block>> it = blocks.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<String,Block> entry = it.next();
+			if(entry.getValue().refs == 0)
+			{
+				new File(blockPath(entry.getKey())).delete();
+				it.remove();
+				deleted++;
+			}
+			else
+			{
+				kept += entry.getValue().size;
+			}
+		}
+		storedBytes = kept;
+		System.err.println("Block store: "+blocks.size()+" blocks kept, "+deleted+" deleted");
+		return kept;
+	}
+
+	/**
+	 * @param  cachePath
+	 * @return  manifest of a committed master, null if none
+	 */
+	public synchronized Manifest get(String cachePath)
+	{
+		return manifests.get(cachePath);
+	}
+
+	/**
+	 * Drops a master that was not committed.
+	 * @param manifest from reserve
+	 */
+	public synchronized void abandon(Manifest manifest)
+	{
+		unreference(manifest);
+	}
+
+	/**
+	 * Drops the manifest of an evicted master, deleting the blocks no
+	 * other master has.
+	 * @param  cachePath
+	 */
+	public synchronized void release(String cachePath)
+	{
+		Manifest manifest = manifests.remove(cachePath);
+		if(manifest != null)
+		{
+			logicalBytes -= manifest.size;
+			unreference(manifest);
+		}
+	}
+
+	private void unreference(Manifest manifest)
+	{
+		for(int index = 0; index < manifest.held.length; index++)
+		{
+			if(!manifest.held[index])
+			{
+				continue;
+			}
+			manifest.held[index] = false;
+			String name = manifest.name(index);
+			Block block = blocks.get(name);
+			block.refs--;
+			if(block.refs == 0)
+			{
+				String blockPath = blockPath(name);
+				handles.invalidate(blockPath);
+				new File(blockPath).delete();
+				blocks.remove(name);
+				storedBytes -= block.size;
+			}
+		}
+	}
+
+	/**
+	 * Reads from a committed master.
+	 * @param  manifest
+	 * @param  position offset in the file
+	 * @param  buffer
+	 * @param  offset   in buffer
+	 * @param  length   bytes wanted
+	 * @return  bytes read, -1 at the end of the file
+	 * @throws IOException
+	 */
+	public int read(Manifest manifest,long position,byte[] buffer,int offset,int length) throws IOException
+	{
+		if(length == 0)
+		{
+			return 0;
+		}
+		if(position >= manifest.size)
+		{
+			return -1;
+		}
+
+		int total = (int)Math.min(length,manifest.size - position);
+		int done = 0;
+		while(done < total)
+		{
+			int index = (int)(position / manifest.blockSize);
+			int inBlock = (int)(position - (long)index * manifest.blockSize);
+			int piece = Math.min(total - done,manifest.blockSize - inBlock);
+
+			FileHandleCache.Handle handle = handles.acquire(blockPath(manifest.name(index)),false);
+			try
+			{
+				ByteBuffer target = ByteBuffer.wrap(buffer,offset + done,piece);
+				while(target.hasRemaining())
+				{
+					if(handle.channel.read(target,inBlock + target.position() - offset - done) < 0)
+					{
+						throw new IOException("Block "+index+" shorter than expected");
+					}
+				}
+			}
+			finally
+			{
+				handles.release(handle);
+			}
+			done += piece;
+			position += piece;
+		}
+		return total;
+	}
+
+	/**
+	 * Writes the content of a committed master to a plain file.
+	 * @param  manifest
+	 * @param  newPath  created
+	 * @throws IOException
+	 */
+	public void copyTo(Manifest manifest,String newPath) throws IOException
+	{
+		try(FileChannel to = FileChannel.open(Paths.get(newPath),StandardOpenOption.CREATE_NEW,
+											  StandardOpenOption.WRITE))
+		{
+			long position = 0;
+			for(int index = 0; index < manifest.blockCount(); index++)
+			{
+				long start = position;
+				long end = start + manifest.blockLength(index);
+				try(FileChannel from = FileChannel.open(Paths.get(blockPath(manifest.name(index))),
+														StandardOpenOption.READ))
+				{
+					while(position < end)
+					{
+						position += from.transferTo(position - start,end - position,to);
+					}
+				}
+			}
+		}
+	}
+
+	public synchronized String toString()
+	{
+		return "block store: "+blocks.size()+" blocks, "+storedBytes+" bytes stored for "
+			   +logicalBytes+" bytes of masters, "+fetchedBytes+" bytes fetched, "
+			   +reusedBytes+" reused";
+	}
+}
@@ -1,118 +1,407 @@
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.File;
 /**
  * Manages the proxy Cache.
+ *
+ * The cache is split into segments by cachePath. Every segment has its own
+ * map, usage list and lock; only the total size is shared, and that is kept
+ * in an atomic counter. A hit on one file therefore never waits on a miss or
+ * an eviction of a file in another segment, and files are deleted from disk
+ * without holding any segment lock.
+ *
+ * What gets evicted is decided by a per segment EvictionPolicy: "lru" (the
+ * default), "tinylfu" or "gdsf".
+ *
+ * With a CacheIndex attached, complete masters, their evictions and
+ * accesses are also recorded on disk, see attachIndex.
+ *
+ * With a BlockStore, masters kept there count nothing by themselves; the
+ * store's unique bytes count instead, and evicting such a master frees
+ * only the blocks no other master shares. Compressed masters count the
+ * bytes they take on disk, not the size of their content.
+ *
+ * A file is admitted with reserve or admit, which count its bytes right
+ * away, so concurrent misses can not each see the same free room. The
+ * reservation is taken over by putInCache or grow, or given back with
+ * unreserve.
  */
 public class Cache
 {
 
+	public static final int DEFAULTSEGMENTS = 16;
+	public static final String DEFAULTPOLICY = "lru";
+	public static final int SKETCHWIDTH = 1 << 16;
+
+	//makeSpaceFor results
+	public static final int ADMITTED = 0;
+	public static final int REJECTED = 1;
+	public static final int NOSPACE = 2;
 	
-	private long currentSize;
+	private AtomicLong currentSize;
 	private long sizeLimit;
 
-	//Contains file info. This is cachePath vs info
-	public ConcurrentHashMap<String,CachedFileInfo> fileInfoMap;
+	//Segments of the cache. Picked by the hash of the cachePath.
+	private CacheSegment[] segments;
 
-	// contains the list of filenames in the cache.
-	public LinkedList<CachedFileInfo> usageList;
-	//MRU at head and LRU at Tail.
+	//Segment where the next eviction sweep starts.
+	private AtomicInteger evictionCursor;
 		
 	//uses input path and last Modified time; - Facilitates deleting
 	public ConcurrentHashMap<String,Long> fileVersionMap;
 
+	//on disk record of the masters, null if none.
+	private CacheIndex index;
+
+	//content addressed store of masters, null if none.
+	private BlockStore store;
+
 	/**
 	 * Constructor
 	 * @param  limit - Size Limit of cache
 	 */
 	public Cache(long limit)
 	{
+		this(limit,DEFAULTSEGMENTS,DEFAULTPOLICY);
+	}
+
+	/**
+	 * Constructor
+	 * @param  limit - Size Limit of cache
+	 * @param  segmentCount - number of lock stripes
+	 * @param  policyName - eviction policy, lru, tinylfu or gdsf
+	 */
+	public Cache(long limit,int segmentCount,String policyName)
+	{
+		if(segmentCount < 1)
+		{
+			segmentCount = 1;
+		}
+
 		this.sizeLimit = limit;
-		this.currentSize = 0;
-		this.fileInfoMap = new ConcurrentHashMap<String,CachedFileInfo>();
+		this.currentSize = new AtomicLong(0);
 		this.fileVersionMap = new ConcurrentHashMap<String,Long>();
-		this.usageList = new LinkedList<CachedFileInfo>();
+		this.evictionCursor = new AtomicInteger(0);
+		this.segments = new CacheSegment[segmentCount];
+		for(int index = 0; index < segmentCount; index++)
+		{
+			segments[index] = new CacheSegment(newPolicy(policyName,limit / segmentCount));
+		}
 	}
 
 	/**
-	 * Makes the file as the most recently used.
-	 * @param file-file path
+	 * Counts the masters kept in a block store by its unique bytes, from
+	 * now on. Set before attachIndex, so the manifests are restored.
+	 * @param blockStore
+	 */
+	public void useStore(BlockStore blockStore)
+	{
+		this.store = blockStore;
+	}
+
+	/**
+	 * Puts the masters an index found on disk back in the cache, oldest
+	 * access first, and keeps the index up to date from now on. Evicts
+	 * what no longer fits the size limit.
+	 * @param cacheIndex recovered index
+	 * @param cacheDir   cache directory the index is in
 	 */
-	public synchronized void makeMRU(CachedFileInfo file)
+	public void attachIndex(CacheIndex cacheIndex,String cacheDir)
 	{
-		// If it is already there in linked List;
-		if(usageList.contains(file))
+		this.index = cacheIndex;
+		for(CacheIndex.Entry entry : cacheIndex.getEntries())
 		{
-			int index = usageList.indexOf(file);
-			CachedFileInfo tempFileInfo = usageList.get(index);
-			usageList.remove(index);
-			usageList.addFirst(tempFileInfo);
+			CachedFileInfo info = new CachedFileInfo();
+			info.putPath(entry.path);
+			info.putNormalizedPath(entry.path);
+			info.putCachePath(cacheDir + entry.name);
+			info.putLastModifiedTime(entry.version);
+			info.putFileSize(entry.size);
+			info.fetchNanos = entry.fetchNanos;
+			info.setReadOnly();
+
+			//a manifest is useless without the store and all its blocks.
+			BlockStore.Manifest manifest = BlockStore.readManifest(info.cachePath);
+			if(manifest != null)
+			{
+				if(store == null || !store.restore(info.cachePath,manifest))
+				{
+					System.err.println("Dropping stored master:"+info.cachePath);
+					new File(info.cachePath).delete();
+					cacheIndex.removed(info);
+					continue;
+				}
+				info.isStored = true;
+				info.putFileSize(manifest.size);
+			}
+			else
+			{
+				long content = CompressedFile.contentSize(info.cachePath);
+				if(content >= 0)
+				{
+					info.isCompressed = true;
+					info.diskSize = entry.size;
+					info.putFileSize(content);
+				}
+			}
+			putInCache(info.cachePath,info);
+			fileVersionMap.merge(entry.path,entry.version,Math::max);
 		}
-		else
+		evictLRUFiles(0);
+	}
+
+	/**
+	 * Records that a master is about to be downloaded, so that a restart
+	 * finds it torn if it is never persisted.
+	 * @param file
+	 */
+	public void fetching(CachedFileInfo file)
+	{
+		if(index != null)
 		{
-			usageList.addFirst(file);
+			index.fetching(file);
 		}
+	}
 
+	/**
+	 * Records a master whose download is complete, so that it survives a
+	 * restart.
+	 * @param file
+	 */
+	public void persist(CachedFileInfo file)
+	{
+		if(index != null)
+		{
+			index.add(file);
+		}
+	}
+
+	/**
+	 * Creates the eviction policy of one segment.
+	 * @param  policyName   
+	 * @param  segmentLimit share of the size limit of the segment
+	 * @return  policy
+	 */
+	private EvictionPolicy newPolicy(String policyName,long segmentLimit)
+	{
+		if("tinylfu".equalsIgnoreCase(policyName))
+		{
+			return new TinyLFUPolicy(segmentLimit,SKETCHWIDTH / segments.length);
+		}
+
+		if("gdsf".equalsIgnoreCase(policyName))
+		{
+			return new GDSFPolicy();
+		}
+
+		if(!"lru".equalsIgnoreCase(policyName))
+		{
+			System.err.println("Unknown eviction policy "+policyName+", using lru");
+		}
+		return new LRUPolicy();
+	}
+
+	/**
+	 * Finds the segment that owns the cache path
+	 * @param  cachePath 
+	 * @return  segment
+	 */
+	private CacheSegment segmentFor(String cachePath)
+	{
+		int hash = cachePath.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[(hash & 0x7fffffff) % segments.length];
+	}
+
+	/**
+	 * Makes the file as the most recently used.
+	 * @param file-file path
+	 */
+	public void makeMRU(CachedFileInfo file)
+	{
+		segmentFor(file.cachePath).makeMRU(file);
+		if(index != null && file.isReadOnly)
+		{
+			index.accessed(file);
+		}
 	}
 
 	/**
 	 * returns true if the file can be fit.
+	 * Evicts without asking the policy for admission.
 	 * @param  fileSize 
 	 * @return          Eviction status
 	 */
-	public synchronized boolean evictLRUFiles(long fileSize)
+	public boolean evictLRUFiles(long fileSize)
+	{
+		return makeSpaceFor(null,fileSize) == ADMITTED;
+	}
+
+	/**
+	 * Reserves room for a file if there is some, without evicting.
+	 * @param  fileSize
+	 * @return  true if the bytes are reserved
+	 */
+	public boolean reserve(long fileSize)
+	{
+		long stored = store == null ? 0 : store.getStoredBytes();
+		while(true)
+		{
+			long current = currentSize.get();
+			if(current + stored + fileSize > sizeLimit)
+			{
+				return false;
+			}
+			if(currentSize.compareAndSet(current,current + fileSize))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reserves room for a file, evicting as makeSpaceFor does.
+	 * @param  cachePath path of the incoming file, null to always evict
+	 * @param  fileSize
+	 * @return  ADMITTED with the bytes reserved, REJECTED or NOSPACE
+	 */
+	public int admit(String cachePath,long fileSize)
+	{
+		if(reserve(fileSize))
+		{
+			return ADMITTED;
+		}
+		return makeSpaceFor(cachePath,fileSize,true);
+	}
+
+	/**
+	 * Gives back bytes reserved for a file that is not put in the cache.
+	 * @param fileSize
+	 */
+	public void unreserve(long fileSize)
+	{
+		currentSize.addAndGet(-fileSize);
+	}
+
+	/**
+	 * Makes space for a new file.
+	 * Sweeps the segments round robin, evicting the policy victim of each,
+	 * until there is space for the file. If a cache path is given, every
+	 * victim has to lose the policy's admission check against it first.
+	 * @param  cachePath path of the incoming file, null to always evict
+	 * @param  fileSize 
+	 * @return  ADMITTED, REJECTED if the policy would rather keep the
+	 *          current files, NOSPACE if the file cannot fit at all.
+	 */
+	public int makeSpaceFor(String cachePath,long fileSize)
+	{
+		return makeSpaceFor(cachePath,fileSize,false);
+	}
+
+	/**
+	 * @param  reserveSpace reserve the bytes once there is room
+	 */
+	private int makeSpaceFor(String cachePath,long fileSize,boolean reserveSpace)
 	{
 
 		if(sizeLimit < fileSize)
 		{
-			return false;
+			return NOSPACE;
 		}
 
-		//backwards iteration;
-		for(int index = usageList.size()-1;index>-1; index--)
+		int candidateFrequency = -1;
+		if(cachePath != null)
 		{
-			CachedFileInfo tempFile = usageList.get(index);
-			System.err.println("Trying::"+ tempFile.cachePath + "size:"+ tempFile.fileSize);
-			 // write files cannot be touched. as they will be 
-			 // deleted at the end of the close operation.
-			if(tempFile.isReadOnly)
+			candidateFrequency = segmentFor(cachePath).frequency(cachePath);
+		}
+
+		int start = Math.abs(evictionCursor.getAndIncrement() % segments.length);
+		boolean[] closed = new boolean[segments.length];
+		boolean[] rejected = new boolean[1];
+		boolean evictedInPass = true;
+		while(evictedInPass)
+		{
+			evictedInPass = false;
+			for(int count = 0; count < segments.length; count++)
 			{
-				System.err.println("ReadOnly");
-				if(tempFile.readerCount == 0)
+				if(reserveSpace ? reserve(fileSize) : isThereCacheSpace(fileSize))
+				{
+					return ADMITTED;
+				}
+
+				int index = (start + count) % segments.length;
+				if(closed[index])
 				{
-					
-					System.err.println("SizeBere:"+currentSize);
-					evictFile(tempFile.cachePath);
-					System.err.println("SizeAfter:"+currentSize);
+					continue;
 				}
 
-				if(isThereCacheSpace(fileSize))
+				boolean[] segmentRejected = new boolean[1];
+				CachedFileInfo victim
+						= segments[index].removeVictim(candidateFrequency,segmentRejected);
+				if(victim != null)
+				{
+					System.err.println("Evicting::"+ victim.cachePath + "size:"+ victim.fileSize);
+					deleteFromDisk(victim);
+					evictedInPass = true;
+				}
+				else
 				{
-					return true;
+					//nothing more this segment will give up.
+					closed[index] = true;
+					rejected[0] |= segmentRejected[0];
 				}
 			}
 		}
 
-		return false;
+		if(reserveSpace ? reserve(fileSize) : isThereCacheSpace(fileSize))
+		{
+			return ADMITTED;
+		}
+		return rejected[0] ? REJECTED : NOSPACE;
 
 	}
 
+	/**
+	 * Counts a request for the cache path, hit or miss, for policies that
+	 * track frequency.
+	 * @param cachePath
+	 */
+	public void recordRequest(String cachePath)
+	{
+		segmentFor(cachePath).recordRequest(cachePath);
+	}
+
 
 	/**
 	 * Gets the file info object from cache
 	 * @param  path file-cache path
 	 * @return     
 	 */
-	public synchronized CachedFileInfo getFromCache(String path)
+	public CachedFileInfo getFromCache(String path)
 	{
-		if(fileInfoMap.containsKey(path))
-		{
-			return fileInfoMap.get(path);
-		}
-		else
-		{
-			return null;
-		}
+		return segmentFor(path).get(path);
+	}
+
+	/**
+	 * Gets the file info object from cache and adds a reader to it, so it
+	 * is not evicted until release is called.
+	 * @param  path file-cache path
+	 * @return  info or null on a miss
+	 */
+	public CachedFileInfo acquire(String path)
+	{
+		return segmentFor(path).acquire(path);
+	}
+
+	/**
+	 * Drops a reader of the file.
+	 * @param  file 
+	 * @return  readers left
+	 */
+	public int release(CachedFileInfo file)
+	{
+		return segmentFor(file.cachePath).release(file);
 	}
 
 	/**
@@ -120,23 +409,56 @@ public class Cache
 	 * @param path cachePath
 	 * @param file Fileinfo
 	 */
-	public synchronized void putInCache(String cachePath, CachedFileInfo file)
+	public void putInCache(String cachePath, CachedFileInfo file)
+	{	
+		putInCache(cachePath,file,0);
+	}
+
+	/**
+	 * Puts the file info object in the cache in place of a reservation
+	 * @param cachePath
+	 * @param file
+	 * @param reserved  bytes reserved for it with reserve or admit
+	 */
+	public void putInCache(String cachePath, CachedFileInfo file, long reserved)
 	{	
 		System.err.println("PUTTING IN CacheE:"+cachePath+ ":::size:"+file.fileSize);
-		
 
-		//check if it exists
-		if(fileInfoMap.containsKey(cachePath))
+		CachedFileInfo temp = segmentFor(cachePath).put(cachePath,file);
+
+		//check if it existed
+		if(temp != null)
 		{
-			CachedFileInfo temp = fileInfoMap.get(cachePath);
-			fileInfoMap.remove(cachePath);
-			currentSize -= temp.fileSize;
+			currentSize.addAndGet(-countedSize(temp));
 		}
+		currentSize.addAndGet(countedSize(file) - reserved);
+	}
 
-		fileInfoMap.put(cachePath,file);
-		currentSize+=file.fileSize;
+	/**
+	 * Counts bytes a private copy in the cache took on, in place of their
+	 * reservation. The bytes are given back with the copy.
+	 * @param file
+	 * @param reserved bytes reserved for them with reserve or admit
+	 */
+	public void grow(CachedFileInfo file,long reserved)
+	{
+		if(!segmentFor(file.cachePath).grow(file,reserved))
+		{
+			unreserve(reserved);
+		}
+	}
 
-		
+	/**
+	 * @param  info
+	 * @return  bytes the file counts against the size limit
+	 */
+	private static long countedSize(CachedFileInfo info)
+	{
+		if(info.isStored)
+		{
+			return 0;
+		}
+		return info.isCompressed ? info.diskSize : info.fileSize;
 	}
 
 	/**
@@ -144,31 +466,66 @@ public class Cache
 	 * @param  fileSize 
 	 * @return  status
 	 */
-	public synchronized boolean isThereCacheSpace(long fileSize)
+	public boolean isThereCacheSpace(long fileSize)
 	{
-		return (currentSize + fileSize <= sizeLimit);
+		long stored = store == null ? 0 : store.getStoredBytes();
+		return (currentSize.get() + stored + fileSize <= sizeLimit);
 	}
 
 	/**
 	 * Evicts the file from the cache
 	 * @param cachePath
 	 */
-	public synchronized void evictFile(String cachePath)
+	public void evictFile(String cachePath)
 	{
-		CachedFileInfo info = fileInfoMap.get(cachePath);
+		//remove from segment map and list
+		CachedFileInfo info = segmentFor(cachePath).remove(cachePath);
+		if(info == null)
+		{
+			return;
+		}
 
-		//removed from list
-		usageList.remove(info);
+		deleteFromDisk(info);
+	}
 
-		//remove from Map
-		fileInfoMap.remove(cachePath);
+	/**
+	 * Evicts the file only if it is a read only copy with no readers.
+	 * @param  cachePath
+	 * @return  true if it was evicted
+	 */
+	public boolean evictIfUnused(String cachePath)
+	{
+		CachedFileInfo info = segmentFor(cachePath).removeIfUnused(cachePath);
+		if(info == null)
+		{
+			return false;
+		}
+
+		deleteFromDisk(info);
+		return true;
+	}
 
+	/**
+	 * Deletes an already unlinked file and releases its space.
+	 * No segment lock is held here.
+	 * @param info
+	 */
+	private void deleteFromDisk(CachedFileInfo info)
+	{
 		//delete the file;
-		File file = new File(cachePath);
+		File file = new File(info.cachePath);
 		file.delete();
 
-		currentSize -= info.fileSize;
+		if(info.isStored)
+		{
+			store.release(info.cachePath);
+		}
+		currentSize.addAndGet(-countedSize(info));
+		if(index != null && info.isReadOnly)
+		{
+			index.removed(info);
+		}
 	}
 
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,714 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Index of the master copies in the cache directory, kept on disk so that
+ * a restarted proxy finds them again instead of downloading them.
+ *
+ * It is a snapshot plus a log of the changes since. Log records carry
+ * their length and a CRC32, a record torn by a crash ends the replay. A
+ * master is added only after its data is forced to disk, and the entry
+ * remembers the size, modification time and inode of the file; an entry
+ * whose file does not match any more (deleted, downloaded again, torn) is
+ * dropped on start. Evictions and accesses are logged but not synced, a
+ * lost one only costs recency. Accesses are queued without a lock and
+ * logged by the index thread, so a hit never waits for the index. Every
+ * start and every few thousand records the log is compacted into a new
+ * snapshot; the log is swapped under the lock, the snapshot written and
+ * synced outside it, with the previous log kept until it is.
+ *
+ * Downloads are logged, synced, when they start; a file whose download
+ * was logged but never added is torn and deleted on start, as are private
+ * and pass through copies, named by getNewWriteFilePath and
+ * getPassThroughPath. Other master names the index does not know,
+ * path_lastModified, come from a proxy that ran without the index and are
+ * adopted, least recently used. Their path is the name with / turned to
+ * _, so a newer version of a path with a / in it does not replace them,
+ * eviction does. Anything else in the cache directory is left alone.
+ */
+public class CacheIndex
+{
+	public static final String SNAPSHOTNAME = "snapshot";
+	public static final String LOGNAME = "log";
+	//log of the records the snapshot being written covers
+	public static final String PREVLOGNAME = "log.prev";
+	public static final int MINCOMPACTRECORDS = 4096;
+	//accesses queued beyond this are dropped, they only cost recency
+	public static final int MAXQUEUEDACCESSES = 65536;
+
+	private static final int SNAPSHOTMAGIC = 0x43494458;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte ACCESS = 3;
+	private static final byte FETCH = 4;
+
+	//path_lastModified, as Proxy.newCacheFileName makes them
+	private static final Pattern MASTERNAME = Pattern.compile("(.+)_(\\d+)");
+	//write and pass through copies of a master, name_fd_w and name_fd_p
+	private static final Pattern COPYNAME = Pattern.compile(".+_\\d+_\\d+_[wp]");
+
+	/**
+	 * One master copy.
+	 */
+	public static class Entry
+	{
+		//server path
+		public String path;
+		//file name in the cache directory
+		public String name;
+		//server last modified time of the copy
+		public long version;
+		public long size;
+		public long fetchNanos;
+		//what the file looked like when it was added
+		public long localModified;
+		public String fileKey;
+	}
+
+	private String cacheDirectory;
+	private String directory;
+	private FileOutputStream logFile;
+	private DataOutputStream log;
+	private int logRecords;
+
+	//file name vs entry, oldest access first.
+	private LinkedHashMap<String,Entry> entries;
+	//added masters whose data is still being synced.
+	private Set<CachedFileInfo> pending;
+	//file names of masters being downloaded, not added yet.
+	private HashSet<String> fetching;
+
+	//syncs added masters and compacts off the callers' threads.
+	private ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r,"cache-index");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private boolean compacting;
+
+	//names of masters hit, logged by the index thread.
+	private ConcurrentLinkedQueue<String> accesses = new ConcurrentLinkedQueue<String>();
+	private AtomicInteger queuedAccesses = new AtomicInteger(0);
+	private AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+	/**
+	 * Constructor. Reads the index of an earlier run, drops entries whose
+	 * file changed and deletes the files nothing refers to.
+	 * @param  cacheDir  cache directory, ending in /
+	 * @param  indexName directory of the index inside it
+	 * @throws IOException if the index can not be written
+	 */
+	public CacheIndex(String cacheDir,String indexName) throws IOException
+	{
+		this.cacheDirectory = cacheDir;
+		this.directory = cacheDir + indexName;
+		this.entries = new LinkedHashMap<String,Entry>(16,0.75f,true);
+		this.pending = Collections.newSetFromMap(new IdentityHashMap<CachedFileInfo,Boolean>());
+		this.fetching = new HashSet<String>();
+
+		new File(directory).mkdirs();
+		recover();
+	}
+
+	/**
+	 * Replays snapshot and log, checks the files and compacts.
+	 */
+	private void recover() throws IOException
+	{
+		long startNanos = System.nanoTime();
+		readSnapshot(new File(directory,SNAPSHOTNAME));
+		int replayed = replayLog(new File(directory,PREVLOGNAME));
+		replayed += replayLog(new File(directory,LOGNAME));
+
+		//newest version of every path that still is what was indexed
+		HashMap<String,Entry> newest = new HashMap<String,Entry>();
+		ArrayList<String> dropped = new ArrayList<String>();
+		for(Entry entry : entries.values())
+		{
+			if(!matches(entry))
+			{
+				dropped.add(entry.name);
+				continue;
+			}
+			Entry other = newest.get(entry.path);
+			if(other == null || other.version < entry.version)
+			{
+				if(other != null)
+				{
+					dropped.add(other.name);
+				}
+				newest.put(entry.path,entry);
+			}
+			else
+			{
+				dropped.add(entry.name);
+			}
+		}
+		for(String name : dropped)
+		{
+			entries.remove(name);
+		}
+		HashSet<String> reclaim = new HashSet<String>(dropped);
+		reclaim.addAll(fetching);
+		fetching.clear();
+
+		//torn downloads and copies are left over, unknown masters adopted
+		int reclaimed = 0;
+		ArrayList<Entry> adopted = new ArrayList<Entry>();
+		File[] files = new File(cacheDirectory).listFiles();
+		for(File file : files)
+		{
+			String name = file.getName();
+			if(!file.isFile() || entries.containsKey(name))
+			{
+				continue;
+			}
+			if(reclaim.contains(name) || COPYNAME.matcher(name).matches())
+			{
+				file.delete();
+				reclaimed++;
+				continue;
+			}
+			Entry entry = adopt(name);
+			if(entry != null)
+			{
+				adopted.add(entry);
+			}
+		}
+
+		//adopted ones have no recorded access, they go first.
+		Collections.sort(adopted,(a,b) -> Long.compare(a.localModified,b.localModified));
+		LinkedHashMap<String,Entry> ordered = new LinkedHashMap<String,Entry>(16,0.75f,true);
+		for(Entry entry : adopted)
+		{
+			ordered.put(entry.name,entry);
+		}
+		ordered.putAll(entries);
+		entries = ordered;
+
+		compact();
+		System.err.println("Cache index: "+entries.size()+" masters, "+replayed+" log records, "
+						   +reclaimed+" files reclaimed, "+adopted.size()+" adopted in "
+						   +(System.nanoTime() - startNanos) / 1000000+" ms");
+	}
+
+	/**
+	 * @param  name file in the cache directory
+	 * @return  entry of a master named path_lastModified, null if the
+	 *          name is not one
+	 */
+	private Entry adopt(String name)
+	{
+		Matcher master = MASTERNAME.matcher(name);
+		if(!master.matches())
+		{
+			return null;
+		}
+		try
+		{
+			BasicFileAttributes attributes = Files.readAttributes(
+					Paths.get(cacheDirectory + name),BasicFileAttributes.class);
+			Entry entry = new Entry();
+			entry.path = master.group(1);
+			entry.name = name;
+			entry.version = Long.parseLong(master.group(2));
+			entry.size = attributes.size();
+			entry.localModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+			entry.fileKey = fileKey(attributes);
+			return entry;
+		}
+		catch(IOException | NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	private void readSnapshot(File snapshot)
+	{
+		if(!snapshot.exists())
+		{
+			return;
+		}
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+								 new FileInputStream(snapshot))))
+		{
+			byte[] content = new byte[(int)snapshot.length() - 8];
+			in.readFully(content);
+			long crc = in.readLong();
+			if(crc(content,0,content.length) != crc)
+			{
+				System.err.println("Cache index snapshot corrupt, ignored");
+				return;
+			}
+
+			DataInputStream data = new DataInputStream(new ByteArrayInputStream(content));
+			if(data.readInt() != SNAPSHOTMAGIC)
+			{
+				System.err.println("Cache index snapshot unknown, ignored");
+				return;
+			}
+			int count = data.readInt();
+			for(int index = 0; index < count; index++)
+			{
+				Entry entry = readEntry(data);
+				entries.put(entry.name,entry);
+			}
+			//downloads running at the time, missing in older snapshots
+			if(data.available() > 0)
+			{
+				int running = data.readInt();
+				for(int index = 0; index < running; index++)
+				{
+					fetching.add(data.readUTF());
+				}
+			}
+		}
+		catch(IOException | NegativeArraySizeException e)
+		{
+			e.printStackTrace();
+			System.err.println("Cache index snapshot unreadable, ignored");
+			entries.clear();
+			fetching.clear();
+		}
+	}
+
+	/**
+	 * Applies the log records up to the first torn or corrupt one.
+	 * Applying a record twice changes nothing, so a log that outlived a
+	 * compaction it was part of does no harm.
+	 * @return  records applied
+	 */
+	private int replayLog(File logPath)
+	{
+		int count = 0;
+		if(!logPath.exists())
+		{
+			return count;
+		}
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+								 new FileInputStream(logPath))))
+		{
+			while(true)
+			{
+				int length = in.readInt();
+				long crc = in.readLong();
+				if(length <= 0 || length > 1024 * 1024)
+				{
+					System.err.println("Cache index log corrupt, rest ignored");
+					break;
+				}
+				byte[] record = new byte[length];
+				in.readFully(record);
+				if(crc(record,0,length) != crc)
+				{
+					System.err.println("Cache index log record torn, rest ignored");
+					break;
+				}
+
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+				byte type = data.readByte();
+				if(type == PUT)
+				{
+					Entry entry = readEntry(data);
+					entries.put(entry.name,entry);
+					fetching.remove(entry.name);
+				}
+				else if(type == REMOVE)
+				{
+					String name = data.readUTF();
+					entries.remove(name);
+					fetching.remove(name);
+				}
+				else if(type == FETCH)
+				{
+					fetching.add(data.readUTF());
+				}
+				else if(type == ACCESS)
+				{
+					entries.get(data.readUTF());
+				}
+				count++;
+			}
+		}
+		catch(EOFException e)
+		{
+			//end, or a record torn by a crash
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		return count;
+	}
+
+	private static Entry readEntry(DataInputStream in) throws IOException
+	{
+		Entry entry = new Entry();
+		entry.path = in.readUTF();
+		entry.name = in.readUTF();
+		entry.version = in.readLong();
+		entry.size = in.readLong();
+		entry.fetchNanos = in.readLong();
+		entry.localModified = in.readLong();
+		entry.fileKey = in.readUTF();
+		return entry;
+	}
+
+	private static void writeEntry(DataOutputStream out,Entry entry) throws IOException
+	{
+		out.writeUTF(entry.path);
+		out.writeUTF(entry.name);
+		out.writeLong(entry.version);
+		out.writeLong(entry.size);
+		out.writeLong(entry.fetchNanos);
+		out.writeLong(entry.localModified);
+		out.writeUTF(entry.fileKey);
+	}
+
+	private static long crc(byte[] data,int offset,int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data,offset,length);
+		return crc.getValue();
+	}
+
+	/**
+	 * @param  entry
+	 * @return  true if the file is still the one that was indexed
+	 */
+	private boolean matches(Entry entry)
+	{
+		try
+		{
+			BasicFileAttributes attributes = Files.readAttributes(
+					Paths.get(cacheDirectory + entry.name),BasicFileAttributes.class);
+			return attributes.isRegularFile()
+				   && attributes.size() == entry.size
+				   && attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) == entry.localModified
+				   && fileKey(attributes).equals(entry.fileKey);
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+	}
+
+	private static String fileKey(BasicFileAttributes attributes)
+	{
+		Object key = attributes.fileKey();
+		return key == null ? "" : key.toString();
+	}
+
+	/**
+	 * Writes a snapshot of the entries and starts an empty log.
+	 */
+	private void compact() throws IOException
+	{
+		byte[] content;
+		synchronized(this)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeInt(SNAPSHOTMAGIC);
+			data.writeInt(entries.size());
+			for(Entry entry : entries.values())
+			{
+				writeEntry(data,entry);
+			}
+			data.writeInt(fetching.size());
+			for(String name : fetching)
+			{
+				data.writeUTF(name);
+			}
+			content = bytes.toByteArray();
+
+			//records from now on go to a new log, the old one stays
+			//until the snapshot holds what it says. If an earlier one is
+			//still kept, the snapshot that covers it was never written;
+			//both stay and the log goes on.
+			File current = new File(directory,LOGNAME);
+			File previous = new File(directory,PREVLOGNAME);
+			if(log != null)
+			{
+				log.close();
+			}
+			boolean append = previous.exists();
+			if(!append && current.exists())
+			{
+				Files.move(current.toPath(),previous.toPath(),StandardCopyOption.ATOMIC_MOVE);
+			}
+			logFile = new FileOutputStream(current,append);
+			log = new DataOutputStream(new BufferedOutputStream(logFile));
+			logRecords = 0;
+		}
+
+		File snapshot = new File(directory,SNAPSHOTNAME);
+		File compacted = new File(directory,SNAPSHOTNAME+".tmp");
+		try(FileOutputStream out = new FileOutputStream(compacted))
+		{
+			DataOutputStream file = new DataOutputStream(out);
+			file.write(content);
+			file.writeLong(crc(content,0,content.length));
+			file.flush();
+			out.getFD().sync();
+		}
+		Files.move(compacted.toPath(),snapshot.toPath(),StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		new File(directory,PREVLOGNAME).delete();
+	}
+
+	private void syncDirectory()
+	{
+		try(FileChannel dir = FileChannel.open(Paths.get(directory),StandardOpenOption.READ))
+		{
+			dir.force(true);
+		}
+		catch(IOException e)
+		{
+			//not supported everywhere, the snapshot sync still holds.
+		}
+	}
+
+	/**
+	 * @return  the masters found on start, oldest access first
+	 */
+	public synchronized ArrayList<Entry> getEntries()
+	{
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	/**
+	 * Adds a complete master. Its data is synced and the record appended
+	 * in the background, unless it is removed before.
+	 * @param info cache entry of the master
+	 */
+	public synchronized void add(final CachedFileInfo info)
+	{
+		pending.add(info);
+		worker.execute(new Runnable()
+		{
+			public void run()
+			{
+				Entry entry = new Entry();
+				entry.path = info.normalizedInputPath;
+				entry.name = new File(info.cachePath).getName();
+				entry.version = info.lastModifiedTime;
+				entry.fetchNanos = info.fetchNanos;
+				Path file = Paths.get(info.cachePath);
+				try
+				{
+					try(FileChannel channel = FileChannel.open(file,StandardOpenOption.READ))
+					{
+						channel.force(true);
+					}
+					BasicFileAttributes attributes = Files.readAttributes(file,BasicFileAttributes.class);
+					entry.size = attributes.size();
+					entry.localModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+					entry.fileKey = fileKey(attributes);
+				}
+				catch(IOException e)
+				{
+					//evicted meanwhile, most likely.
+					synchronized(CacheIndex.this)
+					{
+						pending.remove(info);
+					}
+					return;
+				}
+
+				synchronized(CacheIndex.this)
+				{
+					if(pending.remove(info))
+					{
+						entries.put(entry.name,entry);
+						fetching.remove(entry.name);
+						append(PUT,entry,null);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Drops an evicted master.
+	 * @param info
+	 */
+	public synchronized void removed(CachedFileInfo info)
+	{
+		pending.remove(info);
+		String name = new File(info.cachePath).getName();
+		boolean wasFetching = fetching.remove(name);
+		if(entries.remove(name) != null || wasFetching)
+		{
+			append(REMOVE,null,name);
+		}
+	}
+
+	/**
+	 * Records that a master is about to be downloaded, so that the file
+	 * is deleted on start if the proxy dies before it is added. Synced
+	 * before it returns.
+	 * @param info cache entry of the master
+	 */
+	public synchronized void fetching(CachedFileInfo info)
+	{
+		String name = new File(info.cachePath).getName();
+		if(fetching.add(name))
+		{
+			append(FETCH,null,name);
+			try
+			{
+				logFile.getFD().sync();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Marks a master as the most recently used. Queued without a lock,
+	 * see drainAccesses.
+	 * @param info
+	 */
+	public void accessed(CachedFileInfo info)
+	{
+		if(queuedAccesses.incrementAndGet() > MAXQUEUEDACCESSES)
+		{
+			queuedAccesses.decrementAndGet();
+			return;
+		}
+		accesses.offer(new File(info.cachePath).getName());
+		if(drainScheduled.compareAndSet(false,true))
+		{
+			worker.execute(new Runnable()
+			{
+				public void run()
+				{
+					drainAccesses();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Logs the queued accesses, once per master however often it was hit
+	 * since the last drain. Runs on the index thread.
+	 */
+	private void drainAccesses()
+	{
+		drainScheduled.set(false);
+		LinkedHashSet<String> names = new LinkedHashSet<String>();
+		String name;
+		while((name = accesses.poll()) != null)
+		{
+			queuedAccesses.decrementAndGet();
+			names.remove(name);
+			names.add(name);
+		}
+		synchronized(this)
+		{
+			for(String hit : names)
+			{
+				if(entries.get(hit) != null)
+				{
+					append(ACCESS,null,hit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends one record. Written through to the OS, not synced.
+	 */
+	private void append(byte type,Entry entry,String name)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream record = new DataOutputStream(bytes);
+			record.writeByte(type);
+			if(type == PUT)
+			{
+				writeEntry(record,entry);
+			}
+			else
+			{
+				record.writeUTF(name);
+			}
+			byte[] content = bytes.toByteArray();
+			log.writeInt(content.length);
+			log.writeLong(crc(content,0,content.length));
+			log.write(content);
+			log.flush();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			System.err.println("Cache index log write failed");
+		}
+
+		logRecords++;
+		if(!compacting && logRecords > Math.max(MINCOMPACTRECORDS,2 * entries.size()))
+		{
+			compacting = true;
+			worker.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						compact();
+					}
+					catch(IOException e)
+					{
+						e.printStackTrace();
+					}
+					synchronized(CacheIndex.this)
+					{
+						compacting = false;
+					}
+				}
+			});
+		}
+	}
+}
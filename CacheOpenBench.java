@@ -0,0 +1,110 @@
+import java.util.Random;
+
+/**
+ * Benchmark of the cache work of an open as the number of entries grows:
+ * acquire, makeMRU and release of a random cached master, and the
+ * eviction that makes room for a new file when the cache is full.
+ * With a constant time recency list neither grows with the entry count
+ * beyond what memory locality costs; a scanned list grows linearly.
+ *
+ * Usage: java CacheOpenBench [entries...]
+ */
+public class CacheOpenBench
+{
+	private static final long FILESIZE = 4096;
+	private static final int OPENS = 500000;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * Fills a cache with read only masters that exist only in the cache.
+	 * The paths are in an empty directory, evicting them deletes nothing.
+	 * @param  entries
+	 * @param  directory
+	 * @return  cache filled to its limit
+	 */
+	private static Cache fill(int entries,String directory)
+	{
+		Cache cache = new Cache(entries * FILESIZE);
+		for(int index = 0; index < entries; index++)
+		{
+			CachedFileInfo info = BenchHarness.master(directory + "/f" + index,FILESIZE);
+			cache.putInCache(info.cachePath,info);
+			cache.makeMRU(info);
+		}
+		return cache;
+	}
+
+	/**
+	 * @return  nanoseconds per open of a random entry
+	 */
+	private static double timeOpens(Cache cache,int entries,String directory)
+	{
+		Random random = new Random(1);
+		String[] paths = new String[OPENS];
+		for(int index = 0; index < OPENS; index++)
+		{
+			paths[index] = directory + "/f" + random.nextInt(entries);
+		}
+
+		long start = System.nanoTime();
+		for(String path : paths)
+		{
+			CachedFileInfo info = cache.acquire(path);
+			cache.makeMRU(info);
+			cache.release(info);
+		}
+		return (System.nanoTime() - start) / (double)OPENS;
+	}
+
+	/**
+	 * Admits new files into the full cache, each evicting an old one.
+	 * @return  nanoseconds per admission
+	 */
+	private static double timeEvictions(Cache cache,int entries,String directory)
+	{
+		int count = Math.min(entries,OPENS / 10);
+		long start = System.nanoTime();
+		for(int index = 0; index < count; index++)
+		{
+			String path = directory + "/new" + index;
+			if(cache.admit(path,FILESIZE) != Cache.ADMITTED)
+			{
+				throw new IllegalStateException("Not admitted:"+path);
+			}
+			CachedFileInfo info = BenchHarness.master(path,FILESIZE);
+			cache.putInCache(path,info,FILESIZE);
+			cache.makeMRU(info);
+		}
+		return (System.nanoTime() - start) / (double)count;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int[] sizes = {1000,10000,100000,200000};
+		if(args.length > 0)
+		{
+			sizes = new int[args.length];
+			for(int index = 0; index < args.length; index++)
+			{
+				sizes[index] = Integer.parseInt(args[index]);
+			}
+		}
+
+		String directory = BenchHarness.setUp("openbench").toString();
+
+		for(int entries : sizes)
+		{
+			double open = Double.MAX_VALUE;
+			double evict = Double.MAX_VALUE;
+			for(int round = 0; round < ROUNDS; round++)
+			{
+				Cache cache = fill(entries,directory);
+				open = Math.min(open,timeOpens(cache,entries,directory));
+				evict = Math.min(evict,timeEvictions(cache,entries,directory));
+			}
+			System.out.printf("%8d entries: open %6.0f ns, admit with eviction %6.0f ns%n",
+							  entries,open,evict);
+		}
+		new java.io.File(directory).delete();
+	}
+}
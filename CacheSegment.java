@@ -0,0 +1,191 @@
+import java.util.HashMap;
+
+/**
+ * One stripe of the proxy Cache. Holds its own map and eviction policy
+ * state and is guarded by its own monitor, so that operations on files
+ * that hash to different segments never wait on each other.
+ *
+ * Size accounting and disk deletes are done by Cache, outside this lock.
+ */
+public class CacheSegment
+{
+	//cachePath vs info for the files in this segment.
+	private HashMap<String,CachedFileInfo> fileInfoMap;
+
+	//usage order of the files in this segment.
+	private EvictionPolicy policy;
+
+	/**
+	 * Constructor
+	 * @param  segmentPolicy eviction policy of this segment
+	 */
+	public CacheSegment(EvictionPolicy segmentPolicy)
+	{
+		this.fileInfoMap = new HashMap<String,CachedFileInfo>();
+		this.policy = segmentPolicy;
+	}
+
+	/**
+	 * Gets the file info object from the segment
+	 * @param  cachePath file-cache path
+	 * @return  info or null
+	 */
+	public synchronized CachedFileInfo get(String cachePath)
+	{
+		return fileInfoMap.get(cachePath);
+	}
+
+	/**
+	 * Puts the info in the segment.
+	 * @param  cachePath
+	 * @param  file
+	 * @return  the info that was replaced, null if none.
+	 */
+	public synchronized CachedFileInfo put(String cachePath, CachedFileInfo file)
+	{
+		CachedFileInfo old = fileInfoMap.put(cachePath,file);
+		if(old != file)
+		{
+			if(old != null)
+			{
+				policy.onRemove(old);
+			}
+			policy.onInsert(file);
+		}
+		return old;
+	}
+
+	/**
+	 * Removes the info from the segment.
+	 * @param  cachePath
+	 * @return  the removed info, null if it wasn't there.
+	 */
+	public synchronized CachedFileInfo remove(String cachePath)
+	{
+		CachedFileInfo info = fileInfoMap.remove(cachePath);
+		if(info != null)
+		{
+			policy.onRemove(info);
+		}
+		return info;
+	}
+
+	/**
+	 * Adds bytes to the size of a file still in the segment.
+	 * @param  file
+	 * @param  bytes
+	 * @return  false if it was removed
+	 */
+	public synchronized boolean grow(CachedFileInfo file,long bytes)
+	{
+		if(fileInfoMap.get(file.cachePath) != file)
+		{
+			return false;
+		}
+		file.fileSize += bytes;
+		return true;
+	}
+
+	/**
+	 * Gets the file info and adds a reader to it, so it cannot be evicted
+	 * until released.
+	 * @param  cachePath file-cache path
+	 * @return  info or null
+	 */
+	public synchronized CachedFileInfo acquire(String cachePath)
+	{
+		CachedFileInfo info = fileInfoMap.get(cachePath);
+		if(info != null)
+		{
+			info.incrReaderCount();
+		}
+		return info;
+	}
+
+	/**
+	 * Drops a reader added by acquire.
+	 * @param  file
+	 * @return  readers left
+	 */
+	public synchronized int release(CachedFileInfo file)
+	{
+		file.decrReaderCount();
+		return file.readerCount;
+	}
+
+	/**
+	 * Removes a read only file that has no readers.
+	 * @param  cachePath
+	 * @return  the removed info, null if it is missing or in use.
+	 */
+	public synchronized CachedFileInfo removeIfUnused(String cachePath)
+	{
+		CachedFileInfo info = fileInfoMap.get(cachePath);
+		if(info == null || !info.isReadOnly || info.readerCount != 0)
+		{
+			return null;
+		}
+		fileInfoMap.remove(cachePath);
+		policy.onRemove(info);
+		return info;
+	}
+
+	/**
+	 * Makes the file as the most recently used.
+	 * @param file fileInfo
+	 */
+	public synchronized void makeMRU(CachedFileInfo file)
+	{
+		// Already evicted, don't resurrect it.
+		if(fileInfoMap.get(file.cachePath) != file)
+		{
+			return;
+		}
+		policy.onAccess(file);
+	}
+
+	/**
+	 * Counts a request for the cache path.
+	 * @param cachePath
+	 */
+	public synchronized void recordRequest(String cachePath)
+	{
+		policy.recordRequest(cachePath,fileInfoMap.get(cachePath));
+	}
+
+	/**
+	 * @param  cachePath
+	 * @return  estimated request count
+	 */
+	public synchronized int frequency(String cachePath)
+	{
+		return policy.frequency(cachePath);
+	}
+
+	/**
+	 * Removes the next victim of the policy if it loses against the
+	 * incoming file.
+	 * @param  candidateFrequency frequency of the incoming file, or -1 to
+	 *                            evict without an admission check.
+	 * @param  rejected           set to true when the victim won.
+	 * @return  the removed info, null if nothing was evicted.
+	 */
+	public synchronized CachedFileInfo removeVictim(int candidateFrequency,boolean[] rejected)
+	{
+		CachedFileInfo victim = policy.victim();
+		if(victim == null)
+		{
+			return null;
+		}
+
+		if(candidateFrequency >= 0 && !policy.admit(candidateFrequency,victim))
+		{
+			rejected[0] = true;
+			return null;
+		}
+
+		fileInfoMap.remove(victim.cachePath);
+		policy.onEvict(victim);
+		return victim;
+	}
+}
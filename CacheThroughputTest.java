@@ -0,0 +1,120 @@
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-threaded throughput test of the cache. Every client thread opens
+ * random masters, mostly hits, and admits a new file on a miss, evicting
+ * others to make room. The client count doubles up to twice the cores;
+ * on a segmented cache the hits of one client do not wait on the misses
+ * of another, so throughput scales with the cores.
+ *
+ * Fails if the cache ends up over its limit, which concurrent misses
+ * would do without reserving the bytes they are admitted for.
+ *
+ * Usage: java CacheThroughputTest [maxClients] [millis]
+ */
+public class CacheThroughputTest
+{
+	private static final int ENTRIES = 50000;
+	private static final long FILESIZE = 4096;
+	//one open in MISSRATE is for a file not cached yet
+	private static final int MISSRATE = 10;
+
+	/**
+	 * Runs the clients against a full cache for a while.
+	 * @return  opens per second
+	 */
+	private static double run(final int clients,long millis,final String directory)
+		throws InterruptedException
+	{
+		final Cache cache = new Cache(ENTRIES * FILESIZE);
+		for(int index = 0; index < ENTRIES; index++)
+		{
+			CachedFileInfo info = BenchHarness.master(directory + "/f" + index,FILESIZE);
+			cache.putInCache(info.cachePath,info);
+			cache.makeMRU(info);
+		}
+
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final LongAdder opens = new LongAdder();
+		final CountDownLatch done = new CountDownLatch(clients);
+		for(int client = 0; client < clients; client++)
+		{
+			final int seed = client;
+			Thread thread = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					Random random = new Random(seed);
+					int newFiles = 0;
+					while(!stop.get())
+					{
+						String path;
+						if(random.nextInt(MISSRATE) == 0)
+						{
+							path = directory + "/c" + seed + "_" + (newFiles++);
+						}
+						else
+						{
+							path = directory + "/f" + random.nextInt(ENTRIES);
+						}
+
+						CachedFileInfo info = cache.acquire(path);
+						if(info == null)
+						{
+							if(cache.admit(path,FILESIZE) != Cache.ADMITTED)
+							{
+								continue;
+							}
+							info = BenchHarness.master(path,FILESIZE);
+							info.readerCount = 1;
+							cache.putInCache(path,info,FILESIZE);
+						}
+						cache.makeMRU(info);
+						cache.release(info);
+						opens.increment();
+					}
+					done.countDown();
+				}
+			},"client-"+client);
+			thread.start();
+		}
+
+		Thread.sleep(millis);
+		stop.set(true);
+		done.await();
+
+		if(!cache.isThereCacheSpace(0))
+		{
+			System.out.println("FAIL: cache over its limit with "+clients+" clients");
+			System.exit(1);
+		}
+		return opens.sum() * 1000.0 / millis;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		int maxClients = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(2 * cores,4);
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+		String directory = BenchHarness.setUp("throughput").toString();
+
+		System.out.println(cores+" cores");
+		//warm up the compiler before any count is taken
+		run(maxClients,millis,directory);
+		double single = 0;
+		for(int clients = 1; clients <= maxClients; clients *= 2)
+		{
+			double rate = run(clients,millis,directory);
+			if(clients == 1)
+			{
+				single = rate;
+			}
+			System.out.printf("%3d clients: %10.0f opens/s, %.2fx one client%n",clients,rate,rate / single);
+		}
+		new java.io.File(directory).delete();
+	}
+}
@@ -17,12 +17,37 @@ public class CachedFileInfo implements Serializable
 
 	public long fileSize ;
 	public long lastModifiedTime;
+	//read lease granted with this info, 0 if none.
+	public long leaseMillis;
+	//valid until the server calls back, see CallbackRegistry.
+	public boolean isCallbackLease;
 	
 
 	public boolean isDir;
 	public boolean isModified;
 	public boolean isInUse;
 	public boolean isReadOnly;
+
+	// Links for the cache usage lists. Owned by Cache, never sent over RMI.
+	transient CachedFileInfo lruPrev;
+	transient CachedFileInfo lruNext;
+	transient UsageList owningList;
+	transient long listedSize;
+
+	// Cost aware eviction state, see GDSFPolicy.
+	transient long fetchNanos;
+	transient int requestCount;
+	transient double priority;
+	transient long prioritySeq;
+
+	// Master kept as a manifest in the BlockStore, its bytes are counted
+	// there. Never copied, private copies are plain files.
+	transient boolean isStored;
+
+	// Master kept compressed, see CompressedFile. The cache counts its
+	// diskSize, fileSize stays the size of the content. Never copied.
+	transient boolean isCompressed;
+	transient long diskSize;
 	
 	/**
 	 * Constructor
@@ -35,6 +60,8 @@ public class CachedFileInfo implements Serializable
 
 		fileSize   =  -1;
 		lastModifiedTime =-1;
+		leaseMillis = 0;
+		isCallbackLease = false;
 
 		isDir = false;
 		isModified = false;
@@ -65,6 +92,8 @@ public class CachedFileInfo implements Serializable
 
 		this.fileSize =other.fileSize;
 		this.lastModifiedTime=other.lastModifiedTime;
+		this.leaseMillis=other.leaseMillis;
+		this.isCallbackLease=other.isCallbackLease;
 		
 
 		this.isDir=other.isDir;
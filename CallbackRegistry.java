@@ -0,0 +1,219 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server side list of proxies that take invalidation callbacks.
+ *
+ * A registered proxy trusts the files it got from getFileInfo until it is
+ * told they changed, for as long as it keeps renewing within leaseMillis.
+ * Invalidations for the same proxy are collected for batchMillis and sent
+ * in one call. If a callback fails the proxy is dropped; it learns that on
+ * its next renewal and goes back to validating every open, and writers
+ * wait until its last renewal has run out instead.
+ */
+public class CallbackRegistry
+{
+	/**
+	 * A registered proxy.
+	 */
+	private static class ProxyEntry
+	{
+		int id;
+		RemoteInvalidatable callback;
+		volatile long lastRenewMillis;
+		volatile boolean alive;
+
+		//path vs writers waiting for it to be delivered, guarded by entry.
+		HashMap<String,ArrayList<CompletableFuture<Boolean>>> pending;
+		boolean flushScheduled;
+	}
+
+	private ConcurrentHashMap<Integer,ProxyEntry> proxies;
+	private AtomicInteger nextId;
+	private long leaseMillis;
+	private long batchMillis;
+	private ScheduledExecutorService sender;
+
+	/**
+	 * Constructor
+	 * @param  lease how long a proxy trusts its files without renewing
+	 * @param  batch how long invalidations are collected before sending
+	 */
+	public CallbackRegistry(long lease,long batch)
+	{
+		this.proxies = new ConcurrentHashMap<Integer,ProxyEntry>();
+		this.nextId = new AtomicInteger(1);
+		this.leaseMillis = lease;
+		this.batchMillis = batch;
+		this.sender = Executors.newScheduledThreadPool(2,r ->
+		{
+			Thread thread = new Thread(r,"invalidation-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @param  callback exported by the proxy
+	 * @return  id the proxy passes with getFileInfo and renewals.
+	 */
+	public int register(RemoteInvalidatable callback)
+	{
+		ProxyEntry entry = new ProxyEntry();
+		entry.id = nextId.getAndIncrement();
+		entry.callback = callback;
+		entry.lastRenewMillis = System.currentTimeMillis();
+		entry.alive = true;
+		entry.pending = new HashMap<String,ArrayList<CompletableFuture<Boolean>>>();
+		entry.flushScheduled = false;
+		proxies.put(entry.id,entry);
+		System.err.println("Callback registered:"+entry.id);
+		return entry.id;
+	}
+
+	/**
+	 * @param  proxyId 
+	 * @return  lease the proxy may trust from now, 0 if it was dropped.
+	 */
+	public long renew(int proxyId)
+	{
+		ProxyEntry entry = proxies.get(proxyId);
+		if(entry == null || !entry.alive)
+		{
+			return 0;
+		}
+		entry.lastRenewMillis = System.currentTimeMillis();
+		return leaseMillis;
+	}
+
+	public boolean isAlive(int proxyId)
+	{
+		ProxyEntry entry = proxies.get(proxyId);
+		return entry != null && entry.alive;
+	}
+
+	/**
+	 * Tells the proxies the file changed and waits until each one has
+	 * dropped it, or until a failed proxy's trust has run out.
+	 * @param normalizedPath path as the proxies know it
+	 * @param holders        ids of the proxies that cached it
+	 */
+	public void invalidate(String normalizedPath,Set<Integer> holders)
+	{
+		HashMap<ProxyEntry,CompletableFuture<Boolean>> waits
+					= new HashMap<ProxyEntry,CompletableFuture<Boolean>>();
+		for(Integer id : holders)
+		{
+			ProxyEntry entry = proxies.get(id);
+			if(entry != null)
+			{
+				waits.put(entry,enqueue(entry,normalizedPath));
+			}
+		}
+
+		for(Map.Entry<ProxyEntry,CompletableFuture<Boolean>> wait : waits.entrySet())
+		{
+			if(!wait.getValue().join())
+			{
+				awaitTrustExpiry(wait.getKey());
+			}
+		}
+	}
+
+	private CompletableFuture<Boolean> enqueue(final ProxyEntry entry,String normalizedPath)
+	{
+		CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		if(!entry.alive)
+		{
+			future.complete(false);
+			return future;
+		}
+
+		synchronized(entry)
+		{
+			ArrayList<CompletableFuture<Boolean>> list = entry.pending.get(normalizedPath);
+			if(list == null)
+			{
+				list = new ArrayList<CompletableFuture<Boolean>>();
+				entry.pending.put(normalizedPath,list);
+			}
+			list.add(future);
+
+			if(!entry.flushScheduled)
+			{
+				entry.flushScheduled = true;
+				sender.schedule(() -> flush(entry),batchMillis,TimeUnit.MILLISECONDS);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Sends everything pending for the proxy in one callback.
+	 * @param entry
+	 */
+	private void flush(ProxyEntry entry)
+	{
+		HashMap<String,ArrayList<CompletableFuture<Boolean>>> batch;
+		synchronized(entry)
+		{
+			batch = entry.pending;
+			entry.pending = new HashMap<String,ArrayList<CompletableFuture<Boolean>>>();
+			entry.flushScheduled = false;
+		}
+
+		boolean delivered = false;
+		if(entry.alive)
+		{
+			try
+			{
+				entry.callback.invalidate(batch.keySet().toArray(new String[0]));
+				delivered = true;
+			}
+			catch(RemoteException e)
+			{
+				System.err.println("Callback failed, dropping proxy:"+entry.id);
+				entry.alive = false;
+			}
+		}
+
+		for(ArrayList<CompletableFuture<Boolean>> list : batch.values())
+		{
+			for(CompletableFuture<Boolean> future : list)
+			{
+				future.complete(delivered);
+			}
+		}
+	}
+
+	/**
+	 * Waits until a proxy that could not be told stops trusting its files.
+	 * @param entry
+	 */
+	private void awaitTrustExpiry(ProxyEntry entry)
+	{
+		long wait = entry.lastRenewMillis + leaseMillis - System.currentTimeMillis();
+		while(wait > 0)
+		{
+			try
+			{
+				Thread.sleep(wait);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			wait = entry.lastRenewMillis + leaseMillis - System.currentTimeMillis();
+		}
+	}
+}
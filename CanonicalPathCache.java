@@ -0,0 +1,89 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of client path vs canonical server path, so that the chunks
+ * of a transfer resolve their path through the kernel once instead of on
+ * every call.
+ *
+ * Only paths that passed the root containment check are stored, with the
+ * file key of the file they named. A lookup passes the key the client path
+ * resolves to now, and an entry whose file is no longer the same one, say
+ * because a directory on the way was swapped for a symlink, is dropped.
+ * Entries also expire after a while, and the server clears the cache
+ * itself when it changes the tree.
+ */
+public class CanonicalPathCache
+{
+	private static class Entry
+	{
+		String canonicalPath;
+		Object fileKey;
+		long resolvedMillis;
+	}
+
+	private LinkedHashMap<String,Entry> paths;
+	private long maxAgeMillis;
+
+	/**
+	 * Constructor
+	 * @param  capacity  paths kept
+	 * @param  maxAge    millis an entry is trusted
+	 */
+	public CanonicalPathCache(final int capacity,long maxAge)
+	{
+		this.maxAgeMillis = maxAge;
+		this.paths = new LinkedHashMap<String,Entry>(16,0.75f,true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param  filePath client path
+	 * @param  fileKey  key of the file the client path resolves to now
+	 * @return  canonical path, or null if unknown, expired or of another
+	 *          file.
+	 */
+	public synchronized String get(String filePath,Object fileKey)
+	{
+		Entry entry = paths.get(filePath);
+		if(entry == null)
+		{
+			return null;
+		}
+		if(System.currentTimeMillis() - entry.resolvedMillis > maxAgeMillis
+		   || !entry.fileKey.equals(fileKey))
+		{
+			paths.remove(filePath);
+			return null;
+		}
+		return entry.canonicalPath;
+	}
+
+	/**
+	 * Remembers a validated path.
+	 * @param filePath      client path
+	 * @param canonicalPath its canonical path inside the root
+	 * @param fileKey       key of the file it resolved to, not null
+	 */
+	public synchronized void put(String filePath,String canonicalPath,Object fileKey)
+	{
+		Entry entry = new Entry();
+		entry.canonicalPath = canonicalPath;
+		entry.fileKey = fileKey;
+		entry.resolvedMillis = System.currentTimeMillis();
+		paths.put(filePath,entry);
+	}
+
+	/**
+	 * Forgets every path, after the directory structure changed.
+	 */
+	public synchronized void clear()
+	{
+		paths.clear();
+	}
+}
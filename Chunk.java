@@ -1,16 +1,102 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
  * Chunk: Contains the file chunk with metadata.
+ *
+ * Only the size valid bytes of the buffer go over the wire, compressed
+ * with codec if they shrink, see ChunkCodec. A pooled chunk owns a
+ * ChunkBufferPool buffer and hands it back once written out or consumed,
+ * see ChunkBufferPool.release(Chunk).
  */
 public class Chunk implements Serializable
 {
 	public byte[] buffer;
 	public int size;
-	public int offset;
+	public long offset;
+	public transient boolean pooled;
+	//codec to send with; once sent or received, the one used
+	public transient byte codec;
+	//bytes on the wire and nanos spent compressing or decompressing
+	public transient int wireSize;
+	public transient long codecNanos;
+
 	public Chunk()
 	{
 		offset = 0;
 		size = 0 ;
+		pooled = false;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.writeLong(offset);
+		out.writeInt(size);
+		if(size > 0)
+		{
+			long start = System.nanoTime();
+			byte[] packed = codec == ChunkCodec.NONE ? null : ChunkBufferPool.shared().borrow(size);
+			try
+			{
+				wireSize = ChunkCodec.compress(codec,buffer,size,packed);
+				codecNanos = System.nanoTime() - start;
+				if(wireSize < 0)
+				{
+					codec = ChunkCodec.NONE;
+					wireSize = size;
+					out.writeByte(codec);
+					out.write(buffer,0,size);
+				}
+				else
+				{
+					out.writeByte(codec);
+					out.writeInt(wireSize);
+					out.write(packed,0,wireSize);
+				}
+			}
+			finally
+			{
+				if(packed != null)
+				{
+					ChunkBufferPool.shared().release(packed);
+				}
+			}
+		}
+		//sent, the sender is done with it.
+		ChunkBufferPool.release(this);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException
+	{
+		offset = in.readLong();
+		size = in.readInt();
+		if(size > 0)
+		{
+			codec = in.readByte();
+			buffer = ChunkBufferPool.shared().borrow(size);
+			pooled = true;
+			if(codec == ChunkCodec.NONE)
+			{
+				wireSize = size;
+				in.readFully(buffer,0,size);
+				return;
+			}
+
+			wireSize = in.readInt();
+			byte[] packed = ChunkBufferPool.shared().borrow(wireSize);
+			try
+			{
+				in.readFully(packed,0,wireSize);
+				long start = System.nanoTime();
+				ChunkCodec.decompress(packed,0,wireSize,buffer,size);
+				codecNanos = System.nanoTime() - start;
+			}
+			finally
+			{
+				ChunkBufferPool.shared().release(packed);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,146 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Allocation check of the chunk transfer paths. Downloads a file and
+ * uploads one the way the proxy does, as a staged upload, over both
+ * transports against a server in this process; first to fill the buffer
+ * pool, then again while counting what every thread allocates.
+ *
+ * Fails if the pool has to make a buffer in the steady state, or if the
+ * NIO paths, which copy nothing, allocate more than a tenth of the bytes
+ * they move. RMI is reported only; its connection threads come and go,
+ * so what they allocate is not all counted.
+ *
+ * Usage: java ChunkAllocationCheck [rmiPort]
+ * The NIO server listens on rmiPort + 1.
+ */
+public class ChunkAllocationCheck
+{
+	private static final int FILESIZE = 64 * 1024 * 1024;
+	private static final int CHUNKSIZE = 1024 * 1024;
+	private static final int INFLIGHT = 4;
+	private static final int WARMUPS = 2;
+	private static final double MAXNIOALLOCATED = 0.1;
+
+	private static com.sun.management.ThreadMXBean threads
+		= (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	/**
+	 * @return  bytes allocated so far by the live threads
+	 */
+	private static long allocatedBytes()
+	{
+		long total = 0;
+		for(long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+		{
+			if(bytes > 0)
+			{
+				total += bytes;
+			}
+		}
+		return total;
+	}
+
+	private static void download(RemoteCallable server,String cachePath,ExecutorService pool)
+		throws Exception
+	{
+		ChunkSizer sizer = new ChunkSizer(CHUNKSIZE,INFLIGHT * CHUNKSIZE,INFLIGHT,
+										  new TransferMetrics("check download"));
+		CachedFileInfo info = server.getFileInfo("big",FileHandling.OpenOption.READ);
+		new ChunkDownloader(server,"big",cachePath,FILESIZE,info.lastModifiedTime,
+							INFLIGHT,sizer).download(pool);
+	}
+
+	private static void upload(RemoteCallable server) throws Exception
+	{
+		long uploadId = server.beginUpload("up",-1);
+		if(uploadId < 0)
+		{
+			throw new IllegalStateException("Upload not started");
+		}
+		Chunk chunk = new Chunk();
+		chunk.buffer = ChunkBufferPool.shared().borrow(CHUNKSIZE);
+		chunk.size = CHUNKSIZE;
+		try
+		{
+			for(long offset = 0; offset < FILESIZE; offset += CHUNKSIZE)
+			{
+				chunk.offset = offset;
+				chunk.codec = ChunkCodec.NONE;
+				if(!server.uploadChunk(uploadId,chunk))
+				{
+					throw new IllegalStateException("Upload failed at "+offset);
+				}
+			}
+		}
+		finally
+		{
+			ChunkBufferPool.shared().release(chunk.buffer);
+		}
+		if(server.commitUpload(uploadId,FILESIZE) < 0)
+		{
+			throw new IllegalStateException("Upload not committed");
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 15440;
+
+		Path serverDir = BenchHarness.setUp("allocation");
+		Files.write(serverDir.resolve("big"),new byte[FILESIZE]);
+		Path cacheFile = Files.createTempFile("allocation",".bin");
+
+		RemoteCallable rmi = BenchHarness.startServer(port,serverDir);
+		RemoteCallable nio = new NioClient("127.0.0.1",port + 1,rmi);
+		String[] names = {"rmi","nio"};
+		RemoteCallable[] transports = {rmi,nio};
+		ExecutorService pool = Executors.newFixedThreadPool(INFLIGHT);
+
+		boolean failed = false;
+		for(int index = 0; index < transports.length; index++)
+		{
+			for(int warmup = 0; warmup < WARMUPS; warmup++)
+			{
+				download(transports[index],cacheFile.toString(),pool);
+				upload(transports[index]);
+			}
+
+			long buffersMade = ChunkBufferPool.shared().getAllocations();
+			long start = allocatedBytes();
+			download(transports[index],cacheFile.toString(),pool);
+			long downloaded = allocatedBytes() - start;
+			start = allocatedBytes();
+			upload(transports[index]);
+			long uploaded = allocatedBytes() - start;
+			buffersMade = ChunkBufferPool.shared().getAllocations() - buffersMade;
+
+			double megabytes = FILESIZE / (1024.0 * 1024);
+			System.out.printf("%s: download %7.1f KB/MB, upload %7.1f KB/MB allocated, %d pool buffers made%n",
+							  names[index],downloaded / 1024.0 / megabytes,uploaded / 1024.0 / megabytes,
+							  buffersMade);
+
+			if(buffersMade > 0)
+			{
+				System.out.println("FAIL: "+names[index]+" made pool buffers in the steady state");
+				failed = true;
+			}
+			if(transports[index] == nio && Math.max(downloaded,uploaded) > MAXNIOALLOCATED * FILESIZE)
+			{
+				System.out.println("FAIL: nio allocates on the transfer path");
+				failed = true;
+			}
+		}
+
+		new File(serverDir.toFile(),"big").delete();
+		new File(serverDir.toFile(),"up").delete();
+		serverDir.toFile().delete();
+		cacheFile.toFile().delete();
+		System.exit(failed ? 1 : 0);
+	}
+}
@@ -0,0 +1,141 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Free lists of chunk buffers, shared by the proxy and the server transfer
+ * paths, so that moving a file does not allocate an array per chunk.
+ *
+ * Chunk sizes vary, so buffers come in power of two size classes from
+ * MINCLASSSIZE to MAXCLASSSIZE. Every buffer has FRAMESLACK bytes beyond
+ * its class so that a whole NIO frame carrying a chunk fits in one too.
+ *
+ * Borrowing never blocks: when a list is empty a new buffer is made.
+ * Given back buffers are kept while the pool holds less than maxBytes.
+ */
+public class ChunkBufferPool
+{
+	public static final int MINCLASSSHIFT = 16;
+	public static final int MAXCLASSSHIFT = 23;
+	public static final int MINCLASSSIZE = 1 << MINCLASSSHIFT;
+	public static final int MAXCLASSSIZE = 1 << MAXCLASSSHIFT;
+	//room for the frame header and path of an NIO chunk frame.
+	public static final int FRAMESLACK = 8 * 1024;
+
+	//bytes kept for reuse, passed as a -D system property.
+	private static final long RETAINEDBYTES = Long.getLong("chunkPool.maxBytes",64L * 1024 * 1024);
+
+	private static ChunkBufferPool shared = new ChunkBufferPool(RETAINEDBYTES);
+
+	//free buffers of each size class.
+	private ConcurrentLinkedQueue<byte[]>[] freeBuffers;
+	private AtomicLong freeBytes;
+	private long maxBytes;
+
+	//buffers made because the list was empty, for tuning.
+	private AtomicLong allocations;
+
+	/**
+	 * Constructor
+	 * @param  retainedBytes bytes kept for reuse
+	 */
+	@SuppressWarnings("unchecked")
+	public ChunkBufferPool(long retainedBytes)
+	{
+		this.freeBuffers = (ConcurrentLinkedQueue<byte[]>[])new ConcurrentLinkedQueue<?>[MAXCLASSSHIFT - MINCLASSSHIFT + 1];
+		for(int index = 0; index < freeBuffers.length; index++)
+		{
+			freeBuffers[index] = new ConcurrentLinkedQueue<byte[]>();
+		}
+		this.freeBytes = new AtomicLong();
+		this.maxBytes = retainedBytes;
+		this.allocations = new AtomicLong();
+	}
+
+	/**
+	 * @return  the pool of this JVM
+	 */
+	public static ChunkBufferPool shared()
+	{
+		return shared;
+	}
+
+	/**
+	 * @param  size
+	 * @return  index of the smallest class holding size bytes, -1 if none.
+	 */
+	private static int classOf(int size)
+	{
+		int payload = Math.max(size - FRAMESLACK,1);
+		if(payload > MAXCLASSSIZE)
+		{
+			return -1;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(payload - 1);
+		return Math.max(shift,MINCLASSSHIFT) - MINCLASSSHIFT;
+	}
+
+	/**
+	 * Gets a buffer of at least size bytes.
+	 * @param  size
+	 * @return  buffer, possibly with old contents
+	 */
+	public byte[] borrow(int size)
+	{
+		int index = classOf(size);
+		if(index < 0)
+		{
+			return new byte[size];
+		}
+
+		byte[] buffer = freeBuffers[index].poll();
+		if(buffer != null)
+		{
+			freeBytes.addAndGet(-buffer.length);
+			return buffer;
+		}
+		allocations.incrementAndGet();
+		return new byte[(MINCLASSSIZE << index) + FRAMESLACK];
+	}
+
+	/**
+	 * Gives a buffer back. Buffers not made by the pool are ignored.
+	 * @param buffer
+	 */
+	public void release(byte[] buffer)
+	{
+		if(buffer == null)
+		{
+			return;
+		}
+		int index = classOf(buffer.length);
+		if(index < 0 || buffer.length != (MINCLASSSIZE << index) + FRAMESLACK)
+		{
+			return;
+		}
+		if(freeBytes.addAndGet(buffer.length) > maxBytes)
+		{
+			freeBytes.addAndGet(-buffer.length);
+			return;
+		}
+		freeBuffers[index].offer(buffer);
+	}
+
+	/**
+	 * Gives back the buffer of a pooled chunk; others are left alone.
+	 * @param chunk
+	 */
+	public static void release(Chunk chunk)
+	{
+		if(chunk != null && chunk.pooled)
+		{
+			chunk.pooled = false;
+			shared.release(chunk.buffer);
+			chunk.buffer = null;
+		}
+	}
+
+	public long getAllocations()
+	{
+		return allocations.get();
+	}
+}
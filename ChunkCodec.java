@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of chunk bytes on the wire.
+ *
+ * The sender of a chunk picks the codec and tags the chunk with it, the
+ * receiver decodes whatever codec the tag says, so either end may turn
+ * compression on by itself. Codecs are deflate levels, the JDK has
+ * nothing faster: FAST is BEST_SPEED, STRONG the default level.
+ *
+ * Chunks that do not shrink go raw. A large chunk is judged by its first
+ * SAMPLESIZE bytes, so an incompressible one costs one small deflate, not
+ * a whole one.
+ */
+public class ChunkCodec
+{
+	public static final byte NONE = 0;
+	public static final byte FAST = 1;
+	public static final byte STRONG = 2;
+
+	//chunks smaller than this are not worth compressing
+	public static final int MINSIZE = 512;
+	public static final int SAMPLESIZE = 16 * 1024;
+	//compressed over raw size above which the chunk goes raw
+	public static final double SKIPRATIO = 0.9;
+
+	//zlib state is large, every thread keeps its own
+	private static ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>()
+	{
+		protected Deflater[] initialValue()
+		{
+			return new Deflater[]{null,new Deflater(Deflater.BEST_SPEED),
+								  new Deflater(Deflater.DEFAULT_COMPRESSION)};
+		}
+	};
+	private static ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>()
+	{
+		protected Inflater initialValue()
+		{
+			return new Inflater();
+		}
+	};
+
+	/**
+	 * @param  name none, fast or strong
+	 * @return  codec
+	 */
+	public static byte parse(String name)
+	{
+		if("fast".equalsIgnoreCase(name))
+		{
+			return FAST;
+		}
+		if("strong".equalsIgnoreCase(name))
+		{
+			return STRONG;
+		}
+		if(!"none".equalsIgnoreCase(name))
+		{
+			System.err.println("Unknown compression "+name+", using none");
+		}
+		return NONE;
+	}
+
+	/**
+	 * Compresses bytes if they are worth it.
+	 * @param  codec  FAST or STRONG, NONE sends raw
+	 * @param  data
+	 * @param  length bytes of data
+	 * @param  out    at least length bytes
+	 * @return  compressed length in out, -1 to send the bytes raw
+	 */
+	public static int compress(byte codec,byte[] data,int length,byte[] out)
+	{
+		if(codec == NONE || length < MINSIZE)
+		{
+			return -1;
+		}
+		Deflater deflater = deflaters.get()[codec];
+		int limit = (int)(length * SKIPRATIO);
+
+		if(length > 4 * SAMPLESIZE)
+		{
+			int sample = deflate(deflater,data,SAMPLESIZE,out,(int)(SAMPLESIZE * SKIPRATIO));
+			if(sample < 0)
+			{
+				return -1;
+			}
+		}
+		return deflate(deflater,data,length,out,limit);
+	}
+
+	/**
+	 * @return  compressed length, -1 if it would not fit in limit bytes
+	 */
+	private static int deflate(Deflater deflater,byte[] data,int length,byte[] out,int limit)
+	{
+		deflater.reset();
+		deflater.setInput(data,0,length);
+		deflater.finish();
+		int written = 0;
+		while(!deflater.finished() && written < limit)
+		{
+			written += deflater.deflate(out,written,limit - written);
+		}
+		return deflater.finished() ? written : -1;
+	}
+
+	/**
+	 * Decompresses a chunk.
+	 * @param  packed
+	 * @param  offset       of the compressed bytes in packed
+	 * @param  packedLength
+	 * @param  out
+	 * @param  length       bytes the chunk had
+	 * @throws IOException if the bytes are not what the sender packed
+	 */
+	public static void decompress(byte[] packed,int offset,int packedLength,
+								  byte[] out,int length) throws IOException
+	{
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(packed,offset,packedLength);
+		int read = 0;
+		try
+		{
+			while(read < length && !inflater.finished())
+			{
+				int count = inflater.inflate(out,read,length - read);
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+				{
+					break;
+				}
+				read += count;
+			}
+			//the end of the stream may still be unread with out full.
+			if(read == length && !inflater.finished())
+			{
+				read += inflater.inflate(new byte[1]);
+			}
+		}
+		catch(DataFormatException e)
+		{
+			throw new IOException("Corrupt compressed chunk",e);
+		}
+		if(read != length || !inflater.finished())
+		{
+			throw new IOException("Compressed chunk of "+read+" bytes, expected "+length);
+		}
+	}
+}
@@ -0,0 +1,519 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Downloads one file from the server into the cache with several chunk
+ * requests in flight.
+ *
+ * The file is split into ChunkSizer.MINCHUNKSIZE ranges. Up to window
+ * workers claim runs of consecutive ranges as long as the ChunkSizer asks
+ * for, fetch each run with one downloadChunkFromServer and write it at its
+ * own offset in the cache file as it arrives. The download is complete
+ * once every range is filled, so cold open time follows the bandwidth of
+ * the link instead of round trip time times chunk count.
+ *
+ * With an older copy of the file as base, ranges known to be in it are
+ * copied locally instead of fetched, see BlockHashes.
+ *
+ * The download can also run in the background while the file is read:
+ * awaitRange blocks only until the asked bytes are present and moves the
+ * ranges a reader jumps to ahead of the sequential order.
+ */
+public class ChunkDownloader
+{
+	private RemoteCallable server;
+	private String path;
+	private String cacheFilePath;
+	private long fileSize;
+	//last modified time every chunk must be of
+	private long version;
+	private int window;
+	private int chunkSize;
+	private ChunkSizer sizer;
+
+	private int chunkCount;
+	//next range in sequential order that may still be unclaimed.
+	private int nextChunk;
+	private BitSet claimed;
+	private BitSet filled;
+	//ranges readers are waiting for, served before nextChunk.
+	private ArrayDeque<Integer> priorityChunks;
+
+	private int activeWorkers;
+	private boolean finished;
+	private volatile boolean failed;
+
+	private RandomAccessFile raFile;
+	private FileChannel channel;
+	private Runnable onFinish;
+
+	//older copy, and per range the offset in it to copy from or -1.
+	private String baseFilePath;
+	private long[] baseOffsets;
+	private RandomAccessFile baseFile;
+
+	/**
+	 * Constructor
+	 * @param  rmiServer     server to download from
+	 * @param  serverPath    path of the file on the server
+	 * @param  cachePath     cache file to fill
+	 * @param  size          size of the file
+	 * @param  fileVersion   last modified time of the file, chunks of any
+	 *                       other version fail the download
+	 * @param  inFlight      max chunk requests in flight
+	 * @param  chunkSizer    picks the size of each request
+	 */
+	public ChunkDownloader(RemoteCallable rmiServer,String serverPath,String cachePath,
+						   long size,long fileVersion,int inFlight,ChunkSizer chunkSizer)
+	{
+		this.server = rmiServer;
+		this.path = serverPath;
+		this.cacheFilePath = cachePath;
+		this.fileSize = size;
+		this.version = fileVersion;
+		this.window = Math.max(inFlight,1);
+		this.chunkSize = ChunkSizer.MINCHUNKSIZE;
+		this.sizer = chunkSizer;
+
+		this.chunkCount = (int)((size + chunkSize - 1) / chunkSize);
+		this.nextChunk = 0;
+		this.claimed = new BitSet(chunkCount);
+		this.filled = new BitSet(chunkCount);
+		this.priorityChunks = new ArrayDeque<Integer>();
+
+		this.activeWorkers = 0;
+		this.finished = false;
+		this.failed = false;
+	}
+
+	/**
+	 * Copies the ranges found in an older copy from there. Call before
+	 * starting.
+	 * @param basePath    the older copy
+	 * @param offsets     per range, offset in the older copy or -1
+	 */
+	public void useBase(String basePath,long[] offsets)
+	{
+		this.baseFilePath = basePath;
+		this.baseOffsets = offsets;
+	}
+
+	/**
+	 * Downloads the whole file. Blocks until every range is filled.
+	 * @param  pool threads for the workers
+	 * @throws IOException if any range could not be fetched.
+	 */
+	public void download(ExecutorService pool) throws IOException
+	{
+		start(pool,null);
+		if(!awaitCompletion())
+		{
+			throw new IOException("Download failed for "+path);
+		}
+	}
+
+	/**
+	 * Creates the cache file with its full length, so readers can open it
+	 * before the download starts. Done by start if not called before.
+	 * @throws IOException if the cache file cannot be created.
+	 */
+	public void create() throws IOException
+	{
+		if(raFile != null)
+		{
+			return;
+		}
+		raFile = new RandomAccessFile(cacheFilePath,"rw");
+		try
+		{
+			raFile.setLength(fileSize);
+		}
+		catch(IOException e)
+		{
+			closeCacheFile();
+			throw e;
+		}
+		channel = raFile.getChannel();
+	}
+
+	/**
+	 * Closes the cache file of a download that never started.
+	 */
+	private void closeCacheFile()
+	{
+		try
+		{
+			raFile.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		raFile = null;
+		channel = null;
+	}
+
+	/**
+	 * Starts the download in the background and returns right away.
+	 * The cache file gets its full length up front.
+	 * @param  pool     threads for the workers
+	 * @param  finished run once all workers are done, may be null.
+	 * @throws IOException if the cache file cannot be created.
+	 */
+	public void start(ExecutorService pool,Runnable finished) throws IOException
+	{
+		this.onFinish = finished;
+		create();
+		if(baseFilePath != null)
+		{
+			try
+			{
+				baseFile = new RandomAccessFile(baseFilePath,"r");
+			}
+			catch(IOException e)
+			{
+				closeCacheFile();
+				throw e;
+			}
+		}
+
+		int workers = Math.min(window,chunkCount);
+		if(workers == 0)
+		{
+			finish();
+			return;
+		}
+
+		synchronized(this)
+		{
+			activeWorkers = workers;
+		}
+
+		for(int count = 0; count < workers; count++)
+		{
+			pool.submit(new Runnable()
+			{
+				public void run()
+				{
+					fetchRanges();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Blocks until the download has ended.
+	 * @return  true if every range was filled.
+	 */
+	public synchronized boolean awaitCompletion()
+	{
+		while(!finished)
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !failed;
+	}
+
+	/**
+	 * Blocks until the bytes [offset, offset+length) are in the cache file.
+	 * Missing ranges that nobody has claimed yet are fetched next.
+	 * @param  offset
+	 * @param  length
+	 * @return  true if the bytes are present, false if the download failed.
+	 */
+	public synchronized boolean awaitRange(long offset,long length)
+	{
+		long end = Math.min(offset + length,fileSize);
+		if(offset < 0 || offset >= end)
+		{
+			return !failed;
+		}
+
+		int first = (int)(offset / chunkSize);
+		int last = (int)((end - 1) / chunkSize);
+		prioritize(first,last);
+
+		while(filled.nextClearBit(first) <= last)
+		{
+			if(failed || finished)
+			{
+				return false;
+			}
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hint that a reader moved to offset; its range is fetched next.
+	 * @param offset
+	 */
+	public synchronized void prioritize(long offset)
+	{
+		if(offset >= 0 && offset < fileSize)
+		{
+			int index = (int)(offset / chunkSize);
+			prioritize(index,index);
+		}
+	}
+
+	private void prioritize(int first,int last)
+	{
+		//pushed in reverse so that first is taken first.
+		for(int index = last; index >= first; index--)
+		{
+			if(!claimed.get(index))
+			{
+				priorityChunks.addFirst(index);
+			}
+		}
+	}
+
+	public synchronized boolean isFinished()
+	{
+		return finished;
+	}
+
+	/**
+	 * Hands out the next unclaimed run of ranges, asked for ranges first.
+	 * An asked for range goes alone so that the reader waits for one
+	 * small request only.
+	 * @param  run set to the first index and the count of the run
+	 * @return  false when all are claimed.
+	 */
+	private synchronized boolean claimNextRun(int[] run)
+	{
+		if(failed)
+		{
+			return false;
+		}
+
+		while(!priorityChunks.isEmpty())
+		{
+			int index = priorityChunks.pollFirst();
+			if(!claimed.get(index))
+			{
+				claimed.set(index);
+				run[0] = index;
+				run[1] = 1;
+				return true;
+			}
+		}
+
+		nextChunk = claimed.nextClearBit(nextChunk);
+		if(nextChunk >= chunkCount)
+		{
+			return false;
+		}
+
+		long remaining = fileSize - (long)nextChunk * chunkSize;
+		int wanted = (sizer.sizeFor(remaining) + chunkSize - 1) / chunkSize;
+		int end = Math.min(claimed.nextSetBit(nextChunk) < 0 ? chunkCount
+						   : claimed.nextSetBit(nextChunk),nextChunk + wanted);
+
+		//a run is copied or fetched as a whole.
+		boolean copy = isCopied(nextChunk);
+		for(int index = nextChunk + 1; index < end; index++)
+		{
+			if(isCopied(index) != copy)
+			{
+				end = index;
+				break;
+			}
+		}
+		claimed.set(nextChunk,end);
+		run[0] = nextChunk;
+		run[1] = end - nextChunk;
+		nextChunk = end;
+		return true;
+	}
+
+	private boolean isCopied(int index)
+	{
+		return baseOffsets != null && baseOffsets[index] >= 0;
+	}
+
+	private synchronized void markFilled(int index,int count)
+	{
+		filled.set(index,index + count);
+		notifyAll();
+	}
+
+	/**
+	 * Worker loop: fetches runs until none are left.
+	 */
+	private void fetchRanges()
+	{
+		int[] run = new int[2];
+		while(claimNextRun(run))
+		{
+			try
+			{
+				fetchRange(run[0],run[1]);
+				markFilled(run[0],run[1]);
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+				failed = true;
+			}
+		}
+
+		boolean last;
+		synchronized(this)
+		{
+			last = (--activeWorkers == 0);
+		}
+		if(last)
+		{
+			finish();
+		}
+	}
+
+	/**
+	 * Closes the cache file and wakes everybody up.
+	 */
+	private void finish()
+	{
+		try
+		{
+			raFile.close();
+			if(baseFile != null)
+			{
+				baseFile.close();
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			failed = true;
+		}
+
+		synchronized(this)
+		{
+			finished = true;
+			notifyAll();
+		}
+
+		if(onFinish != null)
+		{
+			onFinish.run();
+		}
+	}
+
+	/**
+	 * Fetches a run of ranges and writes it at its offset. Short replies
+	 * are followed up until the run is full; an end before that fails.
+	 * @param index first chunk index
+	 * @param count ranges in the run
+	 */
+	private void fetchRange(int index,int count) throws IOException
+	{
+		if(isCopied(index))
+		{
+			copyRange(index,count);
+			return;
+		}
+
+		long offset = (long)index * chunkSize;
+		long end = Math.min(offset + (long)count * chunkSize,fileSize);
+
+		while(offset < end)
+		{
+			int asked = (int)(end - offset);
+			long sentNanos = System.nanoTime();
+			Chunk chunk = server.downloadChunkFromServer(path,offset,asked,version);
+			if(chunk == null)
+			{
+				throw new RemoteException("No chunk at "+offset+" for "+path
+										  +", changed on the server?");
+			}
+
+			//the rest of the file would be served as zeros.
+			if(chunk.size <= 0)
+			{
+				ChunkBufferPool.release(chunk);
+				throw new IOException("File shrank on the server:"+path);
+			}
+
+			sizer.record(asked,chunk,System.nanoTime() - sentNanos);
+			int length = (int)Math.min(chunk.size,end - offset);
+			try
+			{
+				ByteBuffer buffer = ByteBuffer.wrap(chunk.buffer,0,length);
+				long position = offset;
+				while(buffer.hasRemaining())
+				{
+					position += channel.write(buffer,position);
+				}
+			}
+			finally
+			{
+				ChunkBufferPool.release(chunk);
+			}
+			offset += length;
+		}
+	}
+
+	/**
+	 * Fills a run of ranges from the older copy.
+	 * @param index first chunk index
+	 * @param count ranges in the run
+	 */
+	private void copyRange(int index,int count) throws IOException
+	{
+		FileChannel base = baseFile.getChannel();
+		byte[] block = ChunkBufferPool.shared().borrow(chunkSize);
+		try
+		{
+			for(int current = index; current < index + count; current++)
+			{
+				long offset = (long)current * chunkSize;
+				int length = (int)Math.min(chunkSize,fileSize - offset);
+
+				ByteBuffer buffer = ByteBuffer.wrap(block,0,length);
+				long source = baseOffsets[current];
+				while(buffer.hasRemaining())
+				{
+					if(base.read(buffer,source + buffer.position()) < 0)
+					{
+						throw new IOException("Base copy shrank:"+baseFilePath);
+					}
+				}
+
+				buffer.flip();
+				long position = offset;
+				while(buffer.hasRemaining())
+				{
+					position += channel.write(buffer,position);
+				}
+			}
+		}
+		finally
+		{
+			ChunkBufferPool.shared().release(block);
+		}
+	}
+}
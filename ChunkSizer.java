@@ -0,0 +1,134 @@
+/**
+ * Picks the chunk size of transfers from what the link has shown so far.
+ *
+ * Sizes are powers of two between MINCHUNKSIZE and a cap. Each size keeps
+ * a moving average of the throughput its requests got. After SAMPLES
+ * requests at the current size it is compared with the next smaller one:
+ * a clear gain means per call overhead still matters and the size
+ * doubles, a clear loss halves it. Small files never ask for more than
+ * they hold.
+ */
+public class ChunkSizer
+{
+	public static final int MINCHUNKSIZE = ChunkBufferPool.MINCLASSSIZE;
+	public static final int INITIALCHUNKSIZE = 256 * 1024;
+	public static final int SAMPLES = 4;
+	//moving average weight of a new sample
+	public static final double WEIGHT = 0.25;
+	//relative change that counts as a gain or a loss
+	public static final double MARGIN = 0.1;
+
+	private static final int MINSHIFT = ChunkBufferPool.MINCLASSSHIFT;
+
+	private TransferMetrics metrics;
+	private int maxShift;
+	private int currentShift;
+	private int samplesAtCurrent;
+	//bytes per nano of each size, 0 if never used.
+	private double[] throughput;
+
+	/**
+	 * Constructor
+	 * @param  maxChunkSize  largest chunk ever asked for
+	 * @param  memoryBudget  bytes all requests in flight may hold
+	 * @param  inFlight      requests in flight per transfer
+	 * @param  transferMetrics where the chosen sizes are counted
+	 */
+	public ChunkSizer(int maxChunkSize,long memoryBudget,int inFlight,
+					  TransferMetrics transferMetrics)
+	{
+		long cap = Math.min(Math.min(maxChunkSize,ChunkBufferPool.MAXCLASSSIZE),
+							memoryBudget / Math.max(inFlight,1));
+		this.maxShift = Math.max(shiftOf(cap),MINSHIFT);
+		this.currentShift = Math.min(shiftOf(INITIALCHUNKSIZE),maxShift);
+		this.samplesAtCurrent = 0;
+		this.throughput = new double[maxShift + 1];
+		this.metrics = transferMetrics;
+	}
+
+	/**
+	 * @param  size
+	 * @return  log2 of the largest power of two not above size
+	 */
+	private static int shiftOf(long size)
+	{
+		return 63 - Long.numberOfLeadingZeros(Math.max(size,1));
+	}
+
+	/**
+	 * @param  remaining bytes left to transfer
+	 * @return  size of the next chunk request
+	 */
+	public synchronized int sizeFor(long remaining)
+	{
+		long size = 1L << currentShift;
+		if(remaining < size)
+		{
+			return (int)Math.max(remaining,1);
+		}
+		return (int)size;
+	}
+
+	/**
+	 * Learns from one finished chunk request and counts its compression.
+	 * @param askedSize size that was asked for
+	 * @param chunk     sent or received
+	 * @param elapsed   nanos the request took
+	 */
+	public void record(int askedSize,Chunk chunk,long elapsed)
+	{
+		metrics.recordWire(chunk);
+		record(askedSize,Math.max(chunk.size,0),elapsed);
+	}
+
+	/**
+	 * Learns from one finished chunk request.
+	 * @param askedSize   size that was asked for
+	 * @param transferred bytes moved
+	 * @param elapsed     nanos the request took
+	 */
+	public synchronized void record(int askedSize,long transferred,long elapsed)
+	{
+		metrics.recordChunk(askedSize,transferred,elapsed);
+
+		//short tails of files say little about the link.
+		int shift = shiftOf(askedSize);
+		if(shift != currentShift || elapsed <= 0)
+		{
+			return;
+		}
+
+		double sample = (double)transferred / elapsed;
+		throughput[shift] = throughput[shift] == 0 ? sample
+							: throughput[shift] * (1 - WEIGHT) + sample * WEIGHT;
+
+		if(++samplesAtCurrent < SAMPLES)
+		{
+			return;
+		}
+
+		double smaller = currentShift > MINSHIFT ? throughput[currentShift - 1] : 0;
+		if(currentShift < maxShift
+		   && (smaller == 0 || throughput[currentShift] > smaller * (1 + MARGIN)))
+		{
+			resize(currentShift + 1);
+		}
+		else if(smaller > 0 && throughput[currentShift] < smaller * (1 - MARGIN))
+		{
+			resize(currentShift - 1);
+		}
+	}
+
+	private void resize(int shift)
+	{
+		System.err.println("chunk size "+(1 << currentShift)+" -> "+(1 << shift)
+						   +" ("+Math.round(throughput[currentShift] * 1000)+" MB/s per request)");
+		currentShift = shift;
+		samplesAtCurrent = 0;
+	}
+
+	public synchronized int getChunkSize()
+	{
+		return 1 << currentShift;
+	}
+}
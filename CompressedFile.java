@@ -0,0 +1,554 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Read only fd of a master kept compressed on disk.
+ *
+ * The file is cut in fixed size blocks compressed one by one, see
+ * ChunkCodec, so a read at any offset decompresses only the blocks it
+ * touches. Blocks that do not shrink are kept raw. The layout is
+ *
+ *     int  magic
+ *     long size         of the content
+ *     int  blockSize
+ *     int  blockCount
+ *     long indexOffset
+ *     ...  blocks, in the order they were fetched
+ *     index: blockCount times long offset and int length, then a CRC32
+ *
+ * Decompressed blocks are kept in a HotBlocks shared by all fds, so
+ * readers of the same part of a file decompress it once.
+ */
+public class CompressedFile implements SeekableFile
+{
+	public static final int MAGIC = 0x435a4d46;
+	public static final int HEADERSIZE = 4 + 8 + 4 + 4 + 8;
+	private static final int INDEXENTRYSIZE = 8 + 4;
+	//bytes downloaded by one fetch task, cut in blocks
+	private static final int FETCHSIZE = 1024 * 1024;
+
+	/**
+	 * Decompressed blocks of all compressed masters, least recently read
+	 * dropped first.
+	 */
+	public static class HotBlocks
+	{
+		private LinkedHashMap<String,byte[]> blocks;
+		private long bytes;
+		private long capacity;
+		private long hits;
+		private long misses;
+
+		/**
+		 * Constructor
+		 * @param  capacityBytes decompressed bytes kept
+		 */
+		public HotBlocks(long capacityBytes)
+		{
+			this.blocks = new LinkedHashMap<String,byte[]>(16,0.75f,true);
+			this.capacity = capacityBytes;
+		}
+
+		synchronized byte[] get(String key)
+		{
+			byte[] block = blocks.get(key);
+			if(block == null)
+			{
+				misses++;
+			}
+			else
+			{
+				hits++;
+			}
+			return block;
+		}
+
+		synchronized void put(String key,byte[] block)
+		{
+			if(block.length > capacity || blocks.containsKey(key))
+			{
+				return;
+			}
+			blocks.put(key,block);
+			bytes += block.length;
+			Iterator<byte[]> it = blocks.values().iterator();
+			while(bytes > capacity && it.hasNext())
+			{
+				bytes -= it.next().length;
+				it.remove();
+			}
+		}
+
+		public synchronized String toString()
+		{
+			return "hot blocks: "+blocks.size()+" blocks, "+bytes+" bytes, "+hits+" hits, "
+				   +misses+" misses";
+		}
+	}
+
+	private String path;
+	private FileChannel channel;
+	private HotBlocks hot;
+	private long size;
+	private int blockSize;
+	private long[] offsets;
+	private int[] lengths;
+	private long position;
+	//last block read through this fd, sequential reads need no lookup
+	private int currentBlock;
+	private byte[] current;
+
+	/**
+	 * Constructor
+	 * @param  cachePath compressed master
+	 * @param  hotBlocks shared decompressed blocks
+	 * @throws IOException if it is not a compressed master
+	 */
+	public CompressedFile(String cachePath,HotBlocks hotBlocks) throws IOException
+	{
+		this.path = cachePath;
+		this.hot = hotBlocks;
+		this.channel = FileChannel.open(Paths.get(cachePath),StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADERSIZE);
+			readFully(channel,header,0);
+			header.flip();
+			if(header.getInt() != MAGIC)
+			{
+				throw new IOException("Not a compressed master:"+cachePath);
+			}
+			size = header.getLong();
+			blockSize = header.getInt();
+			int count = header.getInt();
+			long indexOffset = header.getLong();
+
+			ByteBuffer index = ByteBuffer.allocate(count * INDEXENTRYSIZE + 8);
+			readFully(channel,index,indexOffset);
+			CRC32 crc = new CRC32();
+			crc.update(index.array(),0,count * INDEXENTRYSIZE);
+			index.flip();
+			offsets = new long[count];
+			lengths = new int[count];
+			for(int block = 0; block < count; block++)
+			{
+				offsets[block] = index.getLong();
+				lengths[block] = index.getInt();
+			}
+			if(index.getLong() != crc.getValue())
+			{
+				throw new IOException("Corrupt index in "+cachePath);
+			}
+		}
+		catch(IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+		this.position = 0;
+		this.currentBlock = -1;
+	}
+
+	private static void readFully(FileChannel channel,ByteBuffer buffer,long from) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer,from + buffer.position()) < 0)
+			{
+				throw new IOException("Compressed master shorter than expected");
+			}
+		}
+	}
+
+	/**
+	 * @param  cachePath
+	 * @return  content size of a compressed master, -1 if the file is
+	 *          not one
+	 */
+	public static long contentSize(String cachePath)
+	{
+		try(FileChannel channel = FileChannel.open(Paths.get(cachePath),StandardOpenOption.READ))
+		{
+			if(channel.size() < HEADERSIZE)
+			{
+				return -1;
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADERSIZE);
+			readFully(channel,header,0);
+			header.flip();
+			if(header.getInt() != MAGIC)
+			{
+				return -1;
+			}
+			long content = header.getLong();
+			header.getInt();
+			int count = header.getInt();
+			long indexOffset = header.getLong();
+			if(indexOffset + (long)count * INDEXENTRYSIZE + 8 != channel.size())
+			{
+				return -1;
+			}
+			return content;
+		}
+		catch(IOException e)
+		{
+			return -1;
+		}
+	}
+
+	private int blockLength(int block)
+	{
+		return (int)Math.min(blockSize,size - (long)block * blockSize);
+	}
+
+	/**
+	 * @param  block
+	 * @return  the decompressed block, from the hot blocks if there
+	 */
+	private byte[] block(int block) throws IOException
+	{
+		if(block == currentBlock)
+		{
+			return current;
+		}
+
+		String key = path + ":" + block;
+		byte[] data = hot.get(key);
+		if(data == null)
+		{
+			int length = blockLength(block);
+			byte[] stored = new byte[lengths[block]];
+			readFully(channel,ByteBuffer.wrap(stored),offsets[block]);
+			if(lengths[block] == length)
+			{
+				data = stored;
+			}
+			else
+			{
+				data = new byte[length];
+				ChunkCodec.decompress(stored,0,stored.length,data,length);
+			}
+			hot.put(key,data);
+		}
+		currentBlock = block;
+		current = data;
+		return data;
+	}
+
+	public int read(byte[] buffer) throws IOException
+	{
+		return read(buffer,0,buffer.length);
+	}
+
+	public int read(byte[] buffer,int offset,int length) throws IOException
+	{
+		if(length == 0)
+		{
+			return 0;
+		}
+		if(position >= size)
+		{
+			return -1;
+		}
+
+		int total = (int)Math.min(length,size - position);
+		int done = 0;
+		while(done < total)
+		{
+			int index = (int)(position / blockSize);
+			int inBlock = (int)(position - (long)index * blockSize);
+			int piece = Math.min(total - done,blockSize - inBlock);
+			System.arraycopy(block(index),inBlock,buffer,offset + done,piece);
+			done += piece;
+			position += piece;
+		}
+		return total;
+	}
+
+	public void write(byte[] buffer) throws IOException
+	{
+		throw new IOException("Compressed masters are read only");
+	}
+
+	public void seek(long newPosition) throws IOException
+	{
+		if(newPosition < 0)
+		{
+			throw new IOException("negative seek");
+		}
+		position = newPosition;
+	}
+
+	public long getFilePointer()
+	{
+		return position;
+	}
+
+	public long length()
+	{
+		return size;
+	}
+
+	public void sync()
+	{
+		//nothing written
+	}
+
+	public long growthFor(long position,int count)
+	{
+		//read only
+		return 0;
+	}
+
+	public long growthForDetach()
+	{
+		return 0;
+	}
+
+	public void detach()
+	{
+		//nothing written
+	}
+
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/**
+	 * Downloads a version of a file into a compressed master. Pieces of
+	 * FETCHSIZE are fetched and compressed window at a time and written
+	 * where the file ends when they are done, so no raw copy is ever on
+	 * disk.
+	 * @param  server
+	 * @param  serverPath
+	 * @param  version    last modified time
+	 * @param  fileSize
+	 * @param  cachePath  created
+	 * @param  size       block size
+	 * @param  codec      ChunkCodec.FAST or STRONG
+	 * @param  pool       threads for the downloads
+	 * @param  window     pieces fetched at once
+	 * @return  bytes of the compressed master
+	 * @throws IOException if the download failed or the file changed;
+	 *         the master is left half written then.
+	 */
+	public static long fetch(final RemoteCallable server,final String serverPath,final long version,
+							 final long fileSize,String cachePath,final int size,final byte codec,
+							 ExecutorService pool,int window) throws IOException
+	{
+		final int count = (int)((fileSize + size - 1) / size);
+		final long[] blockOffsets = new long[count];
+		final int[] blockLengths = new int[count];
+		final long[] end = new long[]{HEADERSIZE};
+		final int perPiece = Math.max(FETCHSIZE / size,1);
+
+		try(final FileChannel out = FileChannel.open(Paths.get(cachePath),StandardOpenOption.CREATE,
+													 StandardOpenOption.TRUNCATE_EXISTING,
+													 StandardOpenOption.WRITE))
+		{
+			final Semaphore inFlight = new Semaphore(Math.max(window,1));
+			final AtomicBoolean failed = new AtomicBoolean(false);
+			ArrayList<Future<?>> pieces = new ArrayList<Future<?>>();
+			for(int first = 0; first < count && !failed.get(); first += perPiece)
+			{
+				try
+				{
+					inFlight.acquire();
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					failed.set(true);
+					break;
+				}
+
+				final int from = first;
+				final int to = Math.min(first + perPiece,count);
+				pieces.add(pool.submit(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							fetchPiece(server,serverPath,version,fileSize,size,codec,from,to,
+									   out,end,blockOffsets,blockLengths);
+						}
+						catch(IOException e)
+						{
+							failed.set(true);
+							throw new RuntimeException(e);
+						}
+						finally
+						{
+							inFlight.release();
+						}
+					}
+				}));
+			}
+
+			IOException failure = null;
+			for(Future<?> piece : pieces)
+			{
+				try
+				{
+					piece.get();
+				}
+				catch(ExecutionException e)
+				{
+					if(failure == null)
+					{
+						Throwable cause = e.getCause().getCause();
+						failure = cause instanceof IOException ? (IOException)cause
+									: new IOException(e.getCause());
+					}
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					failure = new IOException("Interrupted fetching "+serverPath);
+				}
+			}
+			if(failure == null && failed.get())
+			{
+				failure = new IOException("Interrupted fetching "+serverPath);
+			}
+			if(failure != null)
+			{
+				throw failure;
+			}
+
+			ByteBuffer index = ByteBuffer.allocate(count * INDEXENTRYSIZE + 8);
+			for(int block = 0; block < count; block++)
+			{
+				index.putLong(blockOffsets[block]);
+				index.putInt(blockLengths[block]);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(index.array(),0,count * INDEXENTRYSIZE);
+			index.putLong(crc.getValue());
+			index.flip();
+			write(out,index,end[0]);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADERSIZE);
+			header.putInt(MAGIC);
+			header.putLong(fileSize);
+			header.putInt(size);
+			header.putInt(count);
+			header.putLong(end[0]);
+			header.flip();
+			write(out,header,0);
+			return end[0] + index.capacity();
+		}
+	}
+
+	/**
+	 * Fetches blocks from to to, compresses them and writes them at the
+	 * end of the master.
+	 */
+	private static void fetchPiece(RemoteCallable server,String serverPath,long version,long fileSize,
+								   int size,byte codec,int from,int to,FileChannel out,long[] end,
+								   long[] blockOffsets,int[] blockLengths) throws IOException
+	{
+		long start = (long)from * size;
+		int length = (int)(Math.min((long)to * size,fileSize) - start);
+		byte[] raw = new byte[length];
+		int done = 0;
+		while(done < length)
+		{
+			Chunk chunk = server.downloadChunkFromServer(serverPath,start + done,length - done,version);
+			if(chunk == null)
+			{
+				throw new RemoteException("Chunk at "+(start + done)+" of "+serverPath
+										  +" gone, changed on the server?");
+			}
+			if(chunk.size <= 0)
+			{
+				throw new IOException("File shrank on the server:"+serverPath);
+			}
+			try
+			{
+				int piece = Math.min(chunk.size,length - done);
+				System.arraycopy(chunk.buffer,0,raw,done,piece);
+				done += piece;
+			}
+			finally
+			{
+				ChunkBufferPool.release(chunk);
+			}
+		}
+
+		byte[] packed = new byte[size];
+		byte[] block = new byte[size];
+		for(int index = from; index < to; index++)
+		{
+			int offset = (index - from) * size;
+			int blockLength = Math.min(size,length - offset);
+			System.arraycopy(raw,offset,block,0,blockLength);
+			int packedLength = ChunkCodec.compress(codec,block,blockLength,packed);
+			ByteBuffer data = packedLength < 0 ? ByteBuffer.wrap(raw,offset,blockLength)
+								: ByteBuffer.wrap(packed,0,packedLength);
+
+			long at;
+			synchronized(end)
+			{
+				at = end[0];
+				end[0] += data.remaining();
+			}
+			blockOffsets[index] = at;
+			blockLengths[index] = data.remaining();
+			write(out,data,at);
+		}
+	}
+
+	private static void write(FileChannel out,ByteBuffer data,long at) throws IOException
+	{
+		while(data.hasRemaining())
+		{
+			at += out.write(data,at);
+		}
+	}
+
+	/**
+	 * Writes the content of a compressed master to a plain file.
+	 * @param  cachePath compressed master
+	 * @param  newPath   created
+	 * @param  hotBlocks
+	 * @throws IOException
+	 */
+	public static void decompressTo(String cachePath,String newPath,HotBlocks hotBlocks) throws IOException
+	{
+		CompressedFile from = new CompressedFile(cachePath,hotBlocks);
+		try(FileChannel to = FileChannel.open(Paths.get(newPath),StandardOpenOption.CREATE_NEW,
+											  StandardOpenOption.WRITE))
+		{
+			byte[] buffer = new byte[Math.max(from.blockSize,64 * 1024)];
+			int read;
+			while((read = from.read(buffer)) > 0)
+			{
+				ByteBuffer data = ByteBuffer.wrap(buffer,0,read);
+				while(data.hasRemaining())
+				{
+					to.write(data);
+				}
+			}
+		}
+		finally
+		{
+			from.close();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * Decides the order in which the files of one cache segment are evicted,
+ * and whether a new file may displace them.
+ *
+ * A policy instance belongs to a single CacheSegment and is only called
+ * with that segment's lock held.
+ */
+public interface EvictionPolicy
+{
+	/** A file was added to the segment. */
+	public void onInsert(CachedFileInfo file);
+
+	/** A file in the segment was used (made MRU). */
+	public void onAccess(CachedFileInfo file);
+
+	/** A file left the segment. */
+	public void onRemove(CachedFileInfo file);
+
+	/** The victim was evicted to make space. */
+	public void onEvict(CachedFileInfo file);
+
+	/**
+	 * An open asked for this cache path.
+	 * @param cachePath 
+	 * @param file      the cached file, null on a miss.
+	 */
+	public void recordRequest(String cachePath,CachedFileInfo file);
+
+	/** Estimated request count of the cache path. */
+	public int frequency(String cachePath);
+
+	/**
+	 * The file this policy would evict next. Must be a read only master
+	 * with no readers.
+	 * @return  victim or null if nothing can be evicted.
+	 */
+	public CachedFileInfo victim();
+
+	/**
+	 * Admission check before the victim is evicted for a new file.
+	 * @param  candidateFrequency frequency of the incoming file
+	 * @param  victim             file that would be evicted
+	 * @return  true if the new file is worth more than the victim.
+	 */
+	public boolean admit(int candidateFrequency, CachedFileInfo victim);
+}
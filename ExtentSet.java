@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of byte ranges [start, end), kept sorted and merged. Used for the
+ * dirty ranges of a private copy, so close uploads only what was written.
+ */
+public class ExtentSet
+{
+	//start vs end of each extent, no two touch or overlap.
+	private TreeMap<Long,Long> extents;
+	private long bytes;
+
+	/**
+	 * Constructor
+	 */
+	public ExtentSet()
+	{
+		this.extents = new TreeMap<Long,Long>();
+		this.bytes = 0;
+	}
+
+	/**
+	 * Adds [start, end), merging it with the extents it touches.
+	 * @param start
+	 * @param end
+	 */
+	public synchronized void add(long start,long end)
+	{
+		if(start >= end)
+		{
+			return;
+		}
+
+		Map.Entry<Long,Long> before = extents.floorEntry(start);
+		if(before != null && before.getValue() >= start)
+		{
+			start = before.getKey();
+			end = Math.max(end,before.getValue());
+		}
+
+		Map.Entry<Long,Long> next = extents.ceilingEntry(start);
+		while(next != null && next.getKey() <= end)
+		{
+			end = Math.max(end,next.getValue());
+			bytes -= next.getValue() - next.getKey();
+			extents.remove(next.getKey());
+			next = extents.ceilingEntry(start);
+		}
+
+		extents.put(start,end);
+		bytes += end - start;
+	}
+
+	/**
+	 * Extents with gaps up to maxGap bridged, so that many small writes
+	 * close together go out as one transfer.
+	 * @param  maxGap bytes between extents that may be sent along
+	 * @return  pairs of start and end
+	 */
+	public synchronized ArrayList<long[]> coalesced(long maxGap)
+	{
+		ArrayList<long[]> result = new ArrayList<long[]>();
+		long[] current = null;
+		for(Map.Entry<Long,Long> extent : extents.entrySet())
+		{
+			if(current != null && extent.getKey() - current[1] <= maxGap)
+			{
+				current[1] = extent.getValue();
+				continue;
+			}
+			current = new long[]{extent.getKey(),extent.getValue()};
+			result.add(current);
+		}
+		return result;
+	}
+
+	public synchronized boolean isEmpty()
+	{
+		return extents.isEmpty();
+	}
+
+	/**
+	 * @return  bytes covered
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public synchronized int size()
+	{
+		return extents.size();
+	}
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open FileChannels of the server, keyed by validated path, so that a
+ * transfer in chunks opens its file once instead of once per chunk.
+ *
+ * Handles are reference counted: acquire pins one, release unpins it.
+ * Unpinned handles are closed when they fall out of the LRU bound or sit
+ * idle too long; a sweep every half idle time closes the idle ones even
+ * when no file is opened or released. A handle invalidated while pinned
+ * leaves the map at once and is closed by its last release.
+ */
+public class FileHandleCache
+{
+	/**
+	 * One open file.
+	 */
+	public static class Handle
+	{
+		public FileChannel channel;
+		String path;
+		boolean writable;
+		int refCount;
+		boolean stale;
+		long lastUsedMillis;
+	}
+
+	//sweeps the idle handles of every cache
+	private static final ScheduledExecutorService sweeper
+		= Executors.newSingleThreadScheduledExecutor(r ->
+	{
+		Thread thread = new Thread(r,"handle-sweeper");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private LinkedHashMap<String,Handle> handles;
+	private int capacity;
+	private long idleMillis;
+	//bumped by invalidate, a handle opened across a bump is not kept.
+	private long generation;
+
+	/**
+	 * Constructor
+	 * @param  maxOpen     handles kept open when unused
+	 * @param  maxIdleMillis unused handles older than this are closed
+	 */
+	public FileHandleCache(int maxOpen,long maxIdleMillis)
+	{
+		this.handles = new LinkedHashMap<String,Handle>(16,0.75f,true);
+		this.capacity = Math.max(maxOpen,0);
+		this.idleMillis = maxIdleMillis;
+		if(idleMillis > 0)
+		{
+			long period = Math.max(idleMillis / 2,1);
+			sweeper.scheduleWithFixedDelay(this::sweep,period,period,TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Closes the unpinned handles idle for too long.
+	 */
+	public synchronized void sweep()
+	{
+		trim();
+	}
+
+	/**
+	 * Pins an open channel for the file, opening it if needed.
+	 * @param  serverPath validated server path
+	 * @param  writable   true to write, the file is created if missing.
+	 * @return  handle, to be given back with release
+	 * @throws IOException if the file cannot be opened
+	 */
+	public Handle acquire(String serverPath,boolean writable) throws IOException
+	{
+		long openedGeneration;
+		synchronized(this)
+		{
+			openedGeneration = generation;
+			Handle handle = handles.get(serverPath);
+			if(handle != null && (handle.writable || !writable))
+			{
+				handle.refCount++;
+				handle.lastUsedMillis = System.currentTimeMillis();
+				return handle;
+			}
+			if(handle != null)
+			{
+				//read only, reopened for writing below.
+				drop(handle);
+			}
+		}
+
+		//open outside the lock, other files need not wait on the disk.
+		Handle handle = new Handle();
+		handle.path = serverPath;
+		handle.writable = writable;
+		handle.refCount = 1;
+		handle.lastUsedMillis = System.currentTimeMillis();
+		if(writable)
+		{
+			handle.channel = FileChannel.open(Paths.get(serverPath),StandardOpenOption.READ,
+											  StandardOpenOption.WRITE,StandardOpenOption.CREATE);
+		}
+		else
+		{
+			handle.channel = FileChannel.open(Paths.get(serverPath),StandardOpenOption.READ);
+		}
+
+		synchronized(this)
+		{
+			Handle raced = handles.get(serverPath);
+			if(raced != null && (raced.writable || !writable))
+			{
+				raced.refCount++;
+				raced.lastUsedMillis = handle.lastUsedMillis;
+				closeQuietly(handle);
+				return raced;
+			}
+			if(openedGeneration != generation)
+			{
+				//may be the file that was just replaced, use it once only.
+				handle.stale = true;
+				return handle;
+			}
+			if(raced != null)
+			{
+				drop(raced);
+			}
+			handles.put(serverPath,handle);
+			trim();
+			return handle;
+		}
+	}
+
+	/**
+	 * Unpins a handle from acquire.
+	 * @param handle
+	 */
+	public synchronized void release(Handle handle)
+	{
+		handle.refCount--;
+		handle.lastUsedMillis = System.currentTimeMillis();
+		if(handle.stale)
+		{
+			if(handle.refCount == 0)
+			{
+				closeQuietly(handle);
+			}
+			return;
+		}
+		trim();
+	}
+
+	/**
+	 * Forgets the handle of a file that was deleted or replaced, so the
+	 * next acquire opens the new file.
+	 * @param serverPath validated server path
+	 */
+	public synchronized void invalidate(String serverPath)
+	{
+		generation++;
+		Handle handle = handles.get(serverPath);
+		if(handle != null)
+		{
+			drop(handle);
+		}
+	}
+
+	/**
+	 * Removes the handle from the map; it is closed now if unpinned,
+	 * otherwise by its last release.
+	 * @param handle
+	 */
+	private void drop(Handle handle)
+	{
+		handles.remove(handle.path);
+		handle.stale = true;
+		if(handle.refCount == 0)
+		{
+			closeQuietly(handle);
+		}
+	}
+
+	/**
+	 * Closes unpinned handles beyond the bound or idle for too long,
+	 * least recently used first.
+	 */
+	private void trim()
+	{
+		long now = System.currentTimeMillis();
+		int excess = handles.size() - capacity;
+		Iterator<Handle> it = handles.values().iterator();
+		while(it.hasNext())
+		{
+			Handle handle = it.next();
+			boolean idle = now - handle.lastUsedMillis > idleMillis;
+			if(excess <= 0 && !idle)
+			{
+				break;
+			}
+			if(handle.refCount == 0)
+			{
+				it.remove();
+				handle.stale = true;
+				closeQuietly(handle);
+				excess--;
+			}
+		}
+	}
+
+	private void closeQuietly(Handle handle)
+	{
+		try
+		{
+			handle.channel.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
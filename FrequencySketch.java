@@ -0,0 +1,117 @@
+/**
+ * Count-min sketch of request frequencies used by TinyLFU admission.
+ *
+ * DEPTH rows of small saturating counters. Increments are conservative
+ * (only the smallest counters are bumped) and every counter is halved
+ * once sampleSize increments have been seen, so old popularity fades.
+ *
+ * Not thread safe; it is used under the owning segment's lock.
+ */
+public class FrequencySketch
+{
+	private static final int DEPTH = 4;
+	private static final int MAXCOUNT = 15;
+	private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL,
+					0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+
+	private byte[][] table;
+	private int mask;
+	private int additions;
+	private int sampleSize;
+
+	/**
+	 * Constructor
+	 * @param  width counters per row, rounded up to a power of two.
+	 */
+	public FrequencySketch(int width)
+	{
+		int size = 16;
+		while(size < width && size < (1 << 30))
+		{
+			size <<= 1;
+		}
+
+		this.table = new byte[DEPTH][size];
+		this.mask = size - 1;
+		this.additions = 0;
+		this.sampleSize = 10 * size;
+	}
+
+	/**
+	 * Counts one request for the key.
+	 * @param key
+	 */
+	public void increment(String key)
+	{
+		long hash = spread(key);
+		int[] index = new int[DEPTH];
+		int min = MAXCOUNT;
+		for(int row = 0; row < DEPTH; row++)
+		{
+			index[row] = indexOf(hash,row);
+			min = Math.min(min,table[row][index[row]]);
+		}
+
+		if(min == MAXCOUNT)
+		{
+			return;
+		}
+
+		for(int row = 0; row < DEPTH; row++)
+		{
+			if(table[row][index[row]] == min)
+			{
+				table[row][index[row]]++;
+			}
+		}
+
+		if(++additions >= sampleSize)
+		{
+			reset();
+		}
+	}
+
+	/**
+	 * Estimated number of requests for the key.
+	 * @param  key
+	 * @return  frequency, at most MAXCOUNT.
+	 */
+	public int frequency(String key)
+	{
+		long hash = spread(key);
+		int min = MAXCOUNT;
+		for(int row = 0; row < DEPTH; row++)
+		{
+			min = Math.min(min,table[row][indexOf(hash,row)]);
+		}
+		return min;
+	}
+
+	/**
+	 * Ages the sketch by halving every counter.
+	 */
+	private void reset()
+	{
+		for(int row = 0; row < DEPTH; row++)
+		{
+			for(int col = 0; col <= mask; col++)
+			{
+				table[row][col] = (byte)(table[row][col] >>> 1);
+			}
+		}
+		additions /= 2;
+	}
+
+	private int indexOf(long hash,int row)
+	{
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h ^= (h >>> 32);
+		return (int)h & mask;
+	}
+
+	private static long spread(String key)
+	{
+		long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+}
@@ -0,0 +1,123 @@
+import java.util.TreeSet;
+import java.util.Comparator;
+
+/**
+ * Greedy-Dual-Size-Frequency eviction.
+ *
+ * Every file gets the priority
+ *
+ *     H = L + frequency * cost / size
+ *
+ * where cost is the time it took to download the file from the server and
+ * L is the priority of the last evicted file, so entries that stop being
+ * used age out. The lowest priority is evicted first.
+ *
+ * Since download time grows with the file size, cost / size is close to
+ * the inverse of the link bandwidth for big files and adds the per chunk
+ * round trips for small ones. A big file is therefore not evicted just for
+ * being big; frequency decides, which keeps the bytes that are re-fetched
+ * from the Server down rather than only the number of misses.
+ */
+public class GDSFPolicy implements EvictionPolicy
+{
+	//ordered by priority, ties by insertion order.
+	private TreeSet<CachedFileInfo> queue;
+
+	private double clock;
+	private long sequence;
+
+	/**
+	 * Constructor
+	 */
+	public GDSFPolicy()
+	{
+		clock = 0;
+		sequence = 0;
+		queue = new TreeSet<CachedFileInfo>(new Comparator<CachedFileInfo>()
+		{
+			public int compare(CachedFileInfo a, CachedFileInfo b)
+			{
+				int result = Double.compare(a.priority,b.priority);
+				if(result == 0)
+				{
+					result = Long.compare(a.prioritySeq,b.prioritySeq);
+				}
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Recomputes the priority of a file that is not in the queue.
+	 * @param file
+	 */
+	private void updatePriority(CachedFileInfo file)
+	{
+		//microseconds, never zero.
+		double cost = Math.max(file.fetchNanos / 1000.0, 1.0);
+		double size = Math.max(file.fileSize, 1);
+
+		file.priority = clock + file.requestCount * cost / size;
+		file.prioritySeq = sequence++;
+	}
+
+	public void onInsert(CachedFileInfo file)
+	{
+		if(file.requestCount < 1)
+		{
+			file.requestCount = 1;
+		}
+		updatePriority(file);
+		queue.add(file);
+	}
+
+	public void onAccess(CachedFileInfo file)
+	{
+		// frequency is counted per request, see recordRequest.
+	}
+
+	public void onRemove(CachedFileInfo file)
+	{
+		queue.remove(file);
+	}
+
+	public void onEvict(CachedFileInfo file)
+	{
+		//inflate so that the remaining files age
+		clock = Math.max(clock,file.priority);
+		queue.remove(file);
+	}
+
+	public void recordRequest(String cachePath,CachedFileInfo file)
+	{
+		if(file == null || !queue.remove(file))
+		{
+			return;
+		}
+		file.requestCount++;
+		updatePriority(file);
+		queue.add(file);
+	}
+
+	public int frequency(String cachePath)
+	{
+		return 0;
+	}
+
+	public CachedFileInfo victim()
+	{
+		for(CachedFileInfo tempFile : queue)
+		{
+			if(tempFile.isReadOnly && tempFile.readerCount == 0)
+			{
+				return tempFile;
+			}
+		}
+		return null;
+	}
+
+	public boolean admit(int candidateFrequency, CachedFileInfo victim)
+	{
+		return true;
+	}
+}
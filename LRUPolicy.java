@@ -0,0 +1,55 @@
+/**
+ * Plain least recently used eviction. Admits everything.
+ */
+public class LRUPolicy implements EvictionPolicy
+{
+	private UsageList usageList;
+
+	/**
+	 * Constructor
+	 */
+	public LRUPolicy()
+	{
+		usageList = new UsageList();
+	}
+
+	public void onInsert(CachedFileInfo file)
+	{
+		usageList.addFirst(file);
+	}
+
+	public void onAccess(CachedFileInfo file)
+	{
+		usageList.moveToFront(file);
+	}
+
+	public void onRemove(CachedFileInfo file)
+	{
+		usageList.remove(file);
+	}
+
+	public void onEvict(CachedFileInfo file)
+	{
+		onRemove(file);
+	}
+
+	public void recordRequest(String cachePath,CachedFileInfo file)
+	{
+		// recency only.
+	}
+
+	public int frequency(String cachePath)
+	{
+		return 0;
+	}
+
+	public CachedFileInfo victim()
+	{
+		return usageList.lastEvictable();
+	}
+
+	public boolean admit(int candidateFrequency, CachedFileInfo victim)
+	{
+		return true;
+	}
+}
@@ -0,0 +1,201 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read leases granted by the server, keyed by the path the client asked
+ * for. While a lease is valid the server promises not to change the file,
+ * so a read open can use the leased file info without calling getFileInfo.
+ *
+ * Expiry is measured on this side from the moment the request was sent,
+ * so clock differences never make a lease look longer than granted.
+ *
+ * Callback leases have no expiry of their own; they hold until the server
+ * invalidates them, as long as the callback registration is renewed in
+ * time (see renewed).
+ *
+ * An invalidation can overtake the reply that grants a lease. Every
+ * invalidation bumps an epoch and stamps its paths with it; a grant is
+ * refused if its path was stamped after the epoch taken before the
+ * request was sent.
+ */
+public class LeaseTable
+{
+	//invalidated paths remembered before they are all forgotten at once
+	public static final int MAXINVALIDATED = 4096;
+
+	/**
+	 * A granted lease.
+	 */
+	private static class Lease
+	{
+		CachedFileInfo fileInfo;
+		long expiryNanos;
+		boolean isCallback;
+
+		Lease(CachedFileInfo info,long expiry,boolean callback)
+		{
+			fileInfo = info;
+			expiryNanos = expiry;
+			isCallback = callback;
+		}
+	}
+
+	private ConcurrentHashMap<String,Lease> leases;
+
+	//callback leases are trusted until then.
+	private volatile long callbackExpiryNanos;
+
+	//bumped by every invalidation and clear.
+	private AtomicLong epoch;
+	//path, client or normalized, vs the epoch it was last invalidated in.
+	private ConcurrentHashMap<String,Long> invalidatedEpochs;
+	//epoch of the last clear, which invalidates every path.
+	private long clearedEpoch;
+
+	/**
+	 * Constructor
+	 */
+	public LeaseTable()
+	{
+		leases = new ConcurrentHashMap<String,Lease>();
+		callbackExpiryNanos = System.nanoTime();
+		epoch = new AtomicLong();
+		invalidatedEpochs = new ConcurrentHashMap<String,Long>();
+		clearedEpoch = 0;
+	}
+
+	/**
+	 * @return  the epoch to pass to grant, taken before the request
+	 */
+	public long epoch()
+	{
+		return epoch.get();
+	}
+
+	/**
+	 * @param  path
+	 * @param  sentEpoch
+	 * @return  true if the path was invalidated after sentEpoch
+	 */
+	private boolean invalidatedSince(String path,long sentEpoch)
+	{
+		Long invalidated = path == null ? null : invalidatedEpochs.get(path);
+		return invalidated != null && invalidated > sentEpoch;
+	}
+
+	/**
+	 * Records the lease that came with a getFileInfo reply.
+	 * @param path      path as asked by the client
+	 * @param fileInfo  reply of the server
+	 * @param sentNanos System.nanoTime() before the request was sent
+	 * @param sentEpoch epoch() before the request was sent
+	 */
+	public synchronized void grant(String path,CachedFileInfo fileInfo,long sentNanos,long sentEpoch)
+	{
+		//an invalidation of this file arrived before the reply.
+		if(clearedEpoch > sentEpoch || invalidatedSince(path,sentEpoch)
+		   || invalidatedSince(fileInfo.normalizedInputPath,sentEpoch))
+		{
+			return;
+		}
+
+		if(fileInfo.isCallbackLease)
+		{
+			leases.put(path,new Lease(fileInfo,0,true));
+			return;
+		}
+
+		if(fileInfo.leaseMillis <= 0)
+		{
+			return;
+		}
+		long expiry = sentNanos + fileInfo.leaseMillis * 1000000L;
+		leases.put(path,new Lease(fileInfo,expiry,false));
+	}
+
+	/**
+	 * The callback registration was renewed.
+	 * @param sentNanos   System.nanoTime() before the renewal was sent
+	 * @param leaseMillis how long the server keeps calling back from then
+	 */
+	public void renewed(long sentNanos,long leaseMillis)
+	{
+		callbackExpiryNanos = sentNanos + leaseMillis * 1000000L;
+	}
+
+	/**
+	 * Drops everything, e.g. when the server no longer calls us back.
+	 */
+	public synchronized void clear()
+	{
+		callbackExpiryNanos = System.nanoTime();
+		clearedEpoch = epoch.incrementAndGet();
+		invalidatedEpochs.clear();
+		leases.clear();
+	}
+
+	/**
+	 * @param  path path as asked by the client
+	 * @return  the leased file info or null if there is no valid lease.
+	 */
+	public CachedFileInfo lookup(String path)
+	{
+		Lease lease = leases.get(path);
+		if(lease == null)
+		{
+			return null;
+		}
+
+		long expiry = lease.isCallback ? callbackExpiryNanos : lease.expiryNanos;
+		if(System.nanoTime() - expiry >= 0)
+		{
+			leases.remove(path,lease);
+			return null;
+		}
+		return lease.fileInfo;
+	}
+
+	/**
+	 * Drops every lease on the file, under any client path.
+	 * @param normalizedPath server normalized path
+	 */
+	public void invalidate(String normalizedPath)
+	{
+		invalidate(new String[] { normalizedPath });
+	}
+
+	/**
+	 * Drops every lease on the files, in one pass over the table.
+	 * @param normalizedPaths server normalized paths
+	 */
+	public synchronized void invalidate(String[] normalizedPaths)
+	{
+		long invalidated = epoch.incrementAndGet();
+		//forgetting them refuses the grants in flight, as a clear does.
+		if(invalidatedEpochs.size() + normalizedPaths.length > MAXINVALIDATED)
+		{
+			invalidatedEpochs.clear();
+			clearedEpoch = invalidated;
+		}
+		for(String path : normalizedPaths)
+		{
+			invalidatedEpochs.put(path,invalidated);
+		}
+
+		HashSet<String> paths = new HashSet<String>(Arrays.asList(normalizedPaths));
+		Iterator<Map.Entry<String,Lease>> it = leases.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<String,Lease> entry = it.next();
+			if(paths.contains(entry.getValue().fileInfo.normalizedInputPath)
+			   || paths.contains(entry.getKey()))
+			{
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,510 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RemoteCallable over the binary NioProtocol instead of RMI.
+ *
+ * All calls share one socket. Requests are written under a lock and tagged
+ * with an id; a reader thread completes the waiting call when the reply
+ * with that id comes back, so the chunk downloads stay in flight together.
+ *
+ * Callback registration, getBlockHashes and the begin, commit and abort
+ * of staged uploads are not part of the protocol and go over RMI; only
+ * their chunks do.
+ * If the socket breaks it is closed and every call from then on falls
+ * back to RMI too; the client does not reconnect.
+ */
+public class NioClient implements RemoteCallable
+{
+	private SocketChannel channel;
+	private Object writeLock;
+	private AtomicLong nextRequestId;
+	private ConcurrentHashMap<Long,Call> pending;
+	private RemoteCallable fallback;
+	private volatile boolean broken;
+	//size and codec of download replies, used by the reader thread only.
+	private ByteBuffer chunkSize = ByteBuffer.allocate(4 + 1);
+
+	/**
+	 * A request waiting for its reply. A download names the chunk its
+	 * bytes are read into, straight from the socket.
+	 */
+	private static class Call
+	{
+		CompletableFuture<ByteBuffer> reply = new CompletableFuture<ByteBuffer>();
+		Chunk into;
+	}
+
+	/**
+	 * Constructor
+	 * @param  host      server host
+	 * @param  port      NioServer port
+	 * @param  rmiServer RMI stub for the rest
+	 * @throws IOException if the server cannot be reached
+	 */
+	public NioClient(String host,int port,RemoteCallable rmiServer) throws IOException
+	{
+		this.channel = SocketChannel.open(new InetSocketAddress(host,port));
+		this.channel.socket().setTcpNoDelay(true);
+		this.writeLock = new Object();
+		this.nextRequestId = new AtomicLong();
+		this.pending = new ConcurrentHashMap<Long,Call>();
+		this.fallback = rmiServer;
+		this.broken = false;
+
+		Thread reader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				readReplies();
+			}
+		},"nio-client");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Reader loop: completes the pending call of every reply.
+	 */
+	private void readReplies()
+	{
+		ByteBuffer header = ByteBuffer.allocateDirect(NioProtocol.HEADERSIZE);
+		try
+		{
+			while(true)
+			{
+				header.clear();
+				readFully(header);
+				header.flip();
+
+				int length = header.getInt();
+				long requestId = header.getLong();
+				byte status = header.get();
+				if(length < NioProtocol.HEADERSIZE - 4 || length > NioProtocol.MAXFRAMESIZE)
+				{
+					throw new IOException("bad frame length "+length);
+				}
+
+				int payloadLength = length - (NioProtocol.HEADERSIZE - 4);
+				Call call = pending.remove(requestId);
+				if(call != null && call.into != null && status == NioProtocol.OK)
+				{
+					readChunk(call.into,payloadLength);
+					call.reply.complete(null);
+					continue;
+				}
+
+				ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+				readFully(payload);
+				payload.flip();
+
+				if(call == null)
+				{
+					continue;
+				}
+				if(status == NioProtocol.OK)
+				{
+					call.reply.complete(payload);
+				}
+				else
+				{
+					call.reply.completeExceptionally(new RemoteException(NioProtocol.getString(payload)));
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("NIO connection lost, using RMI:"+e.getMessage());
+			disconnect();
+			for(Long requestId : pending.keySet())
+			{
+				Call call = pending.remove(requestId);
+				if(call != null)
+				{
+					call.reply.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a download reply, the size, the codec and then the bytes into
+	 * a pooled buffer of the chunk. Compressed bytes are left for the
+	 * caller to unpack, off the reader thread.
+	 * @param chunk
+	 * @param payloadLength
+	 */
+	private void readChunk(Chunk chunk,int payloadLength) throws IOException
+	{
+		chunkSize.clear();
+		readFully(chunkSize);
+		chunk.size = chunkSize.getInt(0);
+		chunk.codec = chunkSize.get(4);
+		int length = payloadLength - 4 - 1;
+		chunk.wireSize = length;
+		if(length > 0)
+		{
+			chunk.buffer = ChunkBufferPool.shared().borrow(length);
+			chunk.pooled = true;
+			readFully(ByteBuffer.wrap(chunk.buffer,0,length));
+		}
+	}
+
+	/**
+	 * Decompresses a downloaded chunk in place.
+	 * @param  chunk from readChunk
+	 * @return  chunk
+	 * @throws RemoteException if it does not decompress
+	 */
+	private Chunk unpack(Chunk chunk) throws RemoteException
+	{
+		if(chunk.codec == ChunkCodec.NONE || chunk.size <= 0)
+		{
+			return chunk;
+		}
+
+		long start = System.nanoTime();
+		byte[] raw = ChunkBufferPool.shared().borrow(chunk.size);
+		try
+		{
+			ChunkCodec.decompress(chunk.buffer,0,chunk.wireSize,raw,chunk.size);
+		}
+		catch(IOException e)
+		{
+			ChunkBufferPool.shared().release(raw);
+			ChunkBufferPool.release(chunk);
+			throw new RemoteException("Bad chunk at "+chunk.offset,e);
+		}
+		ChunkBufferPool.shared().release(chunk.buffer);
+		chunk.buffer = raw;
+		chunk.codecNanos = System.nanoTime() - start;
+		return chunk;
+	}
+
+	/**
+	 * Compresses the bytes of a chunk for an upload frame.
+	 * @param  chunk  to send with its codec, see Chunk.codec
+	 * @param  packed at least chunk.size bytes, or null
+	 * @return  the bytes to send after the size and codec
+	 */
+	private ByteBuffer pack(Chunk chunk,byte[] packed)
+	{
+		long start = System.nanoTime();
+		int packedSize = packed == null ? -1 : ChunkCodec.compress(chunk.codec,chunk.buffer,chunk.size,packed);
+		chunk.codecNanos = System.nanoTime() - start;
+		if(packedSize < 0)
+		{
+			chunk.codec = ChunkCodec.NONE;
+			chunk.wireSize = chunk.size;
+			return ByteBuffer.wrap(chunk.buffer,0,chunk.size);
+		}
+		chunk.wireSize = packedSize;
+		return ByteBuffer.wrap(packed,0,packedSize);
+	}
+
+	private static byte[] packBuffer(Chunk chunk)
+	{
+		if(chunk.codec == ChunkCodec.NONE || chunk.size <= 0)
+		{
+			return null;
+		}
+		return ChunkBufferPool.shared().borrow(chunk.size);
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer) < 0)
+			{
+				throw new IOException("end of stream");
+			}
+		}
+	}
+
+	/**
+	 * Sends every later call over RMI and closes the socket, which ends
+	 * the reader thread.
+	 */
+	private void disconnect()
+	{
+		broken = true;
+		try
+		{
+			channel.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private ByteBuffer call(ByteBuffer request,long requestId) throws RemoteException
+	{
+		return call(new ByteBuffer[]{request},requestId,null);
+	}
+
+	/**
+	 * Sends a request and waits for its reply.
+	 * @param  request   frame built with beginFrame/endFrame, in pieces
+	 * @param  requestId
+	 * @param  into      chunk a download is read into, else null
+	 * @return  reply payload
+	 * @throws RemoteException if the call failed on either side
+	 */
+	private ByteBuffer call(ByteBuffer[] request,long requestId,Chunk into) throws RemoteException
+	{
+		Call call = new Call();
+		call.into = into;
+		pending.put(requestId,call);
+		try
+		{
+			synchronized(writeLock)
+			{
+				for(ByteBuffer piece : request)
+				{
+					while(piece.hasRemaining())
+					{
+						channel.write(request);
+					}
+				}
+			}
+			return call.reply.get();
+		}
+		catch(IOException e)
+		{
+			pending.remove(requestId);
+			//the reader thread fails the other pending calls and exits.
+			disconnect();
+			throw new RemoteException("NIO call failed",e);
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof RemoteException)
+			{
+				throw (RemoteException)e.getCause();
+			}
+			throw new RemoteException("NIO call failed",e.getCause());
+		}
+		catch(InterruptedException e)
+		{
+			pending.remove(requestId);
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted",e);
+		}
+	}
+
+	/**
+	 * Starts a request frame for path.
+	 * @param  opcode
+	 * @param  path
+	 * @param  extra  payload bytes after the path
+	 * @return  buffer positioned after the path
+	 */
+	private ByteBuffer newRequest(byte opcode,String path,int extra,long requestId)
+	{
+		ByteBuffer request = ByteBuffer.allocate(NioProtocol.HEADERSIZE
+													   + NioProtocol.stringSize(path) + extra);
+		NioProtocol.beginFrame(request,requestId,opcode);
+		NioProtocol.putString(request,path);
+		return request;
+	}
+
+	public CachedFileInfo getFileInfo(String path,FileHandling.OpenOption o) throws RemoteException
+	{
+		return getFileInfo(path,o,-1);
+	}
+
+	public CachedFileInfo getFileInfo(String path,FileHandling.OpenOption o,int proxyId) throws RemoteException
+	{
+		if(broken)
+		{
+			return fallback.getFileInfo(path,o,proxyId);
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		String option = o.name();
+		ByteBuffer request = newRequest(NioProtocol.GETFILEINFO,path,
+										NioProtocol.stringSize(option) + 4,requestId);
+		NioProtocol.putString(request,option);
+		request.putInt(proxyId);
+		NioProtocol.endFrame(request);
+		return NioProtocol.getFileInfo(call(request,requestId));
+	}
+
+	public Chunk downloadChunkFromServer(String path,long offset) throws RemoteException
+	{
+		return downloadChunkFromServer(path,offset,Server.MAXCHUNKSIZE);
+	}
+
+	public Chunk downloadChunkFromServer(String path,long offset,int length) throws RemoteException
+	{
+		if(broken)
+		{
+			return fallback.downloadChunkFromServer(path,offset,length);
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		ByteBuffer request = newRequest(NioProtocol.DOWNLOADCHUNK,path,8 + 4,requestId);
+		request.putLong(offset);
+		request.putInt(length);
+		NioProtocol.endFrame(request);
+
+		Chunk chunk = new Chunk();
+		chunk.offset = offset;
+		call(new ByteBuffer[]{request},requestId,chunk);
+		return unpack(chunk);
+	}
+
+	public Chunk downloadChunkFromServer(String path,long offset,int length,long version)
+		throws RemoteException
+	{
+		if(broken)
+		{
+			return fallback.downloadChunkFromServer(path,offset,length,version);
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		ByteBuffer request = newRequest(NioProtocol.DOWNLOADVERSION,path,8 + 4 + 8,requestId);
+		request.putLong(offset);
+		request.putInt(length);
+		request.putLong(version);
+		NioProtocol.endFrame(request);
+
+		Chunk chunk = new Chunk();
+		chunk.offset = offset;
+		call(new ByteBuffer[]{request},requestId,chunk);
+		return unpack(chunk);
+	}
+
+	public void uploadFileToServer(String path,Chunk chunk) throws RemoteException
+	{
+		if(broken)
+		{
+			fallback.uploadFileToServer(path,chunk);
+			return;
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		byte[] packed = packBuffer(chunk);
+		try
+		{
+			//the bytes go from the chunk buffer, not copied into the frame.
+			ByteBuffer data = pack(chunk,packed);
+			ByteBuffer request = newRequest(NioProtocol.UPLOADCHUNK,path,8 + 4 + 1,requestId);
+			request.putLong(chunk.offset);
+			request.putInt(chunk.size);
+			request.put(chunk.codec);
+			NioProtocol.endFrame(request,data.remaining());
+			call(new ByteBuffer[]{request,data},requestId,null);
+		}
+		finally
+		{
+			ChunkBufferPool.shared().release(packed);
+		}
+	}
+
+	public void deleteOldVersion(String path) throws RemoteException
+	{
+		if(broken)
+		{
+			fallback.deleteOldVersion(path);
+			return;
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		ByteBuffer request = newRequest(NioProtocol.DELETEOLDVERSION,path,0,requestId);
+		NioProtocol.endFrame(request);
+		call(request,requestId);
+	}
+
+	public long updateVersionNumber(String path) throws RemoteException
+	{
+		if(broken)
+		{
+			return fallback.updateVersionNumber(path);
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		ByteBuffer request = newRequest(NioProtocol.UPDATEVERSION,path,0,requestId);
+		NioProtocol.endFrame(request);
+		return call(request,requestId).getLong();
+	}
+
+	public int unlinkFile(String path) throws RemoteException
+	{
+		if(broken)
+		{
+			return fallback.unlinkFile(path);
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		ByteBuffer request = newRequest(NioProtocol.UNLINK,path,0,requestId);
+		NioProtocol.endFrame(request);
+		return call(request,requestId).getInt();
+	}
+
+	public BlockHashes getBlockHashes(String path,int blockSize) throws RemoteException
+	{
+		return fallback.getBlockHashes(path,blockSize);
+	}
+
+	public long beginUpload(String path,long baseVersion) throws RemoteException
+	{
+		return fallback.beginUpload(path,baseVersion);
+	}
+
+	public boolean uploadChunk(long uploadId,Chunk chunk) throws RemoteException
+	{
+		if(broken)
+		{
+			return fallback.uploadChunk(uploadId,chunk);
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		byte[] packed = packBuffer(chunk);
+		try
+		{
+			ByteBuffer data = pack(chunk,packed);
+			ByteBuffer request = newRequest(NioProtocol.UPLOADSTAGED,null,8 + 8 + 4 + 1,requestId);
+			request.putLong(uploadId);
+			request.putLong(chunk.offset);
+			request.putInt(chunk.size);
+			request.put(chunk.codec);
+			NioProtocol.endFrame(request,data.remaining());
+			ByteBuffer reply = call(new ByteBuffer[]{request,data},requestId,null);
+			return reply.get() != 0;
+		}
+		finally
+		{
+			ChunkBufferPool.shared().release(packed);
+		}
+	}
+
+	public long commitUpload(long uploadId,long length) throws RemoteException
+	{
+		return fallback.commitUpload(uploadId,length);
+	}
+
+	public void abortUpload(long uploadId) throws RemoteException
+	{
+		fallback.abortUpload(uploadId);
+	}
+
+	public int registerCallback(RemoteInvalidatable callback) throws RemoteException
+	{
+		return fallback.registerCallback(callback);
+	}
+
+	public long renewCallbacks(int proxyId) throws RemoteException
+	{
+		return fallback.renewCallbacks(proxyId);
+	}
+}
@@ -0,0 +1,151 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of the NIO transport between NioClient and NioServer.
+ *
+ * Every message is a frame:
+ *
+ *     int  length     bytes after this field
+ *     long requestId  echoed in the reply, for multiplexing
+ *     byte code       opcode in requests, status in replies
+ *     ...  payload
+ *
+ * Strings are an int byte count (-1 for null) followed by UTF-8 bytes.
+ * Chunk bytes, both ways, follow an int raw size and a ChunkCodec byte;
+ * unless that is NONE they are compressed and fill the rest of the frame.
+ */
+public class NioProtocol
+{
+	public static final int HEADERSIZE = 4 + 8 + 1;
+	public static final int MAXFRAMESIZE = 64 * 1024 * 1024;
+
+	//opcodes
+	public static final byte GETFILEINFO = 1;
+	public static final byte DOWNLOADCHUNK = 2;
+	public static final byte UPLOADCHUNK = 3;
+	public static final byte DELETEOLDVERSION = 4;
+	public static final byte UPDATEVERSION = 5;
+	public static final byte UNLINK = 6;
+	//chunk of a staged upload, with a null path
+	public static final byte UPLOADSTAGED = 7;
+	//chunk of one version of the file, an error if it changed
+	public static final byte DOWNLOADVERSION = 8;
+
+	//reply status
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+
+	/**
+	 * Writes the frame header. The length is patched by endFrame.
+	 * @param buffer
+	 * @param requestId
+	 * @param code
+	 */
+	public static void beginFrame(ByteBuffer buffer,long requestId,byte code)
+	{
+		buffer.putInt(0);
+		buffer.putLong(requestId);
+		buffer.put(code);
+	}
+
+	/**
+	 * Patches the length of a frame started at position 0 and flips the
+	 * buffer for writing.
+	 * @param buffer
+	 */
+	public static void endFrame(ByteBuffer buffer)
+	{
+		buffer.putInt(0,buffer.position() - 4);
+		buffer.flip();
+	}
+
+	/**
+	 * Like endFrame, for a frame whose last trailing bytes are sent
+	 * separately after the buffer.
+	 * @param buffer
+	 * @param trailing
+	 */
+	public static void endFrame(ByteBuffer buffer,int trailing)
+	{
+		buffer.putInt(0,buffer.position() - 4 + trailing);
+		buffer.flip();
+	}
+
+	public static int stringSize(String value)
+	{
+		if(value == null)
+		{
+			return 4;
+		}
+		return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	public static void putString(ByteBuffer buffer,String value)
+	{
+		if(value == null)
+		{
+			buffer.putInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	public static String getString(ByteBuffer buffer)
+	{
+		int length = buffer.getInt();
+		if(length < 0)
+		{
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	public static int fileInfoSize(CachedFileInfo info)
+	{
+		return stringSize(info.path) + stringSize(info.cachePath)
+			   + stringSize(info.normalizedInputPath) + 4 * 3 + 8 * 3 + 5;
+	}
+
+	public static void putFileInfo(ByteBuffer buffer,CachedFileInfo info)
+	{
+		putString(buffer,info.path);
+		putString(buffer,info.cachePath);
+		putString(buffer,info.normalizedInputPath);
+		buffer.putInt(info.errorCode);
+		buffer.putInt(info.versionNumber);
+		buffer.putInt(info.readerCount);
+		buffer.putLong(info.fileSize);
+		buffer.putLong(info.lastModifiedTime);
+		buffer.putLong(info.leaseMillis);
+		buffer.put((byte)(info.isCallbackLease ? 1 : 0));
+		buffer.put((byte)(info.isDir ? 1 : 0));
+		buffer.put((byte)(info.isModified ? 1 : 0));
+		buffer.put((byte)(info.isInUse ? 1 : 0));
+		buffer.put((byte)(info.isReadOnly ? 1 : 0));
+	}
+
+	public static CachedFileInfo getFileInfo(ByteBuffer buffer)
+	{
+		CachedFileInfo info = new CachedFileInfo();
+		info.path = getString(buffer);
+		info.cachePath = getString(buffer);
+		info.normalizedInputPath = getString(buffer);
+		info.errorCode = buffer.getInt();
+		info.versionNumber = buffer.getInt();
+		info.readerCount = buffer.getInt();
+		info.fileSize = buffer.getLong();
+		info.lastModifiedTime = buffer.getLong();
+		info.leaseMillis = buffer.getLong();
+		info.isCallbackLease = buffer.get() != 0;
+		info.isDir = buffer.get() != 0;
+		info.isModified = buffer.get() != 0;
+		info.isInUse = buffer.get() != 0;
+		info.isReadOnly = buffer.get() != 0;
+		return info;
+	}
+}
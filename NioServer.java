@@ -0,0 +1,566 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the RemoteCallable operations over the binary NioProtocol.
+ *
+ * One selector thread accepts connections, reads frames into a per
+ * connection direct buffer and writes replies. Complete requests are run
+ * on a worker pool, so a slow request never holds up the others on the
+ * same connection; replies go out in completion order and the client
+ * matches them by request id.
+ *
+ * Chunk data is never copied into the JVM: a download reply is a small
+ * header followed by a file region that is sent with transferTo.
+ */
+public class NioServer implements Runnable
+{
+	public static final int INITIALBUFFERSIZE = 2 * 1024 * 1024;
+
+	/**
+	 * One reply: a buffer, optionally followed by a region of a file.
+	 */
+	private class Outbound
+	{
+		ByteBuffer buffer;
+		FileHandleCache.Handle file;
+		long position;
+		long remaining;
+
+		Outbound(ByteBuffer reply)
+		{
+			this.buffer = reply;
+		}
+
+		void close()
+		{
+			if(file != null)
+			{
+				target.releaseHandle(file);
+				file = null;
+			}
+		}
+	}
+
+	/**
+	 * State of one client connection. Only the selector thread touches
+	 * in; out is shared with the workers.
+	 */
+	private static class Connection
+	{
+		SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer in;
+		ArrayDeque<Outbound> out = new ArrayDeque<Outbound>();
+	}
+
+	private Server target;
+	private Selector selector;
+	private ServerSocketChannel acceptor;
+	private ExecutorService workers;
+
+	//connections with replies queued by workers.
+	private ConcurrentLinkedQueue<Connection> pendingWrites;
+
+	/**
+	 * Constructor
+	 * @param  server  the file server
+	 * @param  port    port to listen on
+	 * @param  threads worker threads
+	 * @throws IOException if the port cannot be bound
+	 */
+	public NioServer(Server server,int port,int threads) throws IOException
+	{
+		this.target = server;
+		this.selector = Selector.open();
+		this.acceptor = ServerSocketChannel.open();
+		this.acceptor.bind(new InetSocketAddress(port));
+		this.acceptor.configureBlocking(false);
+		this.acceptor.register(selector,SelectionKey.OP_ACCEPT);
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.pendingWrites = new ConcurrentLinkedQueue<Connection>();
+	}
+
+	/**
+	 * Starts the selector thread.
+	 */
+	public void start()
+	{
+		Thread thread = new Thread(this,"nio-server");
+		thread.start();
+	}
+
+	/**
+	 * Selector loop.
+	 */
+	public void run()
+	{
+		while(true)
+		{
+			try
+			{
+				selector.select();
+
+				Connection pending;
+				while((pending = pendingWrites.poll()) != null)
+				{
+					if(pending.key.isValid())
+					{
+						pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+
+					if(!key.isValid())
+					{
+						continue;
+					}
+
+					try
+					{
+						if(key.isAcceptable())
+						{
+							accept();
+						}
+						else
+						{
+							Connection conn = (Connection)key.attachment();
+							if(key.isReadable())
+							{
+								readFrames(conn);
+							}
+							if(key.isValid() && key.isWritable())
+							{
+								writeReplies(conn);
+							}
+						}
+					}
+					catch(IOException e)
+					{
+						System.err.println("NIO connection closed:"+e.getMessage());
+						close(key);
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Drops a connection and the files of its unsent replies.
+	 * @param key
+	 */
+	private void close(SelectionKey key) throws IOException
+	{
+		key.cancel();
+		key.channel().close();
+
+		Connection conn = (Connection)key.attachment();
+		if(conn != null)
+		{
+			synchronized(conn.out)
+			{
+				for(Outbound reply : conn.out)
+				{
+					reply.close();
+				}
+				conn.out.clear();
+			}
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel = acceptor.accept();
+		if(channel == null)
+		{
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		Connection conn = new Connection();
+		conn.channel = channel;
+		conn.in = ByteBuffer.allocateDirect(INITIALBUFFERSIZE);
+		conn.key = channel.register(selector,SelectionKey.OP_READ,conn);
+	}
+
+	/**
+	 * Reads what is available and dispatches every complete frame. After
+	 * growing the buffer for a big frame it reads again, so that frame is
+	 * not left waiting for the next select.
+	 * @param conn
+	 */
+	private void readFrames(final Connection conn) throws IOException
+	{
+		boolean grown = true;
+		while(grown)
+		{
+			grown = false;
+			if(conn.channel.read(conn.in) < 0)
+			{
+				throw new IOException("end of stream");
+			}
+
+			conn.in.flip();
+			while(conn.in.remaining() >= 4)
+			{
+				int length = conn.in.getInt(conn.in.position());
+				if(length < NioProtocol.HEADERSIZE - 4 || length > NioProtocol.MAXFRAMESIZE)
+				{
+					throw new IOException("bad frame length "+length);
+				}
+
+				if(conn.in.remaining() < 4 + length)
+				{
+					//grow for frames bigger than the buffer
+					if(conn.in.capacity() < 4 + length)
+					{
+						ByteBuffer bigger = ByteBuffer.allocateDirect(4 + length);
+						bigger.put(conn.in);
+						bigger.flip();
+						conn.in = bigger;
+						grown = true;
+					}
+					break;
+				}
+
+				final ByteBuffer frame
+						= ByteBuffer.wrap(ChunkBufferPool.shared().borrow(length),0,length);
+				conn.in.getInt();
+				int limit = conn.in.limit();
+				conn.in.limit(conn.in.position() + length);
+				frame.put(conn.in);
+				conn.in.limit(limit);
+				frame.flip();
+
+				workers.submit(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							reply(conn,handle(frame));
+						}
+						finally
+						{
+							ChunkBufferPool.shared().release(frame.array());
+						}
+					}
+				});
+			}
+			conn.in.compact();
+		}
+	}
+
+	/**
+	 * Writes queued replies until the socket is full.
+	 * @param conn
+	 */
+	private void writeReplies(Connection conn) throws IOException
+	{
+		synchronized(conn.out)
+		{
+			while(!conn.out.isEmpty())
+			{
+				Outbound head = conn.out.peekFirst();
+				conn.channel.write(head.buffer);
+				if(head.buffer.hasRemaining())
+				{
+					return;
+				}
+
+				while(head.remaining > 0)
+				{
+					FileChannel file = head.file.channel;
+					long sent = file.transferTo(head.position,head.remaining,conn.channel);
+					if(sent == 0)
+					{
+						if(head.position >= file.size())
+						{
+							throw new IOException("file shrank while sending");
+						}
+						return; //socket full
+					}
+					head.position += sent;
+					head.remaining -= sent;
+				}
+				head.close();
+				conn.out.pollFirst();
+			}
+			conn.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Queues a reply and wakes the selector to write it.
+	 * @param conn
+	 * @param reply
+	 */
+	private void reply(Connection conn,Outbound reply)
+	{
+		synchronized(conn.out)
+		{
+			conn.out.addLast(reply);
+		}
+		pendingWrites.add(conn);
+		selector.wakeup();
+	}
+
+	/**
+	 * Reads a chunk region into memory and replies with it compressed, or
+	 * raw if it does not shrink.
+	 * @param  requestId
+	 * @param  file      pinned, released here
+	 * @param  offset
+	 * @param  length    bytes of the region
+	 * @return  reply
+	 */
+	private Outbound compressedChunk(long requestId,FileHandleCache.Handle file,
+									 long offset,int length) throws IOException
+	{
+		byte[] raw = ChunkBufferPool.shared().borrow(length);
+		byte[] packed = ChunkBufferPool.shared().borrow(length);
+		try
+		{
+			ByteBuffer region = ByteBuffer.wrap(raw,0,length);
+			try
+			{
+				while(region.hasRemaining())
+				{
+					if(file.channel.read(region,offset + region.position()) < 0)
+					{
+						break; //file shrank meanwhile
+					}
+				}
+			}
+			finally
+			{
+				target.releaseHandle(file);
+			}
+			int size = region.position();
+
+			int packedSize = ChunkCodec.compress(Server.COMPRESSION,raw,size,packed);
+			byte codec = packedSize < 0 ? ChunkCodec.NONE : Server.COMPRESSION;
+			int wireSize = packedSize < 0 ? size : packedSize;
+			ByteBuffer reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE + 4 + 1 + wireSize);
+			NioProtocol.beginFrame(reply,requestId,NioProtocol.OK);
+			reply.putInt(size);
+			reply.put(codec);
+			reply.put(packedSize < 0 ? raw : packed,0,wireSize);
+			NioProtocol.endFrame(reply);
+			return new Outbound(reply);
+		}
+		finally
+		{
+			ChunkBufferPool.shared().release(raw);
+			ChunkBufferPool.shared().release(packed);
+		}
+	}
+
+	/**
+	 * Reads the size and codec of an uploaded chunk.
+	 * @param  frame positioned at the size
+	 * @return  the raw bytes: the frame limited to them, or a pooled
+	 *          buffer they were decompressed into, to release
+	 * @throws IOException if the bytes do not decompress
+	 */
+	private ByteBuffer unpack(ByteBuffer frame) throws IOException
+	{
+		int size = frame.getInt();
+		byte codec = frame.get();
+		if(codec == ChunkCodec.NONE)
+		{
+			frame.limit(frame.position() + size);
+			return frame;
+		}
+
+		byte[] raw = ChunkBufferPool.shared().borrow(size);
+		try
+		{
+			ChunkCodec.decompress(frame.array(),frame.position(),frame.remaining(),raw,size);
+		}
+		catch(IOException e)
+		{
+			ChunkBufferPool.shared().release(raw);
+			throw e;
+		}
+		return ByteBuffer.wrap(raw,0,size);
+	}
+
+	/**
+	 * Runs one request.
+	 * @param  frame request without the length field
+	 * @return  reply ready for writing
+	 */
+	private Outbound handle(ByteBuffer frame)
+	{
+		long requestId = frame.getLong();
+		byte opcode = frame.get();
+
+		try
+		{
+			ByteBuffer reply;
+			String path = NioProtocol.getString(frame);
+			switch(opcode)
+			{
+				case NioProtocol.GETFILEINFO:
+				{
+					FileHandling.OpenOption o
+							= FileHandling.OpenOption.valueOf(NioProtocol.getString(frame));
+					int proxyId = frame.getInt();
+					CachedFileInfo info = target.getFileInfo(path,o,proxyId);
+					reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE + NioProtocol.fileInfoSize(info));
+					NioProtocol.beginFrame(reply,requestId,NioProtocol.OK);
+					NioProtocol.putFileInfo(reply,info);
+					break;
+				}
+				case NioProtocol.DOWNLOADCHUNK:
+				case NioProtocol.DOWNLOADVERSION:
+				{
+					long offset = frame.getLong();
+					int asked = frame.getInt();
+					FileHandleCache.Handle file;
+					if(opcode == NioProtocol.DOWNLOADVERSION)
+					{
+						file = target.acquireForRead(path,frame.getLong());
+					}
+					else
+					{
+						file = target.acquireForRead(path);
+					}
+					int length;
+					try
+					{
+						length = Server.chunkLength(file.channel.size(),offset,asked);
+					}
+					catch(IOException e)
+					{
+						target.releaseHandle(file);
+						throw e;
+					}
+
+					if(length > 0 && Server.COMPRESSION != ChunkCodec.NONE)
+					{
+						return compressedChunk(requestId,file,offset,length);
+					}
+
+					reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE + 4 + 1);
+					NioProtocol.beginFrame(reply,requestId,NioProtocol.OK);
+					reply.putInt(length);
+					reply.put(ChunkCodec.NONE);
+					if(length <= 0)
+					{
+						target.releaseHandle(file);
+						break;
+					}
+
+					NioProtocol.endFrame(reply,length);
+					Outbound region = new Outbound(reply);
+					region.file = file;
+					region.position = offset;
+					region.remaining = length;
+					return region;
+				}
+				case NioProtocol.UPLOADCHUNK:
+				{
+					long offset = frame.getLong();
+					ByteBuffer data = unpack(frame);
+					try
+					{
+						target.writeChunk(path,offset,data);
+					}
+					finally
+					{
+						if(data != frame)
+						{
+							ChunkBufferPool.shared().release(data.array());
+						}
+					}
+					reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE);
+					NioProtocol.beginFrame(reply,requestId,NioProtocol.OK);
+					break;
+				}
+				case NioProtocol.UPLOADSTAGED:
+				{
+					long uploadId = frame.getLong();
+					long offset = frame.getLong();
+					ByteBuffer data = unpack(frame);
+					boolean written;
+					try
+					{
+						written = target.writeStagedChunk(uploadId,offset,data);
+					}
+					finally
+					{
+						if(data != frame)
+						{
+							ChunkBufferPool.shared().release(data.array());
+						}
+					}
+					reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE + 1);
+					NioProtocol.beginFrame(reply,requestId,NioProtocol.OK);
+					reply.put((byte)(written ? 1 : 0));
+					break;
+				}
+				case NioProtocol.DELETEOLDVERSION:
+				{
+					target.deleteOldVersion(path);
+					reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE);
+					NioProtocol.beginFrame(reply,requestId,NioProtocol.OK);
+					break;
+				}
+				case NioProtocol.UPDATEVERSION:
+				{
+					long time = target.updateVersionNumber(path);
+					reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE + 8);
+					NioProtocol.beginFrame(reply,requestId,NioProtocol.OK);
+					reply.putLong(time);
+					break;
+				}
+				case NioProtocol.UNLINK:
+				{
+					int result = target.unlinkFile(path);
+					reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE + 4);
+					NioProtocol.beginFrame(reply,requestId,NioProtocol.OK);
+					reply.putInt(result);
+					break;
+				}
+				default:
+					throw new IOException("unknown opcode "+opcode);
+			}
+			NioProtocol.endFrame(reply);
+			return new Outbound(reply);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			String message = String.valueOf(e.getMessage());
+			ByteBuffer reply = ByteBuffer.allocate(NioProtocol.HEADERSIZE
+												 + NioProtocol.stringSize(message));
+			NioProtocol.beginFrame(reply,requestId,NioProtocol.ERROR);
+			NioProtocol.putString(reply,message);
+			NioProtocol.endFrame(reply);
+			return new Outbound(reply);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Copy-on-write private copy of a master: a sparse overlay file over the
+ * read only master, in BLOCKSIZE blocks.
+ *
+ * A block is read from the master until it is first written; then the
+ * master block is copied into the overlay at the same offset and written
+ * there. Blocks past the end of the master live in the overlay only. So
+ * opening a copy costs nothing and the copy takes as much disk as the
+ * blocks written, which growthFor counts before they are. The master must
+ * stay in place while the copy is open.
+ */
+public class OverlayFile implements SeekableFile
+{
+	public static final int BLOCKSIZE = 64 * 1024;
+
+	private SeekableFile master;
+	//kernel copies out of a plain master, null for other masters
+	private FileChannel masterChannel;
+	private long masterLength;
+	private RandomAccessFile overlay;
+	//blocks the overlay holds: master blocks copied and blocks written
+	private BitSet copied;
+	private long length;
+	private long position;
+
+	/**
+	 * Constructor
+	 * @param  masterPath  read only master
+	 * @param  overlayPath where written blocks go, created
+	 * @throws IOException
+	 */
+	public OverlayFile(String masterPath,String overlayPath) throws IOException
+	{
+		RandomAccessFile plain = new RandomAccessFile(masterPath,"r");
+		this.masterChannel = plain.getChannel();
+		open(new PlainFile(plain),overlayPath);
+	}
+
+	/**
+	 * Constructor
+	 * @param  masterFile  read only master, closed with the overlay
+	 * @param  overlayPath where written blocks go, created
+	 * @throws IOException
+	 */
+	public OverlayFile(SeekableFile masterFile,String overlayPath) throws IOException
+	{
+		open(masterFile,overlayPath);
+	}
+
+	private void open(SeekableFile masterFile,String overlayPath) throws IOException
+	{
+		this.master = masterFile;
+		try
+		{
+			this.overlay = new RandomAccessFile(overlayPath,"rw");
+		}
+		catch(IOException e)
+		{
+			master.close();
+			throw e;
+		}
+		this.masterLength = master.length();
+		this.length = masterLength;
+		this.position = 0;
+		this.copied = new BitSet();
+		//sparse, takes no disk until written.
+		overlay.setLength(length);
+	}
+
+	/**
+	 * Reads exactly count bytes of the master.
+	 */
+	private void readMaster(long from,byte[] buffer,int offset,int count) throws IOException
+	{
+		master.seek(from);
+		int done = 0;
+		while(done < count)
+		{
+			int read = master.read(buffer,offset + done,count - done);
+			if(read < 0)
+			{
+				throw new EOFException("master shorter than "+masterLength);
+			}
+			done += read;
+		}
+	}
+
+	/**
+	 * @param  block
+	 * @return  true if the overlay holds the block
+	 */
+	private boolean inOverlay(long block)
+	{
+		return block * BLOCKSIZE >= masterLength || copied.get((int)block);
+	}
+
+	public int read(byte[] buffer) throws IOException
+	{
+		return read(buffer,0,buffer.length);
+	}
+
+	public int read(byte[] buffer,int offset,int count) throws IOException
+	{
+		if(count == 0)
+		{
+			return 0;
+		}
+		if(position >= length)
+		{
+			return -1;
+		}
+
+		int total = (int)Math.min(count,length - position);
+		int done = 0;
+		while(done < total)
+		{
+			long block = position / BLOCKSIZE;
+			int piece = (int)Math.min(total - done,(block + 1) * BLOCKSIZE - position);
+			if(inOverlay(block))
+			{
+				overlay.seek(position);
+				overlay.readFully(buffer,offset + done,piece);
+			}
+			else
+			{
+				//master bytes, then zeros if the copy grew past them.
+				int fromMaster = (int)Math.max(0,Math.min(piece,masterLength - position));
+				readMaster(position,buffer,offset + done,fromMaster);
+				Arrays.fill(buffer,offset + done + fromMaster,offset + done + piece,(byte)0);
+			}
+			done += piece;
+			position += piece;
+		}
+		return total;
+	}
+
+	public void write(byte[] buffer) throws IOException
+	{
+		int done = 0;
+		while(done < buffer.length)
+		{
+			long block = position / BLOCKSIZE;
+			int piece = (int)Math.min(buffer.length - done,(block + 1) * BLOCKSIZE - position);
+			if(!inOverlay(block))
+			{
+				copyBlock(block);
+			}
+			overlay.seek(position);
+			overlay.write(buffer,done,piece);
+			copied.set((int)block);
+			done += piece;
+			position += piece;
+		}
+		length = Math.max(length,position);
+	}
+
+	/**
+	 * Copies a master block into the overlay before it is first written.
+	 * @param block
+	 */
+	private void copyBlock(long block) throws IOException
+	{
+		long start = block * BLOCKSIZE;
+		int size = (int)Math.min(BLOCKSIZE,masterLength - start);
+		byte[] data = new byte[size];
+		readMaster(start,data,0,size);
+		overlay.seek(start);
+		overlay.write(data);
+		copied.set((int)block);
+	}
+
+	public void seek(long newPosition) throws IOException
+	{
+		if(newPosition < 0)
+		{
+			throw new EOFException("negative seek");
+		}
+		position = newPosition;
+	}
+
+	public long getFilePointer()
+	{
+		return position;
+	}
+
+	public long length()
+	{
+		return length;
+	}
+
+	/**
+	 * @return  bytes of the blocks the overlay holds so far
+	 */
+	public long getCopiedBytes()
+	{
+		return (long)copied.cardinality() * BLOCKSIZE;
+	}
+
+	/**
+	 * Every block the write touches that the overlay does not hold yet
+	 * counts whole, whether it is copied from the master or new.
+	 */
+	public long growthFor(long position,int count)
+	{
+		if(count <= 0)
+		{
+			return 0;
+		}
+		long growth = 0;
+		long last = (position + count - 1) / BLOCKSIZE;
+		for(long block = position / BLOCKSIZE; block <= last; block++)
+		{
+			if(!copied.get((int)block))
+			{
+				growth += BLOCKSIZE;
+			}
+		}
+		return growth;
+	}
+
+	public long growthForDetach()
+	{
+		long blocks = (masterLength + BLOCKSIZE - 1) / BLOCKSIZE;
+		long growth = 0;
+		for(long block = 0; block < blocks; block++)
+		{
+			if(!copied.get((int)block))
+			{
+				growth += BLOCKSIZE;
+			}
+		}
+		return growth;
+	}
+
+	public void sync() throws IOException
+	{
+		overlay.getFD().sync();
+	}
+
+	/**
+	 * Copies the master blocks never written, the overlay becomes a full
+	 * copy. Runs of them are copied by the kernel if the master is a plain
+	 * file.
+	 */
+	public void detach() throws IOException
+	{
+		long blocks = (masterLength + BLOCKSIZE - 1) / BLOCKSIZE;
+		if(masterChannel == null)
+		{
+			for(long block = 0; block < blocks; block++)
+			{
+				if(!inOverlay(block))
+				{
+					copyBlock(block);
+				}
+			}
+			return;
+		}
+
+		FileChannel from = masterChannel;
+		FileChannel to = overlay.getChannel();
+		long block = 0;
+		while(block < blocks)
+		{
+			if(inOverlay(block))
+			{
+				block++;
+				continue;
+			}
+			long end = block + 1;
+			while(end < blocks && !inOverlay(end))
+			{
+				end++;
+			}
+
+			long start = block * BLOCKSIZE;
+			long stop = Math.min(end * BLOCKSIZE,masterLength);
+			to.position(start);
+			while(start < stop)
+			{
+				start += from.transferTo(start,stop - start,to);
+			}
+			copied.set((int)block,(int)end);
+			block = end;
+		}
+	}
+
+	public void close() throws IOException
+	{
+		try
+		{
+			overlay.close();
+		}
+		finally
+		{
+			master.close();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+
+/**
+ * SeekableFile that is one RandomAccessFile.
+ *
+ * A reflinked copy shares its first bytes with the master until they are
+ * rewritten; those take disk, counted in OverlayFile.BLOCKSIZE blocks, only
+ * when first written.
+ */
+public class PlainFile implements SeekableFile
+{
+	private RandomAccessFile file;
+	//bytes shared with the master, 0 if none
+	private long sharedLength;
+	//shared blocks rewritten so far
+	private BitSet unshared;
+
+	/**
+	 * Constructor
+	 * @param  randomAccessFile file to read and write
+	 */
+	public PlainFile(RandomAccessFile randomAccessFile)
+	{
+		this(randomAccessFile,0);
+	}
+
+	/**
+	 * Constructor
+	 * @param  randomAccessFile file to read and write
+	 * @param  sharedLength     bytes it shares with the master
+	 */
+	public PlainFile(RandomAccessFile randomAccessFile,long sharedLength)
+	{
+		this.file = randomAccessFile;
+		this.sharedLength = sharedLength;
+		this.unshared = new BitSet();
+	}
+
+	public int read(byte[] buffer) throws IOException
+	{
+		return file.read(buffer);
+	}
+
+	public int read(byte[] buffer,int offset,int length) throws IOException
+	{
+		return file.read(buffer,offset,length);
+	}
+
+	public void write(byte[] buffer) throws IOException
+	{
+		long position = file.getFilePointer();
+		file.write(buffer);
+		if(position < sharedLength && buffer.length > 0)
+		{
+			long end = Math.min(position + buffer.length,sharedLength);
+			unshared.set((int)(position / OverlayFile.BLOCKSIZE),
+						 (int)((end - 1) / OverlayFile.BLOCKSIZE) + 1);
+		}
+	}
+
+	public void seek(long position) throws IOException
+	{
+		file.seek(position);
+	}
+
+	public long getFilePointer() throws IOException
+	{
+		return file.getFilePointer();
+	}
+
+	public long length() throws IOException
+	{
+		return file.length();
+	}
+
+	public long growthFor(long position,int count) throws IOException
+	{
+		long end = position + count;
+		long growth = Math.max(0,end - file.length());
+		if(position < sharedLength && count > 0)
+		{
+			long last = (Math.min(end,sharedLength) - 1) / OverlayFile.BLOCKSIZE;
+			for(long block = position / OverlayFile.BLOCKSIZE; block <= last; block++)
+			{
+				if(!unshared.get((int)block))
+				{
+					growth += OverlayFile.BLOCKSIZE;
+				}
+			}
+		}
+		return growth;
+	}
+
+	public long growthForDetach()
+	{
+		return 0;
+	}
+
+	public void sync() throws IOException
+	{
+		file.getFD().sync();
+	}
+
+	public void detach()
+	{
+		//holds everything already.
+	}
+
+	public void close() throws IOException
+	{
+		file.close();
+	}
+}
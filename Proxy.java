@@ -10,10 +10,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.CompletableFuture;
 
 import java.nio.file.Paths;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
 
 
 /**
@@ -31,7 +37,127 @@ class Proxy
 	public static final int EIO = -5;
 	public static final int MAXCHUNKSIZE = 1024 * 1024;
 	public static final int FAILURE = -1;
+	public static final int NOTADMITTED = 300;
+
+	//Tunables, passed as -D system properties.
+	private static final int CACHESEGMENTS
+					= Integer.getInteger("proxy.cacheSegments",Cache.DEFAULTSEGMENTS);
+	//lru, tinylfu or gdsf
+	private static final String EVICTIONPOLICY
+					= System.getProperty("proxy.evictionPolicy",Cache.DEFAULTPOLICY);
+	//chunk requests in flight per download
+	private static final int DOWNLOADWINDOW
+					= Integer.getInteger("proxy.downloadWindow",4);
+	//return read fds before the master is fully downloaded
+	private static final boolean STREAMINGOPEN = Boolean.getBoolean("proxy.streamingOpen");
+	//let the server call us back instead of validating every open
+	private static final boolean CALLBACKS = Boolean.getBoolean("proxy.callbacks");
+	//rmi or nio, the binary transport on proxy.nioPort
+	private static final String TRANSPORT = System.getProperty("proxy.transport","rmi");
+	private static final int NIOPORT = Integer.getInteger("proxy.nioPort",0);
+	//largest chunk asked for, and bytes all chunks in flight may hold
+	private static final int MAXTRANSFERSIZE = Integer.getInteger("proxy.maxChunkSize",8 * 1024 * 1024);
+	private static final long CHUNKMEMORY = Long.getLong("proxy.chunkMemory",64L * 1024 * 1024);
+	//dirty ranges closer than this are sent as one
+	private static final long PATCHMERGEGAP = Long.getLong("proxy.patchMergeGap",64 * 1024);
+	//fetch only the blocks an older cached version does not have
+	private static final boolean DELTAFETCH = Boolean.getBoolean("proxy.deltaFetch");
+	//close queues the upload instead of waiting for it
+	private static final boolean WRITEBACK = Boolean.getBoolean("proxy.writeBack");
+	private static final int WRITEBACKTHREADS = Integer.getInteger("proxy.writeBackThreads",2);
+	private static final long WRITEBACKRETRYMILLIS = Long.getLong("proxy.writeBackRetryMillis",1000);
+	//times open asks the server again when an upload finished meanwhile
+	private static final int MAXOPENATTEMPTS = 3;
+	//sync queued copies to disk on close; off keeps close constant but a
+	//crash may lose them
+	private static final boolean WRITEBACKSYNC
+					= Boolean.parseBoolean(System.getProperty("proxy.writeBackSync","true"));
+	//queue directory inside the cache directory
+	private static final String WRITEBACKDIR = ".writeback";
+	//writers get an overlay over the master instead of a full copy
+	private static final boolean COPYONWRITE
+					= Boolean.parseBoolean(System.getProperty("proxy.copyOnWrite","true"));
+	//try a reflink copy (cp --reflink) first, needs btrfs, xfs or similar
+	private static final boolean REFLINK = Boolean.getBoolean("proxy.reflink");
+	//keep an index of the masters on disk and find them again on restart
+	private static final boolean CACHEINDEX
+					= Boolean.parseBoolean(System.getProperty("proxy.cacheIndex","true"));
+	//index directory inside the cache directory
+	private static final String CACHEINDEXDIR = ".index";
+	//bytes of the cache kept for files read in blocks, 0 for none
+	private static final long BLOCKCACHESIZE = Long.getLong("proxy.blockCacheSize",0);
+	private static final int BLOCKSIZE = Integer.getInteger("proxy.blockSize",1024 * 1024);
+	//reads of files this large, or too large for the rest of the cache,
+	//go through the block cache
+	private static final long BLOCKFILESIZE = Long.getLong("proxy.blockFileSize",64L * 1024 * 1024);
+	//block store file inside the cache directory
+	private static final String BLOCKSTORENAME = ".blocks";
+	//keep masters as content addressed blocks, each stored and fetched
+	//once however many paths or versions have it
+	private static final boolean DEDUPSTORE = Boolean.getBoolean("proxy.dedupStore");
+	private static final int DEDUPBLOCKSIZE = Integer.getInteger("proxy.dedupBlockSize",256 * 1024);
+	//content addressed store directory inside the cache directory
+	private static final String DEDUPSTORENAME = ".store";
+	//codec of uploaded chunks: none, fast or strong
+	private static final byte COMPRESSION
+					= ChunkCodec.parse(System.getProperty("proxy.compression","none"));
+	//codec masters are kept in on disk: none, fast or strong. The cache
+	//size then limits their compressed bytes.
+	private static final byte COMPRESSMASTERS
+					= ChunkCodec.parse(System.getProperty("proxy.compressMasters","none"));
+	private static final int COMPRESSBLOCKSIZE = Integer.getInteger("proxy.compressBlockSize",64 * 1024);
+	//decompressed blocks of compressed masters kept in memory
+	private static final long HOTBLOCKBYTES = Long.getLong("proxy.hotBlockBytes",16L * 1024 * 1024);
+
+	//threads for the parallel chunk downloads
+	private static ExecutorService downloadPool = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r,"chunk-download");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	private static Cache cache;
+
+	//chunk sizes picked from the throughput seen so far.
+	private static TransferMetrics downloadMetrics = new TransferMetrics("download");
+	private static TransferMetrics uploadMetrics = new TransferMetrics("upload");
+	private static ChunkSizer downloadSizer
+					= new ChunkSizer(MAXTRANSFERSIZE,CHUNKMEMORY,DOWNLOADWINDOW,downloadMetrics);
+	private static ChunkSizer uploadSizer
+					= new ChunkSizer(MAXTRANSFERSIZE,CHUNKMEMORY,1,uploadMetrics);
+
+	//read leases from the server.
+	private static LeaseTable leases = new LeaseTable();
+
+	//uploads of closed copies, null unless WRITEBACK.
+	private static WriteBackQueue writeBack;
+
+	//large files cached in blocks, null unless BLOCKCACHESIZE.
+	private static BlockCache blockCache;
+	private static long wholeFileLimit;
+
+	//masters kept as manifests of shared blocks, null unless DEDUPSTORE.
+	private static BlockStore blockStore;
+
+	//decompressed blocks shared by the readers of compressed masters.
+	private static CompressedFile.HotBlocks hotBlocks = new CompressedFile.HotBlocks(HOTBLOCKBYTES);
+
+	//invalidation callback registration, -1 if not registered.
+	private static volatile int callbackId = -1;
+	private static ProxyCallback callback;
+
+	//master copies being fetched right now, so that concurrent misses
+	//of the same version share one download.
+	private static ConcurrentHashMap<String,CompletableFuture<Integer>> pendingMasters
+					= new ConcurrentHashMap<String,CompletableFuture<Integer>>();
+
+	//master copies that are still being downloaded in the background.
+	private static ConcurrentHashMap<String,ChunkDownloader> fillingFiles
+					= new ConcurrentHashMap<String,ChunkDownloader>();
 	
 	private static AtomicInteger uniqueFD = new AtomicInteger(100);
 
@@ -67,6 +193,19 @@ class Proxy
 
 			rmiServer = (RemoteCallable) 
 						  Naming.lookup("//"+serverIP+":"+serverPort+"/Server"); 
+
+			if(TRANSPORT.equals("nio"))
+			{
+				try
+				{
+					rmiServer = new NioClient(serverIP,NIOPORT,rmiServer);
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+					System.err.println("NIO transport unavailable, using RMI");
+				}
+			}
 		}
 		catch(Exception e)
 		{
@@ -82,7 +221,150 @@ class Proxy
 		}
 
 
-		this.cache = new Cache(cacheSize);
+		//the block cache takes its share off the top.
+		long blockBytes = Math.min(BLOCKCACHESIZE,cacheSize);
+		wholeFileLimit = cacheSize - blockBytes;
+		this.cache = new Cache(wholeFileLimit,CACHESEGMENTS,EVICTIONPOLICY);
+
+		//before the index, which brings back the manifests.
+		if(DEDUPSTORE)
+		{
+			try
+			{
+				blockStore = new BlockStore(cacheDir+DEDUPSTORENAME);
+				cache.useStore(blockStore);
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				System.err.println("Block store unusable, masters kept whole");
+			}
+		}
+
+		if(CACHEINDEX)
+		{
+			try
+			{
+				cache.attachIndex(new CacheIndex(cacheDir,CACHEINDEXDIR),cacheDir);
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				System.err.println("Cache index unusable, starting cold");
+			}
+		}
+
+		//blocks of masters that were not brought back are left over.
+		if(blockStore != null)
+		{
+			blockStore.sweep();
+		}
+
+		//after the index, whose sweep would take the store for an orphan.
+		if(blockBytes > 0)
+		{
+			try
+			{
+				blockCache = new BlockCache(rmiServer,cacheDir+BLOCKSTORENAME,blockBytes,BLOCKSIZE);
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				System.err.println("Block cache unusable, large files cached whole");
+			}
+		}
+
+		if(WRITEBACK)
+		{
+			try
+			{
+				writeBack = new WriteBackQueue(cacheDir+WRITEBACKDIR,new WriteBackQueue.Uploader()
+				{
+					public void upload(WriteBackQueue.Upload upload) throws IOException
+					{
+						FileHandler.uploadQueued(upload);
+					}
+				},WRITEBACKTHREADS,WRITEBACKRETRYMILLIS);
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				System.err.println("Write-back journal unusable, closes upload directly");
+			}
+		}
+
+		if(CALLBACKS)
+		{
+			startCallbacks();
+		}
+	}
+
+	/**
+	 * Registers for invalidation callbacks and keeps renewing the
+	 * registration. If the server drops us, every lease is cleared and we
+	 * register again; until then opens fall back to getFileInfo.
+	 */
+	private void startCallbacks()
+	{
+		try
+		{
+			callback = new ProxyCallback(leases);
+		}
+		catch(RemoteException e)
+		{
+			e.printStackTrace();
+			System.err.println("Callbacks disabled");
+			return;
+		}
+
+		Thread renewer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				long sleepMillis = 1000;
+				while(true)
+				{
+					try
+					{
+						if(callbackId < 0)
+						{
+							callbackId = rmiServer.registerCallback(callback);
+						}
+
+						long sentNanos = System.nanoTime();
+						long leaseMillis = rmiServer.renewCallbacks(callbackId);
+						if(leaseMillis > 0)
+						{
+							leases.renewed(sentNanos,leaseMillis);
+							sleepMillis = Math.max(leaseMillis / 3,1);
+						}
+						else
+						{
+							System.err.println("Dropped by server, registering again");
+							callbackId = -1;
+							leases.clear();
+							continue;
+						}
+					}
+					catch(RemoteException e)
+					{
+						//leases run out by themselves, keep trying.
+						e.printStackTrace();
+					}
+
+					try
+					{
+						Thread.sleep(sleepMillis);
+					}
+					catch(InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+		},"callback-renewer");
+		renewer.setDaemon(true);
+		renewer.start();
 	}
 
 
@@ -214,49 +496,191 @@ class Proxy
 
 		/**
 		 * Downloads a file from the server.
+		 * Keeps up to DOWNLOADWINDOW chunk requests in flight.
 		 * @param path          Server Path
 		 * @param cacheFilePath 
 		 * @param fileSize      Size of File.
+		 * @param version       last modified time of the file
+		 * @return  false if the download failed.
+		 */
+		public boolean createFile(String path,String cacheFilePath,long fileSize,long version)
+		{
+			CachedFileInfo fileInfo = new CachedFileInfo();
+			fileInfo.fileSize = fileSize;
+			fileInfo.lastModifiedTime = version;
+			return createFile(path,cacheFilePath,fileInfo,null);
+		}
+
+		/**
+		 * Downloads a file from the server, copying the blocks an older
+		 * version already has.
+		 * @param path          Server Path
+		 * @param cacheFilePath 
+		 * @param fileInfo      version to download
+		 * @param base          pinned older version or null, released here
+		 * @return  false if the download failed.
 		 */
-		public void createFile(String path,String cacheFilePath,long fileSize)
+		public boolean createFile(String path,String cacheFilePath,CachedFileInfo fileInfo,CachedFileInfo base)
 		{
-			//check for file existence.
 			try
 			{
-				
-				long offset = 0;
-				long bytesRead = 0;
-				
-				RandomAccessFile raFile = new RandomAccessFile(cacheFilePath,"rw");
-				long totalBytes = 0;
-				do
-				{
-					
-					Chunk chunk2 = new Chunk();
-					chunk2 = rmiServer.downloadChunkFromServer(path,offset);
+				ChunkDownloader downloader = new ChunkDownloader(rmiServer,path,
+							cacheFilePath,fileInfo.fileSize,fileInfo.lastModifiedTime,
+							DOWNLOADWINDOW,downloadSizer);
+				useDeltaBase(downloader,path,fileInfo,base);
+				downloader.download(downloadPool);
+				System.err.println(downloadMetrics);
+				return true;
+			}	
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				releaseDeltaBase(base);
+			}
+			return false;
 
-					if( chunk2.size < 0)
-					{	
-						break; //done
-					}
+		}
 
-					bytesRead = chunk2.size;
+		/**
+		 * Lets a download copy the blocks an older cached version has
+		 * instead of fetching them. The server hashes the new version, we
+		 * look for the blocks in the old one, see BlockHashes.
+		 * @param downloader not started yet
+		 * @param path       server path
+		 * @param fileInfo   version being downloaded
+		 * @param base       pinned older version, or null
+		 */
+		private void useDeltaBase(ChunkDownloader downloader,String path,
+								  CachedFileInfo fileInfo,CachedFileInfo base)
+		{
+			//only plain masters can be matched and copied from.
+			if(base == null || base.isStored || base.isCompressed)
+			{
+				return;
+			}
 
-					offset += bytesRead;
-					totalBytes += bytesRead;
-					
-					raFile.write (chunk2.buffer, 0, chunk2.size);
-					
-					raFile.seek(offset);
+			try
+			{
+				BlockHashes hashes = rmiServer.getBlockHashes(path,ChunkSizer.MINCHUNKSIZE);
+				//changed again since getFileInfo, a plain download then.
+				if(hashes == null || hashes.version != fileInfo.lastModifiedTime
+				   || hashes.fileSize != fileInfo.fileSize)
+				{
+					return;
 				}
-				while(totalBytes < fileSize);
-				raFile.close();
-			}	
-			catch(Exception e)
+
+				long[] offsets;
+				try(FileChannel old = FileChannel.open(Paths.get(base.cachePath),StandardOpenOption.READ))
+				{
+					offsets = hashes.findMatches(old);
+				}
+				int reused = 0;
+				for(long offset : offsets)
+				{
+					if(offset >= 0)
+					{
+						reused++;
+					}
+				}
+				System.err.println("Delta: "+reused+" of "+offsets.length+" blocks reused from "+base.cachePath);
+				if(reused > 0)
+				{
+					downloader.useBase(base.cachePath,offsets);
+				}
+			}
+			catch(IOException e)
 			{
 				e.printStackTrace();
 			}
+		}
 
+		/**
+		 * Unpins the older version a download copied from, and drops it
+		 * unless someone still reads it.
+		 * @param base pinned older version, or null
+		 */
+		private void releaseDeltaBase(CachedFileInfo base)
+		{
+			if(base != null)
+			{
+				cache.release(base);
+				cache.evictIfUnused(base.cachePath);
+			}
+		}
+
+		/**
+		 * Starts filling a master copy in the background. Readers attach to
+		 * it through fillingFiles and wait only for the bytes they read.
+		 * The master is in the cache, pinned, before any worker runs, so
+		 * a fill that ends early finds it to evict or persist.
+		 * @param  path      Server Path
+		 * @param  cachePath 
+		 * @param  fileInfo  cache entry of the master
+		 * @param  base      pinned older version or null, released when done
+		 * @param  reserved  bytes reserved for the master, given back if
+		 *                   it can not be started
+		 * @return  false if the download could not be started.
+		 */
+		public boolean startFill(String path,final String cachePath,final CachedFileInfo fileInfo,
+								 final CachedFileInfo base,long reserved)
+		{
+			final ChunkDownloader downloader = new ChunkDownloader(rmiServer,path,
+						cachePath,fileInfo.fileSize,fileInfo.lastModifiedTime,
+						DOWNLOADWINDOW,downloadSizer);
+			useDeltaBase(downloader,path,fileInfo,base);
+			final long fetchStart = System.nanoTime();
+
+			boolean inserted = false;
+			try
+			{
+				//hits open the file as soon as the master is in the cache.
+				downloader.create();
+				fillingFiles.put(cachePath,downloader);
+				cache.putInCache(cachePath,fileInfo,reserved);
+				inserted = true;
+				cache.makeMRU(fileInfo);
+				downloader.start(downloadPool,new Runnable()
+				{
+					public void run()
+					{
+						fileInfo.fetchNanos = System.nanoTime() - fetchStart;
+						fillingFiles.remove(cachePath,downloader);
+						System.err.println(downloadMetrics);
+						releaseDeltaBase(base);
+
+						//a torn master must not be served again
+						if(!downloader.awaitCompletion())
+						{
+							System.err.println("Fill failed:"+cachePath);
+							cache.evictFile(cachePath);
+						}
+						else
+						{
+							cache.persist(fileInfo);
+						}
+					}
+				});
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				fillingFiles.remove(cachePath,downloader);
+				if(inserted)
+				{
+					cache.evictFile(cachePath);
+				}
+				else
+				{
+					new File(cachePath).delete();
+					cache.unreserve(reserved);
+				}
+				releaseDeltaBase(base);
+				return false;
+			}
+			return true;
 		}
 
 		/**
@@ -279,6 +703,36 @@ class Proxy
 			}
 		}	
 
+		/**
+		 * Clones the master into a new file that shares its blocks, for
+		 * filesystems with reflinks. The JDK has no FICLONE, so this runs
+		 * cp.
+		 * @param path    oldFile Path
+		 * @param newPath 
+		 * @return  false if the filesystem can not do it
+		 */
+		public boolean reflinkCopy(String path,String newPath)
+		{
+			try
+			{
+				Process cp = new ProcessBuilder("cp","--reflink=always",path,newPath)
+								.redirectErrorStream(true)
+								.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+								.start();
+				if(cp.waitFor() == 0)
+				{
+					return true;
+				}
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+			System.err.println("No reflink for:"+newPath);
+			new File(newPath).delete();
+			return false;
+		}
+
 		/**
 		 * Creates a unique file name based on the file descriptor and the
 		 * cache path.
@@ -309,8 +763,7 @@ class Proxy
 				}
 				if(fileInfo.lastModifiedTime<latestTime)
 				{
-					cache.evictFile(fileInfo.cachePath);
-					return true;
+					return cache.evictIfUnused(fileInfo.cachePath);
 				}
 				else
 				{
@@ -328,6 +781,184 @@ class Proxy
 		}
 
 
+		/**
+		 * Serves a read of a file the cache policy refused to admit. The file
+		 * is downloaded to a private path that is not tracked by the cache
+		 * and is deleted again on close.
+		 * @param  path      server path
+		 * @param  cachePath cache path the master would have had
+		 * @param  fileSize  
+		 * @param  version   last modified time
+		 * @return  fd or error
+		 */
+		public int openPassThrough(String path,String cachePath,long fileSize,long version)
+		{
+			System.err.println("NOT ADMITTED, passing through:"+cachePath);
+
+			int resultFd = uniqueFD.getAndIncrement();
+			String passPath = getPassThroughPath(cachePath,resultFd);
+			if(!createFile(path,passPath,fileSize,version))
+			{
+				new File(passPath).delete();
+				return EIO;
+			}
+
+			try
+			{
+				RandomAccessFile rAccessFile = new RandomAccessFile(new File(passPath),"r");
+				AccessFile aFile = new AccessFile(path,rAccessFile,"r");
+				aFile.putCachePath(passPath);
+				aFile.isPassThrough = true;
+				fdAccessFileMap.put(resultFd,aFile);
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+				new File(passPath).delete();
+				return FAILURE;
+			}
+
+			System.err.println("FD returned = " + resultFd);
+			System.err.println("************OPEN FINISHED*************");
+			return resultFd;
+		}
+
+		/**
+		 * @param  fileSize
+		 * @return  true if reads of a file this large go through the block
+		 *          cache
+		 */
+		private boolean isBlockCached(long fileSize)
+		{
+			return blockCache != null && (fileSize >= BLOCKFILESIZE || fileSize > wholeFileLimit);
+		}
+
+		/**
+		 * Serves a read of a large file from the block cache: nothing is
+		 * downloaded now, reads fetch the blocks they touch.
+		 * @param  path           server path
+		 * @param  serverFileInfo info from getFileInfo
+		 * @return  fd
+		 */
+		public int openBlocks(String path,CachedFileInfo serverFileInfo)
+		{
+			System.err.println("Reading in blocks:"+path);
+			BlockCache.Version opened = blockCache.open(path,serverFileInfo.lastModifiedTime,
+														serverFileInfo.fileSize);
+			AccessFile aFile = new AccessFile(path,new BlockFile(blockCache,opened),"r");
+			aFile.isBlockCached = true;
+
+			int resultFd = uniqueFD.getAndIncrement();
+			fdAccessFileMap.put(resultFd,aFile);
+			System.err.println("FD returned = " + resultFd);
+			System.err.println("************OPEN FINISHED*************");
+			return resultFd;
+		}
+
+		/**
+		 * Opens the newest copy of path queued for upload. Readers read it in
+		 * place, writers get a private copy of it.
+		 * @param  path           server path
+		 * @param  serverFileInfo info from getFileInfo
+		 * @param  queued         the queued copy, closed here unless read
+		 * @param  o              open option
+		 * @return  fd or error
+		 */
+		public int openQueuedCopy(String path,CachedFileInfo serverFileInfo,
+								  RandomAccessFile queued,OpenOption o)
+		{
+			System.err.println("Opening version queued for upload:"+path);
+			int resultFd = uniqueFD.getAndIncrement();
+			if(o == OpenOption.READ)
+			{
+				AccessFile aFile = new AccessFile(path,queued,"r");
+				aFile.isQueuedCopy = true;
+				fdAccessFileMap.put(resultFd,aFile);
+				System.err.println("FD returned = " + resultFd);
+				return resultFd;
+			}
+
+			String newPath = getNewWriteFilePath(
+					newCacheFileName(path,serverFileInfo.lastModifiedTime),resultFd);
+			long reserved = 0;
+			RandomAccessFile rAccessFile = null;
+			try
+			{
+				long length = queued.length();
+				if(cache.admit(null,length) != Cache.ADMITTED)
+				{
+					return Errors.ENOMEM;
+				}
+				reserved = length;
+
+				rAccessFile = new RandomAccessFile(new File(newPath),"rw");
+				FileChannel source = queued.getChannel();
+				long position = 0;
+				while(position < length)
+				{
+					position += source.transferTo(position,length - position,rAccessFile.getChannel());
+				}
+				rAccessFile.seek(0);
+
+				AccessFile aFile = new AccessFile(path,rAccessFile,"rw");
+				aFile.putCachePath(newPath);
+				aFile.baseLength = length;
+				aFile.baseVersion = -1;
+
+				CachedFileInfo newFileInfo = new CachedFileInfo(serverFileInfo);
+				newFileInfo.readerCount = 0;
+				newFileInfo.fileSize = length;
+				newFileInfo.putCachePath(newPath);
+				newFileInfo.resetReadOnly();
+				cache.putInCache(newPath,newFileInfo,reserved);
+				cache.makeMRU(newFileInfo);
+
+				fdAccessFileMap.put(resultFd,aFile);
+				//the fd closes it from now on
+				rAccessFile = null;
+				System.err.println("FD returned = " + resultFd);
+				return resultFd;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				new File(newPath).delete();
+				cache.unreserve(reserved);
+				return EIO;
+			}
+			finally
+			{
+				closeQuietly(rAccessFile);
+				closeQuietly(queued);
+			}
+		}
+
+		private void closeQuietly(RandomAccessFile file)
+		{
+			if(file == null)
+			{
+				return;
+			}
+			try
+			{
+				file.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Unique path for a file that bypasses the cache.
+		 * @param  path cache path
+		 * @param  fd   
+		 */
+		public String getPassThroughPath(String path,int fd)
+		{
+			return path + "_" + Integer.toString(fd) +"_"+ "p";
+		}
+
 		/**
 		 * Open: 
 		 * 1. Get version of file
@@ -348,60 +979,107 @@ class Proxy
 			
 			CachedFileInfo serverFileInfo;
 			CachedFileInfo cacheFileInfo;
+			String requestedPath = path;
 
-
-			try
-			{
-				 serverFileInfo = rmiServer.getFileInfo(path,o);
-			}
-			catch(RemoteException e)
+			//asked again while uploads finish under it.
+			for(int attempt = 1; ; attempt++)
 			{
-				e.printStackTrace();
-				return Errors.EBUSY;
-			}
+				path = requestedPath;
+				long uploadsFinished = writeBack == null ? 0 : writeBack.getFinishedCount();
 
-			//Error Checking
-			if(serverFileInfo.errorCode != NOERROR)
-			{
+				//A valid read lease saves the round trip.
+				serverFileInfo = null;
+				if(o == OpenOption.READ)
+				{
+					serverFileInfo = leases.lookup(path);
+				}
+
+				if(serverFileInfo == null)
+				{
+					try
+					{
+						long sentNanos = System.nanoTime();
+						long sentEpoch = leases.epoch();
+						serverFileInfo = rmiServer.getFileInfo(path,o,callbackId);
+						if(serverFileInfo.errorCode == NOERROR)
+						{
+							leases.grant(path,serverFileInfo,sentNanos,sentEpoch);
+						}
+					}
+					catch(RemoteException e)
+					{
+						e.printStackTrace();
+						return Errors.EBUSY;
+					}
+				}
+				else
+				{
+					System.err.println("Lease valid, no getFileInfo");
+				}
+
+				//Error Checking
+				if(serverFileInfo.errorCode != NOERROR)
+				{
 				
-				System.err.println("Error:"+serverFileInfo.errorCode);
-				System.err.println("************OPEN FIN*************");
-				return serverFileInfo.errorCode;
-			}
+					System.err.println("Error:"+serverFileInfo.errorCode);
+					System.err.println("************OPEN FIN*************");
+					return serverFileInfo.errorCode;
+				}
+
+				//Check if it is a directory:
+				if(serverFileInfo.isDir)
+				{	
+					System.err.println("Is a Directory!");
+					int resultFd = uniqueFD.getAndIncrement();
+					fdDirList.add(resultFd);
+					System.err.println("FD returned = " + resultFd);
+					System.err.println("************OPEN FINISHED*************");
+					return resultFd;				
+				}
 
-			//Check if it is a directory:
-			if(serverFileInfo.isDir)
-			{	
-				System.err.println("Is a Directory!");
-				int resultFd = uniqueFD.getAndIncrement();
-				fdDirList.add(resultFd);
-				System.err.println("FD returned = " + resultFd);
-				System.err.println("************OPEN FINISHED*************");
-				return resultFd;				
-			}
 
+				// Let the server decide if the path is valid
+				path = serverFileInfo.normalizedInputPath;
 
-			// Let the server decide if the path is valid
-			path = serverFileInfo.normalizedInputPath;
+				//our own closed copy not uploaded yet is newer than the server's.
+				if(writeBack != null)
+				{
+					RandomAccessFile queued = writeBack.openLatest(path);
+					if(queued != null)
+					{
+						return openQueuedCopy(path,serverFileInfo,queued,o);
+					}
+
+					//uploaded since we asked the server, the answer may be old.
+					if(writeBack.getFinishedCount() != uploadsFinished)
+					{
+						if(attempt < MAXOPENATTEMPTS)
+						{
+							continue;
+						}
+						System.err.println("Uploads keep finishing, giving up:"+path);
+						return Errors.EBUSY;
+					}
+				}
+				break;
+			}
 
 			//Old version is in cache
 			//Check for any old Versions;
 			Long cacheTime = cache.fileVersionMap.get(path);
+			String staleCachePath = null;
 			if(cacheTime != null)
 			{
 				//Delete if cache version is not in use and is stale;	
 				if(cacheTime < serverFileInfo.lastModifiedTime)
 				{
-					String cachePath = newCacheFileName(path,cacheTime);
-					CachedFileInfo temp = cache.getFromCache(cachePath);
+					staleCachePath = newCacheFileName(path,cacheTime);
 					
-					//Not in use;
-					if(temp!=null)
+					//Not in use; with delta fetch only once the new
+					//version is fetched from it.
+					if(!DELTAFETCH)
 					{
-						if(temp.readerCount == 0)
-						{
-							cache.evictFile(cachePath);
-						}
+						cache.evictIfUnused(staleCachePath);
 					}
 				}
 
@@ -411,225 +1089,456 @@ class Proxy
 			String cachePath = newCacheFileName(path,serverFileInfo.lastModifiedTime);
 			System.err.println("cachePath:"+cachePath);
 
-			//See if the latest version(as a read Copy) exists in Cache
-			cacheFileInfo = cache.getFromCache(cachePath);
+			//See if the latest version(as a read Copy) exists in Cache.
+			//It is pinned with a reader so it can't be evicted under us.
+			cache.recordRequest(cachePath);
+			cacheFileInfo = cache.acquire(cachePath);
+
+			//large files are read in blocks, unless cached whole already.
+			if(cacheFileInfo == null && o == OpenOption.READ && isBlockCached(serverFileInfo.fileSize))
+			{
+				return openBlocks(path,serverFileInfo);
+			}
 
-			if(cacheFileInfo == null)
+			while(cacheFileInfo == null)
 			{
 				System.err.println("CACHE MISS!!!");
 
-				//copy constructor
-				cacheFileInfo = new CachedFileInfo(serverFileInfo);
+				//Only the first miss downloads, the others wait for it.
+				CompletableFuture<Integer> flight = new CompletableFuture<Integer>();
+				CompletableFuture<Integer> running = pendingMasters.putIfAbsent(cachePath,flight);
+				int status = FAILURE;
+				if(running == null)
+				{
+					try
+					{
+						status = fetchMaster(path,serverFileInfo,cachePath,staleCachePath,o);
+					}
+					finally
+					{
+						pendingMasters.remove(cachePath,flight);
+						flight.complete(status);
+					}
 
-				if(!cache.isThereCacheSpace(serverFileInfo.fileSize))//No space
+					//fetchMaster leaves it pinned for us.
+					if(status == SUCCESS)
+					{
+						cacheFileInfo = cache.getFromCache(cachePath);
+					}
+				}
+				else
 				{
-					if(!cache.evictLRUFiles(serverFileInfo.fileSize))
+					System.err.println("Waiting for download of:"+cachePath);
+					status = running.join();
+					if(status == SUCCESS)
 					{
-						return Errors.ENOMEM;
+						//null if evicted meanwhile, then try again.
+						cacheFileInfo = cache.acquire(cachePath);
 					}
 				}
-		
-				//creating Master Copy
-				createFile(path,cachePath,cacheFileInfo.fileSize);	
-				cacheFileInfo.putCachePath(cachePath);
-				cacheFileInfo.setReadOnly();
-				cache.putInCache(cachePath,cacheFileInfo);
-				cache.makeMRU(cacheFileInfo);
 
-				//Update version Info in the cache Map
-				cache.fileVersionMap.put(path,cacheFileInfo.lastModifiedTime);
-				System.err.println("Path"+path+" "+"LM:"+cacheFileInfo.lastModifiedTime);
-				
-				try
+				if(status == NOTADMITTED)
 				{
-					System.err.println("new Master Created");
-				
-
-					if(o == OpenOption.READ)
+					//writers never pass through, they fetch it themselves.
+					if(o != OpenOption.READ)
 					{
-						//Read Only;
-						raFileMode = "r";
-						File file = new File(cachePath);
-						RandomAccessFile rAccessFile
-								 = new RandomAccessFile(file,raFileMode);
-
-						AccessFile aFile
-							 = new AccessFile(path,rAccessFile,raFileMode);
-						aFile.putCachePath(cachePath);
-						
-
-						//unique fd
-						int resultFd = uniqueFD.getAndIncrement();				
-						Integer result = new Integer(resultFd);
-
-						//Cache Related		
-						//cacheFileInfo.putCachePath(cachePath);
-						//cacheFileInfo.setReadOnly();
-						cacheFileInfo.incrReaderCount();
-						cache.putInCache(cachePath,cacheFileInfo);
-						
-						//local to client Map
-						fdAccessFileMap.put(result,aFile);	
-						cache.makeMRU(cacheFileInfo);
-
-						System.err.println("FD returned = " + resultFd);
-						System.err.println("************OPEN FINISHED*************");
-						return resultFd;
-
+						continue;
 					}
-					else
-					{
-
-						//check cache Space!!
-						if(!cache.isThereCacheSpace(cacheFileInfo.fileSize))//No space
-						{
-							if(!cache.evictLRUFiles(serverFileInfo.fileSize))
-							{
-								return Errors.ENOMEM;
-							}
-						}
+					return openPassThrough(path,cachePath,serverFileInfo.fileSize,
+										   serverFileInfo.lastModifiedTime);
+				}
+				if(status != SUCCESS)
+				{
+					return status;
+				}
+			}
 
+			//fetched by someone else, or the delta is done with it.
+			if(DELTAFETCH && staleCachePath != null)
+			{
+				cache.evictIfUnused(staleCachePath);
+			}
 
-						//Already has version numbers
-						//cachePath contains the mastercopy's file path;						
-						int resultFd = uniqueFD.getAndIncrement();
-						String newPath =  getNewWriteFilePath(cachePath,resultFd);
+			//room reserved for a private copy until it is in the cache.
+			long reserved = 0;
+			try
+			{
+				if(o == OpenOption.READ)
+				{
+					raFileMode = "r";
 
-						//creating a new private Copy;
-						createPrivateCopy(cachePath,newPath);
-						System.err.println("new Copy created:"+newPath);
+					//create FD;
+					AccessFile aFile
+							 = new AccessFile(path,openMaster(cacheFileInfo),raFileMode);
+					aFile.putCachePath(cachePath);
+					aFile.fill = fillingFiles.get(cachePath);
+					
+					//unique fd
+					int resultFd = uniqueFD.getAndIncrement();
 
-						CachedFileInfo newInfo = new CachedFileInfo(cacheFileInfo);
+					//File Handling related					
+					Integer result = new Integer(resultFd);
+					fdAccessFileMap.put(result,aFile);	
 
-						//update the object
-						newInfo.putCachePath(newPath);
+					//Make MRU;
+					cache.makeMRU(cacheFileInfo);
 
+					System.err.println("FD returned = " + resultFd);
+					System.err.println("************OPEN FINISHED*************");
+					return resultFd;
 
+				}
+				else
+				{
+					
+					//an overlay takes space only for the blocks written, write
+					//charges them.
+					long copySize = COPYONWRITE ? 0 : cacheFileInfo.fileSize;
 
-						// Assumption- Cache has space
-						File file = new File(newPath);
-						RandomAccessFile rAccessFile = new RandomAccessFile(file,raFileMode);
-						AccessFile aFile = new AccessFile(path,rAccessFile,raFileMode);
-						aFile.putCachePath(newPath);
-						newInfo.resetReadOnly();
+					//check cache Space!!
+					if(cache.admit(null,copySize) != Cache.ADMITTED)//No space
+					{
+						cache.release(cacheFileInfo);
+						return Errors.ENOMEM;
+					}
+					reserved = copySize;
 
-						//Cache Related
-						Integer result = new Integer(resultFd);
-						cache.putInCache(newPath,newInfo);
+					//The private copy needs the whole master.
+					ChunkDownloader fill = fillingFiles.get(cachePath);
+					if(fill != null && !fill.awaitCompletion())
+					{
+						cache.release(cacheFileInfo);
+						cache.unreserve(reserved);
+						return EIO;
+					}
 
-						//Internal to FileHandling
-						fdAccessFileMap.put(result,aFile);	
+					//Have to copy the file info object~~
+					CachedFileInfo newFileInfo = new CachedFileInfo(cacheFileInfo);
+					newFileInfo.readerCount = 0;
 
-						//what if mode is write?				
-						System.err.println("FD returned = " + resultFd);
-						System.err.println("************OPEN FINISHED*************");
+					//Already has version numbers
+					//cachePath contains the mastercopy's file path;						
+					int resultFd = uniqueFD.getAndIncrement();
+					String newPath =  getNewWriteFilePath(cachePath,resultFd);
 
-						//make MRU;
-						return resultFd; 		
+					SeekableFile copy;
+					CachedFileInfo master = null;
+					boolean plainMaster = !cacheFileInfo.isStored && !cacheFileInfo.isCompressed;
+					if(REFLINK && plainMaster && reflinkCopy(cachePath,newPath))
+					{
+						RandomAccessFile linked = new RandomAccessFile(new File(newPath),raFileMode);
+						copy = new PlainFile(linked,linked.length());
+						newFileInfo.fileSize = 0;
 					}
-			
-				}
-				catch(Exception e)
-				{
-					e.printStackTrace();
-				}
+					else if(COPYONWRITE)
+					{
+						//reads the master until written, keep it pinned.
+						try
+						{
+							copy = plainMaster
+									? new OverlayFile(cachePath,newPath)
+									: new OverlayFile(openMaster(cacheFileInfo),newPath);
+						}
+						catch(IOException e)
+						{
+							cache.release(cacheFileInfo);
+							throw e;
+						}
+						master = cacheFileInfo;
+						newFileInfo.fileSize = 0;
+					}
+					else
+					{
+						//creating a new private Copy;
+						if(cacheFileInfo.isStored)
+						{
+							blockStore.copyTo(blockStore.get(cachePath),newPath);
+						}
+						else if(cacheFileInfo.isCompressed)
+						{
+							CompressedFile.decompressTo(cachePath,newPath,hotBlocks);
+						}
+						else
+						{
+							createPrivateCopy(cachePath,newPath);
+						}
+						copy = new PlainFile(new RandomAccessFile(new File(newPath),raFileMode));
+					}
+					System.err.println("new Copy created:"+newPath);
 
-			}
-			else // File is in Cache! 
-			{	try
-				{
-					System.err.println("CACHE HIT!!!");
-					if(o == OpenOption.READ)
+					//master may be evicted again now.
+					if(master == null)
 					{
-						raFileMode = "r";
+						cache.release(cacheFileInfo);
+					}
 
-						//create FD;
-						File file = new File(cachePath);
-						RandomAccessFile rAccessFile
-									 = new RandomAccessFile(file,raFileMode);
+					AccessFile aFile = new AccessFile(path,copy,raFileMode);
+					aFile.putCachePath(newPath);
+					aFile.baseLength = copy.length();
+					aFile.baseVersion = cacheFileInfo.lastModifiedTime;
+					aFile.master = master;
+					newFileInfo.putCachePath(newPath);
+					
+					//Cache Related
+					Integer result = new Integer(resultFd);
+					newFileInfo.resetReadOnly();
+					cache.putInCache(newPath,newFileInfo,reserved);
+					reserved = 0;
 
-						AccessFile aFile
-								 = new AccessFile(path,rAccessFile,raFileMode);
-						aFile.putCachePath(cachePath);
-						
-						//unique fd
-						int resultFd = uniqueFD.getAndIncrement();
 
-						//Just increment reader count;
-						cacheFileInfo.incrReaderCount();
+					//Internal to FileHandling
+					fdAccessFileMap.put(result,aFile);	
 
-						//File Handling related					
-						Integer result = new Integer(resultFd);
-						fdAccessFileMap.put(result,aFile);	
+					//what if mode is write?				
+					System.err.println("FD returned = " + resultFd);
+					System.err.println("************OPEN FINISHED*************");
 
-						cache.putInCache(cachePath,cacheFileInfo);
+					//make MRU;
+					cache.makeMRU(newFileInfo);
+					return resultFd;
+				}
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+				cache.unreserve(reserved);
+			}
 
-						//Make MRU;
-						cache.makeMRU(cacheFileInfo);
-						return resultFd;
+			return FAILURE;
 
-					}
-					else
-					{
-						
-						//check cache Space!!
-						if(!cache.isThereCacheSpace(cacheFileInfo.fileSize))//No space
-						{
-							if(!cache.evictLRUFiles(cacheFileInfo.fileSize))
-							{
-								return Errors.ENOMEM;
-							}
-						}
+		}
 
-						//Have to copy the file info object~~
-						CachedFileInfo newFileInfo = new CachedFileInfo(cacheFileInfo);
+		/**
+		 * Opens a master for reading, from the block store if it is kept
+		 * there, decompressing it if it is kept compressed.
+		 * @param  master pinned cache entry
+		 * @return  read only file
+		 * @throws IOException
+		 */
+		private SeekableFile openMaster(CachedFileInfo master) throws IOException
+		{
+			if(master.isStored)
+			{
+				return new StoredFile(blockStore,blockStore.get(master.cachePath));
+			}
+			if(master.isCompressed)
+			{
+				return new CompressedFile(master.cachePath,hotBlocks);
+			}
+			return new PlainFile(new RandomAccessFile(new File(master.cachePath),"r"));
+		}
 
-						//Already has version numbers
-						//cachePath contains the mastercopy's file path;						
-						int resultFd = uniqueFD.getAndIncrement();
-						String newPath =  getNewWriteFilePath(cachePath,resultFd);
+		/**
+		 * Brings the latest version of a file into the cache as a read
+		 * only master copy. Only one thread per cachePath runs this at a
+		 * time, see pendingMasters.
+		 * The master is left in the cache with one reader, for the caller.
+		 * @param  path           server path
+		 * @param  serverFileInfo info from getFileInfo
+		 * @param  cachePath      
+		 * @param  staleCachePath older cached version or null
+		 * @param  o              open option
+		 * @return  SUCCESS, NOTADMITTED if a reader should pass through,
+		 *          or an error.
+		 */
+		public int fetchMaster(String path,CachedFileInfo serverFileInfo,String cachePath,
+							   String staleCachePath,OpenOption o)
+		{
+			//copy constructor
+			CachedFileInfo cacheFileInfo = new CachedFileInfo(serverFileInfo);
+
+			//stored in blocks, only the ones the store lacks take room.
+			//Compressed masters are sized as if raw until fetched.
+			BlockStore.Manifest manifest = reserveBlocks(path,serverFileInfo);
+			boolean compressed = manifest == null && COMPRESSMASTERS != ChunkCodec.NONE;
+			long needed = manifest == null ? serverFileInfo.fileSize : manifest.missingBytes;
+
+			//the older version is pinned until the download copied from it.
+			CachedFileInfo base = null;
+			if(DELTAFETCH && manifest == null && !compressed && staleCachePath != null
+			   && !fillingFiles.containsKey(staleCachePath))
+			{
+				base = cache.acquire(staleCachePath);
+			}
 
-						//creating a new private Copy;
-						createPrivateCopy(cachePath,newPath);
-						System.err.println("new Copy created:"+newPath);
-
-						// Assumption- Cache has space
-						File file = new File(newPath);
-						RandomAccessFile rAccessFile = new RandomAccessFile(file,raFileMode);
-						AccessFile aFile = new AccessFile(path,rAccessFile,raFileMode);
-						aFile.putCachePath(newPath);
-						newFileInfo.putCachePath(newPath);
-						
-						//Cache Related
-						Integer result = new Integer(resultFd);
-						newFileInfo.resetReadOnly();
-						cache.putInCache(newPath,newFileInfo);
+			//reserved until the master is put in the cache.
+			if(!cache.reserve(needed))//No space
+			{
+				//both versions do not fit, drop the old one first.
+				releaseDeltaBase(base);
+				base = null;
 
+				//Readers have to win admission, writers always evict.
+				int status = cache.admit(o == OpenOption.READ ? cachePath : null,needed);
 
-						//Internal to FileHandling
-						fdAccessFileMap.put(result,aFile);	
+				if(status != Cache.ADMITTED && manifest != null)
+				{
+					blockStore.abandon(manifest);
+				}
+				if(status == Cache.REJECTED)
+				{
+					return NOTADMITTED;
+				}
+				if(status != Cache.ADMITTED)
+				{
+					return Errors.ENOMEM;
+				}
+			}
 
-						//what if mode is write?				
-						 System.err.println("FD returned = " + resultFd);
-						 System.err.println("************OPEN FINISHED*************");
+			cacheFileInfo.putCachePath(cachePath);
+			cacheFileInfo.setReadOnly();
+			cacheFileInfo.readerCount = 1;
+			cache.fetching(cacheFileInfo);
 
-						 //make MRU;
-						 cache.makeMRU(newFileInfo);
-						 return resultFd;
-					}
+			//creating Master Copy
+			boolean streaming = manifest == null && !compressed && STREAMINGOPEN && o == OpenOption.READ;
+			if(manifest != null)
+			{
+				long fetchStart = System.nanoTime();
+				if(!fetchBlocks(path,cachePath,cacheFileInfo.lastModifiedTime,manifest))
+				{
+					cache.unreserve(needed);
+					return EIO;
 				}
-					catch(Exception e)
-					{
-						e.printStackTrace();
-					}
-				
+				cacheFileInfo.isStored = true;
+				cacheFileInfo.fetchNanos = System.nanoTime() - fetchStart;
+			}
+			//compressed as it arrives, readers wait for all of it.
+			else if(compressed)
+			{
+				long fetchStart = System.nanoTime();
+				if(!fetchCompressed(path,cachePath,cacheFileInfo))
+				{
+					cache.unreserve(needed);
+					return EIO;
+				}
+				cacheFileInfo.fetchNanos = System.nanoTime() - fetchStart;
+			}
+			//Readers may start before it is complete in streaming mode.
+			else if(streaming)
+			{
+				if(!startFill(path,cachePath,cacheFileInfo,base,needed))
+				{
+					return EIO;
+				}
+			}
+			else
+			{
+				long fetchStart = System.nanoTime();
+				if(!createFile(path,cachePath,cacheFileInfo,base))
+				{
+					new File(cachePath).delete();
+					cache.unreserve(needed);
+					return EIO;
+				}
+				cacheFileInfo.fetchNanos = System.nanoTime() - fetchStart;
 			}
 
-			return FAILURE;
+			//a fill put it in the cache before it started, and persists it.
+			if(!streaming)
+			{
+				cache.putInCache(cachePath,cacheFileInfo,needed);
+				cache.makeMRU(cacheFileInfo);
+				cache.persist(cacheFileInfo);
+			}
 
+			//Update version Info in the cache Map
+			cache.fileVersionMap.put(path,cacheFileInfo.lastModifiedTime);
+			System.err.println("Path"+path+" "+"LM:"+cacheFileInfo.lastModifiedTime);
+			System.err.println("new Master Created");
+			return SUCCESS;
 		}
 				
 		
+		/**
+		 * Asks the server for the block hashes of the version and pins
+		 * the blocks the store already has.
+		 * @param  path           server path
+		 * @param  serverFileInfo info from getFileInfo
+		 * @return  manifest, null to fetch the file whole
+		 */
+		private BlockStore.Manifest reserveBlocks(String path,CachedFileInfo serverFileInfo)
+		{
+			if(blockStore == null)
+			{
+				return null;
+			}
+			try
+			{
+				BlockHashes hashes = rmiServer.getBlockHashes(path,DEDUPBLOCKSIZE);
+				//changed again since getFileInfo, a plain download then.
+				if(hashes == null || hashes.version != serverFileInfo.lastModifiedTime
+				   || hashes.fileSize != serverFileInfo.fileSize)
+				{
+					return null;
+				}
+				BlockStore.Manifest manifest = blockStore.reserve(hashes);
+				System.err.println("Stored: "+(serverFileInfo.fileSize - manifest.missingBytes)
+								   +" of "+serverFileInfo.fileSize+" bytes held already");
+				return manifest;
+			}
+			catch(RemoteException e)
+			{
+				e.printStackTrace();
+			}
+			return null;
+		}
+
+		/**
+		 * Fetches the blocks of a master the store lacks and writes its
+		 * manifest as the cache file.
+		 * @param  path      server path
+		 * @param  cachePath 
+		 * @param  version   last modified time the manifest is of
+		 * @param  manifest  from reserveBlocks, abandoned on failure
+		 * @return  false if the download failed.
+		 */
+		private boolean fetchBlocks(String path,String cachePath,long version,BlockStore.Manifest manifest)
+		{
+			try
+			{
+				blockStore.fetch(manifest,rmiServer,path,version,downloadPool,DOWNLOADWINDOW);
+				blockStore.commit(manifest,cachePath);
+				System.err.println(blockStore);
+				return true;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				blockStore.abandon(manifest);
+				new File(cachePath).delete();
+			}
+			return false;
+		}
+
+		/**
+		 * Downloads a master compressed, see CompressedFile.
+		 * @param  path      server path
+		 * @param  cachePath 
+		 * @param  fileInfo  version to fetch, marked compressed with its
+		 *                   size on disk
+		 * @return  false if the download failed.
+		 */
+		private boolean fetchCompressed(String path,String cachePath,CachedFileInfo fileInfo)
+		{
+			try
+			{
+				fileInfo.diskSize = CompressedFile.fetch(rmiServer,path,fileInfo.lastModifiedTime,
+														 fileInfo.fileSize,cachePath,COMPRESSBLOCKSIZE,
+														 COMPRESSMASTERS,downloadPool,DOWNLOADWINDOW);
+				fileInfo.isCompressed = true;
+				System.err.println("Compressed "+fileInfo.fileSize+" bytes to "+fileInfo.diskSize
+								   +" for "+path);
+				return true;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				new File(cachePath).delete();
+			}
+			return false;
+		}
+
 		/**
 		 * close the file.
 		 * 1. If it is a write-private copy, send changes to server.
@@ -667,26 +1576,110 @@ class Proxy
 			}
 
 
-			RandomAccessFile rAccessFile = aFile.rAFile;
-			CachedFileInfo info = cache.getFromCache(aFile.cachePath);			
+			SeekableFile rAccessFile = aFile.rAFile;
+			CachedFileInfo info = null;
+			if(!aFile.isPassThrough && !aFile.isQueuedCopy && !aFile.isBlockCached)
+			{
+				info = cache.getFromCache(aFile.cachePath);
+			}
+
+			if(info != null && info.isCompressed)
+			{
+				System.err.println(hotBlocks);
+			}
 
 			//need to write back to server;
-			if(!info.isReadOnly)
+			if(info != null && !info.isReadOnly)
 			{
 				try
 				{
-					rmiServer.deleteOldVersion(aFile.inputPath);
-					writeToServer(fd);
-					long time = rmiServer.updateVersionNumber(info.path);
-					System.err.println("Should delete"+ aFile.cachePath);
+					long length = rAccessFile.length();
+					if(aFile.dirtyExtents.isEmpty() && length == aFile.baseLength)
+					{
+						//nothing changed, the server copy stays.
+						System.err.println("Clean close, no upload:"+aFile.inputPath);
+					}
+					else if(queueUpload(aFile,info,length))
+					{
+						//uploaded in the background, the copy moved away.
+					}
+					else
+					{
+						long time = uploadCopy(aFile,aFile.baseVersion,length,
+											   aFile.dirtyExtents.coalesced(PATCHMERGEGAP));
+						leases.invalidate(aFile.inputPath);
+						System.err.println("Should delete"+ aFile.cachePath);
+					}
 				}
-				catch(RemoteException e)
+				catch(IOException e)
 				{
 					e.printStackTrace();
 					return Errors.EBUSY;
 				}
 			}
 
+			if(!releaseFile(aFile))
+			{
+				System.err.println("Close: EIOreturned");
+				return EIO;
+			}
+			fdAccessFileMap.remove(fd);
+
+			System.err.println("************CLOSE Finished*************");
+			return SUCCESS;//0 success
+			
+		}
+
+		/**
+		 * Closes the handle of an fd and gives back what it held: pass
+		 * through and private copies are deleted, masters unpinned.
+		 * Nothing is uploaded here.
+		 * @param  aFile
+		 * @return  false if the handle of a cached file could not be
+		 *          closed, it is left as it was then.
+		 */
+		private boolean releaseFile(AccessFile aFile)
+		{
+			SeekableFile rAccessFile = aFile.rAFile;
+
+			//not in the cache, just drop it.
+			if(aFile.isPassThrough || aFile.isQueuedCopy || aFile.isBlockCached)
+			{
+				try
+				{
+					rAccessFile.close();
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+				if(aFile.isPassThrough)
+				{
+					new File(aFile.cachePath).delete();
+				}
+				if(aFile.isBlockCached)
+				{
+					System.err.println(blockCache);
+				}
+				return true;
+			}
+
+			CachedFileInfo info = cache.getFromCache(aFile.cachePath);			
+
+			//entry was dropped under us (failed fill), nothing to account.
+			if(info == null)
+			{
+				try
+				{
+					rAccessFile.close();
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+				releaseMaster(aFile);
+				return true;
+			}
 
 			//close file.
 			try
@@ -696,12 +1689,9 @@ class Proxy
 			catch(IOException e)
 			{
 				e.printStackTrace();
-				System.err.println("Close: EIOreturned");
-				return EIO;
+				return false;
 			}
 
-
-
 			//remove from cache and maps
 			if(!info.isReadOnly)
 			{
@@ -711,93 +1701,252 @@ class Proxy
 				File file = new File(aFile.cachePath);
 				file.delete();
 				System.err.println("deleted"+ aFile.cachePath);
+				releaseMaster(aFile);
 			}
 			else
 			{
 				
-				info.decrReaderCount();
-				if(info.readerCount == 0)
+				if(cache.release(info) == 0)
 				{
 
 					if(!deleteStaleVersions(aFile.inputPath,info))
 					{ // Not deleted.
-						cache.putInCache(aFile.cachePath,info);
 						cache.makeMRU(info);
 					}
 				}
 				
 			}
+			return true;
+		}
 
+		/**
+		 * Unpins the master an overlay read from.
+		 * @param aFile closed private copy
+		 */
+		private void releaseMaster(AccessFile aFile)
+		{
+			if(aFile.master == null)
+			{
+				return;
+			}
+			if(cache.release(aFile.master) == 0)
+			{
+				if(!deleteStaleVersions(aFile.inputPath,aFile.master))
+				{
+					cache.makeMRU(aFile.master);
+				}
+			}
+			aFile.master = null;
+		}
 
-			fdAccessFileMap.remove(fd);
+		/**
+		 * Hands a closed private copy to the write-back queue.
+		 * @param  aFile  private copy, still open
+		 * @param  info   its cache entry
+		 * @param  length its length
+		 * @return  false if it has to be uploaded now
+		 */
+		private boolean queueUpload(AccessFile aFile,CachedFileInfo info,long length)
+		{
+			if(writeBack == null)
+			{
+				return false;
+			}
+			try
+			{
+				//the blocks detach copies count until the copy is released.
+				long charge = aFile.rAFile.growthForDetach();
+				if(charge > 0)
+				{
+					if(cache.admit(null,charge) != Cache.ADMITTED)
+					{
+						System.err.println("No space to detach, uploading now:"+aFile.inputPath);
+						return false;
+					}
+					cache.grow(info,charge);
+				}
 
-			System.err.println("************CLOSE Finished*************");
-			return SUCCESS;//0 success
-			
+				//must survive a crash before the upload is done.
+				aFile.rAFile.detach();
+				if(WRITEBACKSYNC)
+				{
+					aFile.rAFile.sync();
+				}
+				writeBack.enqueue(aFile.inputPath,aFile.cachePath,aFile.baseVersion,length,
+								  aFile.dirtyExtents.coalesced(PATCHMERGEGAP));
+				return true;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				System.err.println("Queueing failed, uploading now:"+aFile.inputPath);
+				return false;
+			}
 		}
 
 		/**
-		 * writeToServer: Writes the file to the server, if it is modified
-		 * by this client.
-		 * @param fd file descriptor.
+		 * Uploads a copy from the write-back queue.
+		 * @param  upload
+		 * @throws IOException to retry later
 		 */
-		public void writeToServer(int fd)
+		private static void uploadQueued(WriteBackQueue.Upload upload) throws IOException
 		{
+			RandomAccessFile raFile = new RandomAccessFile(upload.file,"r");
+			try
+			{
+				AccessFile aFile = new AccessFile(upload.path,raFile,"r");
+				uploadCopy(aFile,upload.baseVersion,upload.length,upload.ranges);
+				leases.invalidate(upload.path);
+			}
+			finally
+			{
+				raFile.close();
+			}
+		}
 
+		/**
+		 * Makes a private copy the new server version with a staged
+		 * upload: only the dirty ranges if the server still has the
+		 * version it was copied from, else all of it. The server swaps the
+		 * file on commit, so a failed upload leaves the old version.
+		 * @param  aFile       private copy
+		 * @param  baseVersion server version it was copied from, -1 if none
+		 * @param  length      its length
+		 * @param  dirty       pairs of start and end written since baseVersion
+		 * @return  the new server version
+		 * @throws IOException if the upload failed
+		 */
+		private static long uploadCopy(AccessFile aFile,long baseVersion,long length,
+									   ArrayList<long[]> dirty) throws IOException
+		{
+			String path = aFile.inputPath;
+			long uploadId = FAILURE;
+			ArrayList<long[]> ranges = dirty;
+			if(baseVersion >= 0)
+			{
+				uploadId = rmiServer.beginUpload(path,baseVersion);
+				System.err.println("Patch "+path+": "+ranges.size()+" ranges");
+			}
+			if(uploadId < 0)
+			{
+				uploadId = rmiServer.beginUpload(path,-1);
+				ranges = new ArrayList<long[]>();
+				ranges.add(new long[]{0,length});
+			}
+			if(uploadId < 0)
+			{
+				throw new IOException("Upload refused:"+path);
+			}
 
+			long version;
 			try
 			{
-				AccessFile aFile = fdAccessFileMap.get(fd);
+				uploadRanges(aFile,uploadId,ranges);
+				version = rmiServer.commitUpload(uploadId,length);
+			}
+			catch(IOException e)
+			{
+				try
+				{
+					rmiServer.abortUpload(uploadId);
+				}
+				catch(RemoteException abortFailed)
+				{
+					//dropped by the server once idle.
+				}
+				throw e;
+			}
 
-				//simply send write
-				RandomAccessFile raFile = aFile.rAFile;
-				raFile.seek(0);
+			//someone else committed since we copied, send all of it.
+			if(version < 0 && baseVersion >= 0)
+			{
+				return uploadCopy(aFile,-1,length,dirty);
+			}
+			if(version < 0)
+			{
+				throw new IOException("Commit refused:"+path);
+			}
+			return version;
+		}
 
-				long bytesWritten = 0;
-				long bytesRemaining = raFile.length();
-				long offset = 0;
+		/**
+		 * Uploads byte ranges of the private copy in chunks.
+		 * @param aFile
+		 * @param uploadId staged upload from beginUpload
+		 * @param ranges   pairs of start and end
+		 * @throws IOException 
+		 */
+		private static void uploadRanges(AccessFile aFile,long uploadId,ArrayList<long[]> ranges)
+			throws IOException
+		{
+			SeekableFile raFile = aFile.rAFile;
+			long fileLength = raFile.length();
 
-				while(bytesWritten <raFile.length())
+			//pooled buffer reused for the whole upload, swapped only
+			//when the chunk size grows past it.
+			Chunk chunk = new Chunk();
+			chunk.buffer = ChunkBufferPool.shared().borrow(uploadSizer.sizeFor(fileLength));
+			try
+			{
+				for(long[] range : ranges)
 				{
-
-					raFile.seek(offset);
-					Chunk chunk = new Chunk();
-
-					if(bytesRemaining > MAXCHUNKSIZE)
-					{
-						chunk.buffer = new byte[MAXCHUNKSIZE];	
-					}
-					else
+					long offset = range[0];
+					long end = Math.min(range[1],fileLength);
+					while(offset < end)
 					{
-						chunk.buffer = new byte[(int)bytesRemaining];		
-					}
+						int length = uploadSizer.sizeFor(end - offset);
+						if(length > chunk.buffer.length)
+						{
+							ChunkBufferPool.shared().release(chunk.buffer);
+							chunk.buffer = ChunkBufferPool.shared().borrow(length);
+						}
 
-					
-					chunk.size = raFile.read(chunk.buffer);
-					chunk.offset = (int)offset;
+						raFile.seek(offset);
+						chunk.size = raFile.read(chunk.buffer,0,length);
+						if(chunk.size <= 0)
+						{
+							break; //shorter than it was, nothing left
+						}
+						chunk.offset = offset;
+						chunk.codec = COMPRESSION;
 
-					bytesRemaining -= chunk.size;
-					offset += chunk.size;
-					bytesWritten += chunk.size;
-	
-					//String path = fdPathMap.get(fd);
-					String path = aFile.inputPath;
-					rmiServer.uploadFileToServer(path,chunk);
+						long sentNanos = System.nanoTime();
+						if(!rmiServer.uploadChunk(uploadId,chunk))
+						{
+							throw new IOException("Upload "+uploadId+" failed at "+offset);
+						}
+						uploadSizer.record(length,chunk,System.nanoTime() - sentNanos);
+						offset += chunk.size;
+					}
 				}
-
-				raFile.close();
-			}	
-			catch(Exception e)
+				System.err.println(uploadMetrics);
+			}
+			finally
 			{
-				e.printStackTrace();
+				ChunkBufferPool.shared().release(chunk.buffer);
 			}
-
 		}
 
 
+		/**
+		 * @param  aFile
+		 * @return  cache entry of the private copy written through aFile,
+		 *          null if it writes a file the cache does not track
+		 */
+		private CachedFileInfo privateCopyInfo(AccessFile aFile)
+		{
+			if(aFile.isPassThrough || aFile.isQueuedCopy || aFile.isBlockCached)
+			{
+				return null;
+			}
+			CachedFileInfo info = cache.getFromCache(aFile.cachePath);
+			return info == null || info.isReadOnly ? null : info;
+		}
+
 		/**
 		 * Write to file only if the write operation won't make it exceed
-		 * the cache size.
+		 * the cache size. A private copy is charged for the disk it takes
+		 * on, see SeekableFile.growthFor.
 		 * @param  fd  file desciptor
 		 * @param  buf bytes to write
 		 * @return     error/no.of bytes written.
@@ -812,15 +1961,6 @@ class Proxy
 				return Errors.EISDIR;
 			}
 
-			//check space in cache
-			if(!cache.isThereCacheSpace(buf.length))//No space
-					{
-						if(!cache.evictLRUFiles(buf.length))
-						{
-							return Errors.ENOMEM;
-						}
-			}
-
 			System.err.println("FD :" + fd);
 
 			AccessFile aFile = fdAccessFileMap.get(fd);
@@ -842,18 +1982,52 @@ class Proxy
 				return Errors.EBADF;
 			}	
 			
-			RandomAccessFile rAccessFile = aFile.rAFile;
+			SeekableFile rAccessFile = aFile.rAFile;
+			CachedFileInfo info = privateCopyInfo(aFile);
 
+			//check space in cache
+			long charge;
+			long position;
 			try
 			{
-				rAccessFile.write(buf);
+				position = rAccessFile.getFilePointer();
+				charge = info == null ? buf.length : rAccessFile.growthFor(position,buf.length);
 			}
 			catch(IOException e)
 			{
+				System.err.println("Write: EIOreturned");
+				return EIO;
+			}
+			if(info == null)
+			{
+				if(!cache.isThereCacheSpace(charge) && !cache.evictLRUFiles(charge))//No space
+				{
+					return Errors.ENOMEM;
+				}
+			}
+			else if(charge > 0 && cache.admit(null,charge) != Cache.ADMITTED)
+			{
+				return Errors.ENOMEM;
+			}
 
+			try
+			{
+				rAccessFile.write(buf);
+				aFile.dirtyExtents.add(position,position + buf.length);
+			}
+			catch(IOException e)
+			{
+				if(info != null)
+				{
+					cache.unreserve(charge);
+				}
 				System.err.println("Write: EIOreturned");
 				return EIO;
 			}
+			if(info != null && charge > 0)
+			{
+				cache.grow(info,charge);
+			}
 
 			//File was modified
 			//
@@ -906,9 +2080,30 @@ class Proxy
 			}
 
 
-			RandomAccessFile rAccessFile = aFile.rAFile;
+			SeekableFile rAccessFile = aFile.rAFile;
 			long result = -1;
 
+			//master may still be downloading
+			if(aFile.fill != null)
+			{
+				try
+				{
+					if(!aFile.fill.awaitRange(rAccessFile.getFilePointer(),buf.length))
+					{
+						System.err.println("read: EIOreturned, fill failed");
+						return EIO;
+					}
+				}
+				catch(IOException e)
+				{
+					return EIO;
+				}
+				if(aFile.fill.isFinished())
+				{
+					aFile.fill = null;
+				}
+			}
+
 			//check if file is over
 			try
 			{
@@ -983,7 +2178,7 @@ class Proxy
 				return Errors.EBADF;
 			}
 
-			RandomAccessFile rAccessFile = aFile.rAFile;
+			SeekableFile rAccessFile = aFile.rAFile;
 
 			// Check whence
 			if(o == LseekOption.FROM_CURRENT)
@@ -1045,6 +2240,12 @@ class Proxy
 				e.printStackTrace();
 			}
 
+			//fetch the new position first if still downloading
+			if(aFile.fill != null)
+			{
+				aFile.fill.prioritize(result1);
+			}
+
 			//resotre in amp
 			aFile.rAFile =rAccessFile;
 			fdAccessFileMap.put(fd,aFile);
@@ -1064,6 +2265,12 @@ class Proxy
 		public int unlink( String path )
 		{
 			System.err.println("************UNLINK STARTEDD*************");
+
+			//a queued upload must not bring it back.
+			if(writeBack != null)
+			{
+				writeBack.cancel(path);
+			}
 			
 			File file = new File(path);
 			int retVal=-1;
@@ -1081,6 +2288,7 @@ class Proxy
 			{
 				return retVal;
 			}	
+			leases.invalidate(path);
 
 			System.err.println("************UNLINK FINISHED*************");
 			return SUCCESS;
@@ -1089,20 +2297,16 @@ class Proxy
 
 		/**
 		 * clientdone: Closes all the open files(if any) for the 
-		 * respective client.
+		 * respective client, as close does but without uploading.
 		 */
 		public void clientdone() {
 	
+			//what the client left open is dropped, writes included.
 			for(AccessFile aFile :fdAccessFileMap.values())
 			{
-				RandomAccessFile rAFile = aFile.rAFile;
-				try
+				if(!releaseFile(aFile))
 				{
-					rAFile.close();
-				}
-				catch(Exception e)
-				{
-					e.printStackTrace();
+					System.err.println("Client done, could not close:"+aFile.cachePath);
 				}
 			}
 
@@ -0,0 +1,33 @@
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.RemoteException;
+
+/**
+ * Receives invalidations from the server and drops the matching leases,
+ * so the next open of those files goes back to getFileInfo.
+ */
+public class ProxyCallback extends UnicastRemoteObject implements RemoteInvalidatable
+{
+	private static final long serialVersionUID = 1L;
+
+	private LeaseTable leases;
+
+	/**
+	 * Constructor
+	 * @param  leaseTable leases of this proxy
+	 * @throws RemoteException if the object cannot be exported
+	 */
+	public ProxyCallback(LeaseTable leaseTable) throws RemoteException
+	{
+		super();
+		this.leases = leaseTable;
+	}
+
+	/**
+	 * @param paths server normalized paths that changed
+	 */
+	public void invalidate(String[] paths) throws RemoteException
+	{
+		System.err.println("Invalidated by server:"+paths.length+" files");
+		leases.invalidate(paths);
+	}
+}
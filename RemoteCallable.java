@@ -7,12 +7,24 @@ import java.rmi.RemoteException;
 public interface RemoteCallable extends Remote
 {
 	public CachedFileInfo getFileInfo(String path,FileHandling.OpenOption o) throws RemoteException;
+	public CachedFileInfo getFileInfo(String path,FileHandling.OpenOption o,int proxyId) throws RemoteException;
 	public Chunk downloadChunkFromServer(String path,long offset) throws RemoteException;
+	public Chunk downloadChunkFromServer(String path,long offset,int length) throws RemoteException;
+	public Chunk downloadChunkFromServer(String path,long offset,int length,long version) throws RemoteException;
+	public BlockHashes getBlockHashes(String path,int blockSize) throws RemoteException;
 	
 	public void uploadFileToServer(String path, Chunk chunk) throws RemoteException;
 	public void deleteOldVersion(String path) throws RemoteException;
 	public long updateVersionNumber(String path) throws RemoteException;
 	public int unlinkFile(String path) throws RemoteException;
+
+	public long beginUpload(String path,long baseVersion) throws RemoteException;
+	public boolean uploadChunk(long uploadId,Chunk chunk) throws RemoteException;
+	public long commitUpload(long uploadId,long length) throws RemoteException;
+	public void abortUpload(long uploadId) throws RemoteException;
+
+	public int registerCallback(RemoteInvalidatable callback) throws RemoteException;
+	public long renewCallbacks(int proxyId) throws RemoteException;
  
 	
 }
\ No newline at end of file
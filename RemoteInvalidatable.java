@@ -0,0 +1,11 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Interface a proxy exports so that the server can call it back when
+ * files it has cached change.
+ */
+public interface RemoteInvalidatable extends Remote
+{
+	public void invalidate(String[] paths) throws RemoteException;
+}
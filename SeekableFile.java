@@ -0,0 +1,45 @@
+import java.io.IOException;
+
+/**
+ * What a file descriptor of the proxy reads and writes through: the
+ * RandomAccessFile calls FileHandler uses, so a private copy need not be
+ * one whole file on disk.
+ */
+public interface SeekableFile
+{
+	public int read(byte[] buffer) throws IOException;
+	public int read(byte[] buffer,int offset,int length) throws IOException;
+	public void write(byte[] buffer) throws IOException;
+	public void seek(long position) throws IOException;
+	public long getFilePointer() throws IOException;
+	public long length() throws IOException;
+
+	/**
+	 * @param  position where a write would start
+	 * @param  count    bytes it would write
+	 * @return  bytes of disk the file would take on for the write
+	 * @throws IOException
+	 */
+	public long growthFor(long position,int count) throws IOException;
+
+	/**
+	 * @return  bytes of disk the file would take on for detach
+	 * @throws IOException
+	 */
+	public long growthForDetach() throws IOException;
+
+	/**
+	 * Forces what was written to disk.
+	 * @throws IOException
+	 */
+	public void sync() throws IOException;
+
+	/**
+	 * Makes the file on disk hold all of the content by itself, so that it
+	 * can be moved away from what it shares blocks with.
+	 * @throws IOException
+	 */
+	public void detach() throws IOException;
+
+	public void close() throws IOException;
+}
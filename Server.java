@@ -2,8 +2,11 @@ import java.rmi.server.UnicastRemoteObject;
 import java.rmi.RemoteException;
 import java.rmi.registry.*;
 import java.rmi.Naming;
-import java.io.RandomAccessFile;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.io.File;
 
 import java.io.IOException;
@@ -13,6 +16,12 @@ import java.io.FileNotFoundException;
 import java.nio.file.Paths;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.InvalidPathException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Main file Server:  Checks all the file info/ checks if operation is 
@@ -31,11 +40,91 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 	public static final int MAXCHUNKSIZE = 1024 * 1024;	
 	public static final int FAILURE = -1;
 
+	//Read lease handed out with getFileInfo, 0 disables leases.
+	public static final long LEASEMILLIS = Long.getLong("server.leaseMillis",0);
+	//How long a callback proxy trusts its files without renewing.
+	public static final long CALLBACKLEASEMILLIS = Long.getLong("server.callbackLeaseMillis",30000);
+	//Invalidations to one proxy are batched for this long.
+	public static final long INVALIDATIONBATCHMILLIS = Long.getLong("server.invalidationBatchMillis",2);
+	//port of the binary NIO transport, 0 to serve RMI only
+	public static final int NIOPORT = Integer.getInteger("server.nioPort",0);
+	//worker threads of the NIO transport
+	public static final int NIOTHREADS = Integer.getInteger("server.nioThreads",16);
+	//largest chunk a proxy may ask for
+	public static final int MAXTRANSFERSIZE = Integer.getInteger("server.maxChunkSize",8 * 1024 * 1024);
+	//codec of the chunks sent to proxies: none, fast or strong
+	public static final byte COMPRESSION
+					= ChunkCodec.parse(System.getProperty("server.compression","none"));
+	//files whose block hashes are kept
+	public static final int HASHEDFILES = Integer.getInteger("server.hashedFiles",64);
+	//open files kept for chunked transfers
+	public static final int OPENFILES = Integer.getInteger("server.openFiles",256);
+	//unused open files are closed after this long
+	public static final long IDLEHANDLEMILLIS = Long.getLong("server.idleHandleMillis",30000);
+	//resolved client paths kept
+	public static final int PATHCACHESIZE = Integer.getInteger("server.pathCacheSize",4096);
+	//a resolved path is trusted this long, symlinks may change underneath
+	public static final long PATHCACHEMILLIS = Long.getLong("server.pathCacheMillis",5000);
+	//staged uploads nobody wrote to for this long are dropped
+	public static final long STAGEDIDLEMILLIS = Long.getLong("server.stagedIdleMillis",10 * 60 * 1000);
+	//sync a staged upload before it replaces the file; off is faster but
+	//a crash right after a commit may leave the file empty
+	public static final boolean SYNCUPLOADS
+					= Boolean.parseBoolean(System.getProperty("server.syncUploads","true"));
+
+	//temp files of staged uploads in the root, named by upload id.
+	public static final String STAGEDPREFIX = ".upload_";
+
 	
 	//All relative to server Time; - Keeps track of last modified time of all the files
 	//that are accessed in the server.
  	public static ConcurrentHashMap<String,Long> fileVersionMap;
 
+	/**
+	 * Lease bookkeeping of one server file.
+	 */
+	private static class LeaseState
+	{
+		//System.currentTimeMillis() when the last lease runs out.
+		long expiry;
+		//writers waiting for or holding the file; no leases meanwhile.
+		int writers;
+		//callback ids of the proxies that were given the file.
+		HashSet<Integer> holders = new HashSet<Integer>();
+	}
+
+	//server path vs lease state.
+	private ConcurrentHashMap<String,LeaseState> leaseMap;
+
+	/**
+	 * An upload being written to a temp file until it is committed.
+	 */
+	private static class StagedUpload
+	{
+		String serverPath;
+		String tempPath;
+		FileChannel channel;
+		//version the proxy changed, -1 if it sends the whole file.
+		long baseVersion;
+		volatile long lastUsedMillis;
+	}
+
+	//upload id vs staged upload.
+	private ConcurrentHashMap<Long,StagedUpload> stagedUploads;
+	private AtomicLong nextUploadId;
+
+	//proxies that get invalidation callbacks.
+	private CallbackRegistry callbacks;
+
+	//open channels shared by the chunks of a transfer.
+	private FileHandleCache handles;
+
+	//client path vs canonical path, for the paths inside rootDir.
+	private CanonicalPathCache canonicalPaths;
+
+	//block hashes of recently asked files, reused while the version holds.
+	private LinkedHashMap<String,BlockHashes> blockHashes;
+
  	/**
  	 * Constructor for server. 
  	 * @param  args            Command Line Arguments
@@ -48,6 +137,19 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 		port = Integer.parseInt(args[0]);
 		rootDir = validateServerPath(args[1]);
 		fileVersionMap = new ConcurrentHashMap<String,Long>();
+		leaseMap = new ConcurrentHashMap<String,LeaseState>();
+		stagedUploads = new ConcurrentHashMap<Long,StagedUpload>();
+		nextUploadId = new AtomicLong(1);
+		callbacks = new CallbackRegistry(CALLBACKLEASEMILLIS,INVALIDATIONBATCHMILLIS);
+		handles = new FileHandleCache(OPENFILES,IDLEHANDLEMILLIS);
+		canonicalPaths = new CanonicalPathCache(PATHCACHESIZE,PATHCACHEMILLIS);
+		blockHashes = new LinkedHashMap<String,BlockHashes>(16,0.75f,true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<String,BlockHashes> eldest)
+			{
+				return size() > HASHEDFILES;
+			}
+		};
 
 		if(rootDir == null)
 		{
@@ -59,6 +161,15 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 
 		System.err.println(rootDir);
 
+		//uploads of an earlier run can not be committed any more.
+		File[] leftovers = new File(rootDir).listFiles();
+		for(File leftover : leftovers)
+		{
+			if(leftover.getName().startsWith(STAGEDPREFIX))
+			{
+				leftover.delete();
+			}
+		}
 	}
 
 	/**
@@ -107,21 +218,32 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 	/**
 	 * validatePath: Validates the given file path. If it is within
 	 * the server rootdirectory. This only checks the integrity of the
-	 * path and not the file itself.
+	 * path and not the file itself. Resolved paths of existing files are
+	 * cached, so the chunks of a transfer canonicalize once; a stat of the
+	 * path checks the cached one still names the same file.
 	 * @param  filePath filePath from client.
 	 * @return     null - if the file is outside the root directory
 	 *             absolutePath - if it is within the root dir.
 	 */
 	public String validatePath(String filePath)
 	{
-
 		String resultPath = rootDir+filePath;
+		Object fileKey = fileKey(resultPath);
+		String cached = fileKey == null ? null : canonicalPaths.get(filePath,fileKey);
+		if(cached != null)
+		{
+			return cached;
+		}
+
 		File file = new File(resultPath);
 		try{
 			String fileAbsPath = file.getCanonicalPath();
 			if(fileAbsPath.startsWith(rootDir))
 			{
-				System.err.println("within dir:"+fileAbsPath);
+				if(fileKey != null)
+				{
+					canonicalPaths.put(filePath,fileAbsPath,fileKey);
+				}
 				return fileAbsPath;
 			}
 		}
@@ -132,15 +254,169 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 		return null;
 	}
 
+	/**
+	 * @param  path
+	 * @return  key of the file the path resolves to, symlinks followed;
+	 *          null if there is none or the file system has no keys.
+	 */
+	private static Object fileKey(String path)
+	{
+		try
+		{
+			return Files.readAttributes(Paths.get(path),BasicFileAttributes.class).fileKey();
+		}
+		catch(IOException | InvalidPathException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Grants a read lease on the file. Proxies registered for callbacks get
+	 * a callback lease and are remembered as holders of the file, others
+	 * get a timed lease if those are enabled.
+	 * @param  serverPath 
+	 * @param  fileInfo   reply to fill in
+	 * @param  proxyId    callback id of the proxy, -1 if none
+	 */
+	public void grantLease(String serverPath,final CachedFileInfo fileInfo,final int proxyId)
+	{
+		final boolean callback = proxyId >= 0 && callbacks.isAlive(proxyId);
+		if(LEASEMILLIS <= 0 && !callback)
+		{
+			return;
+		}
+
+		leaseMap.compute(serverPath,(key,state) ->
+		{
+			if(state == null)
+			{
+				state = new LeaseState();
+			}
+			if(state.writers == 0)
+			{
+				if(callback)
+				{
+					state.holders.add(proxyId);
+					fileInfo.isCallbackLease = true;
+				}
+				else
+				{
+					state.expiry = Math.max(state.expiry,System.currentTimeMillis() + LEASEMILLIS);
+					fileInfo.leaseMillis = LEASEMILLIS;
+				}
+			}
+			return state;
+		});
+	}
+
+	/**
+	 * Called before a file is changed. Stops new leases on it, calls back
+	 * the proxies holding it and waits until the timed leases have run
+	 * out. Must be paired with endWrite.
+	 * @param serverPath 
+	 * @return  writers of the file, this one included
+	 */
+	public int beginWrite(String serverPath)
+	{
+		final int[] writers = new int[1];
+		final long[] expiry = new long[1];
+		final HashSet<Integer> holders = new HashSet<Integer>();
+		leaseMap.compute(serverPath,(key,state) ->
+		{
+			if(state == null)
+			{
+				state = new LeaseState();
+			}
+			state.writers++;
+			writers[0] = state.writers;
+			expiry[0] = state.expiry;
+			holders.addAll(state.holders);
+			state.holders.clear();
+			return state;
+		});
+
+		if(!holders.isEmpty())
+		{
+			callbacks.invalidate(serverPath.substring(rootDir.length()),holders);
+		}
+
+		long wait = expiry[0] - System.currentTimeMillis();
+		while(wait > 0)
+		{
+			System.err.println("Waiting out leases on "+serverPath+":"+wait+"ms");
+			try
+			{
+				Thread.sleep(wait);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return writers[0];
+			}
+			wait = expiry[0] - System.currentTimeMillis();
+		}
+		return writers[0];
+	}
+
+	/**
+	 * The change started by beginWrite is visible, leases may be granted
+	 * again.
+	 * @param serverPath 
+	 */
+	public void endWrite(String serverPath)
+	{
+		leaseMap.computeIfPresent(serverPath,(key,state) ->
+		{
+			if(state.writers > 0)
+			{
+				state.writers--;
+			}
+			return state;
+		});
+	}
+
+	/**
+	 * Registers a proxy for invalidation callbacks.
+	 * @param  callback object exported by the proxy
+	 * @return  id to pass with getFileInfo and renewCallbacks
+	 * @throws RemoteException 
+	 */
+	public int registerCallback(RemoteInvalidatable callback) throws RemoteException
+	{
+		return callbacks.register(callback);
+	}
+
+	/**
+	 * Keeps the callback registration of a proxy alive.
+	 * @param  proxyId 
+	 * @return  how long the proxy may trust its files from now, 0 if it has
+	 *          been dropped and must register again.
+	 * @throws RemoteException 
+	 */
+	public long renewCallbacks(int proxyId) throws RemoteException
+	{
+		return callbacks.renew(proxyId);
+	}
+
+	/**
+	 * getFileInfo for proxies without callbacks.
+	 */
+	public CachedFileInfo getFileInfo(String path,FileHandling.OpenOption o)
+	{
+		return getFileInfo(path,o,-1);
+	}
+
 	/**
 	 * Extracts all the information about a particular server file.
 	 * Returns the file Info object containing error codes/ various
 	 * other information if applicable.
 	 * @param  path Path of server file.
 	 * @param  o    Open Mode.
+	 * @param  proxyId callback id of the proxy, -1 if none.
 	 * @return     FileInfo of the file in question.
 	 */
-	public CachedFileInfo getFileInfo(String path,FileHandling.OpenOption o)
+	public CachedFileInfo getFileInfo(String path,FileHandling.OpenOption o,int proxyId)
 	{
 		
 		String serverPath =  validatePath(path);
@@ -273,13 +549,22 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 
 		
 		fileInfo.putErrorCode(NOERROR);
-		fileInfo.putFileSize(file.length());
-		fileInfo.putLastModifiedTime(file.lastModified());
-		fileInfo.putIsDir(false);
+		fileInfo.putIsDir(file.isDirectory());
 		fileInfo.putNormalizedPath(serverPath.substring(rootDir.length()));
 		System.err.println("Normalized:"+serverPath.substring(rootDir.length()));
-		
-		fileVersionMap.put(serverPath,file.lastModified());
+
+		//reads get a lease, unless somebody is about to write. Granted
+		//before the version is read, so a commit that slips in between is
+		//either seen below or waits for this lease.
+		if(o == FileHandling.OpenOption.READ && !fileInfo.isDir)
+		{
+			grantLease(serverPath,fileInfo,proxyId);
+		}
+
+		long version = file.lastModified();
+		fileInfo.putFileSize(file.length());
+		fileInfo.putLastModifiedTime(version);
+		fileVersionMap.put(serverPath,version);
 
 		
 		System.err.println("Server file size:"+ file.length());
@@ -297,67 +582,292 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 	 */
 	public Chunk downloadChunkFromServer(String path,long offset) throws RemoteException
 	{
-		String sPath = validatePath(path);
+		return downloadChunkFromServer(path,offset,MAXCHUNKSIZE);
+	}
+
+	/**
+	 * Sends a chunk of the size the proxy asked for, capped by
+	 * MAXTRANSFERSIZE.
+	 * @param  path            path in server
+	 * @param  offset          byte offset within file
+	 * @param  length          bytes wanted
+	 * @return                 chunk containg data/error
+	 * @throws RemoteException
+	 */
+	public Chunk downloadChunkFromServer(String path,long offset,int length) throws RemoteException
+	{
+		try
+		{
+			FileHandleCache.Handle handle = acquireForRead(path);
+			try
+			{
+				return readChunk(handle.channel,offset,length);
+			}
+			finally
+			{
+				handles.release(handle);
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
 
+		return null;
 
-		File file = new File(sPath);
+	}
 
+	/**
+	 * Sends a chunk of one version of the file, for proxies that cache
+	 * a file in blocks and fetch them long after open.
+	 * @param  path            path in server
+	 * @param  offset          byte offset within file
+	 * @param  length          bytes wanted
+	 * @param  version         last modified time the proxy opened
+	 * @return                 chunk, null if the file is not at that
+	 *                         version any more.
+	 * @throws RemoteException
+	 */
+	public Chunk downloadChunkFromServer(String path,long offset,int length,long version)
+		throws RemoteException
+	{
 		try
 		{
+			FileHandleCache.Handle handle = acquireForRead(path,version);
+			try
+			{
+				return readChunk(handle.channel,offset,length);
+			}
+			finally
+			{
+				handles.release(handle);
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Versioned read of "+path+" failed:"+e.getMessage());
+		}
 
-			RandomAccessFile raFile = new RandomAccessFile(file,"r");
-
+		return null;
+	}
 
-			raFile.seek(offset);
+	/**
+	 * Pins an open channel of a served file for positional reads.
+	 * @param  path        server relative file path
+	 * @return  handle, to be given back with releaseHandle
+	 * @throws IOException if the path is outside the root or unreadable
+	 */
+	public FileHandleCache.Handle acquireForRead(String path) throws IOException
+	{
+		String sPath = validatePath(path);
+		if(sPath == null)
+		{
+			throw new FileNotFoundException("Path violation:"+path);
+		}
+		return handles.acquire(sPath,false);
+	}
 
-			Chunk chunk = new Chunk();
+	/**
+	 * Pins an open channel of one version of a served file.
+	 * @param  path    server relative file path
+	 * @param  version last modified time wanted
+	 * @return  handle, to be given back with releaseHandle
+	 * @throws IOException if the file is at another version
+	 */
+	public FileHandleCache.Handle acquireForRead(String path,long version) throws IOException
+	{
+		String sPath = validatePath(path);
+		if(sPath == null)
+		{
+			throw new FileNotFoundException("Path violation:"+path);
+		}
 
-			if(raFile.getFilePointer() == raFile.length())
+		//commits swap the file and its handle under this lock, so a
+		//handle taken with the version checked is of that version.
+		LeaseState state = leaseMap.computeIfAbsent(sPath,key -> new LeaseState());
+		synchronized(state)
+		{
+			if(new File(sPath).lastModified() != version)
 			{
-				
-				chunk.size = -1;
-				raFile.close();
-				return chunk;
+				throw new IOException("not at version "+version+":"+path);
 			}
+			return handles.acquire(sPath,false);
+		}
+	}
 
-			chunk.buffer = new byte[MAXCHUNKSIZE];
-			chunk.size = raFile.read(chunk.buffer);
-			
-			raFile.close();
+	/**
+	 * @param handle from acquireForRead
+	 */
+	public void releaseHandle(FileHandleCache.Handle handle)
+	{
+		handles.release(handle);
+	}
+
+	/**
+	 * Reads the chunk at offset with positional reads, so the channel can
+	 * be shared. The buffer is borrowed from the ChunkBufferPool and goes
+	 * back once the chunk is sent.
+	 * @param  channel
+	 * @param  offset
+	 * @param  asked   bytes wanted
+	 * @return  chunk, size -1 at the end of the file
+	 * @throws IOException
+	 */
+	public static Chunk readChunk(FileChannel channel,long offset,int asked) throws IOException
+	{
+		Chunk chunk = new Chunk();
+		chunk.offset = offset;
+		chunk.codec = COMPRESSION;
 
+		int length = chunkLength(channel.size(),offset,asked);
+		if(length < 0)
+		{
+			chunk.size = -1;
 			return chunk;
 		}
-		catch(FileNotFoundException e)
+
+		chunk.buffer = ChunkBufferPool.shared().borrow(length);
+		chunk.pooled = true;
+		ByteBuffer buffer = ByteBuffer.wrap(chunk.buffer,0,length);
+		try
 		{
-			e.printStackTrace();
+			while(buffer.hasRemaining())
+			{
+				if(channel.read(buffer,offset + buffer.position()) < 0)
+				{
+					break; //file shrank meanwhile
+				}
+			}
 		}
 		catch(IOException e)
 		{
-			e.printStackTrace();
+			ChunkBufferPool.release(chunk);
+			throw e;
 		}
+		chunk.size = buffer.position();
+		return chunk;
+	}
 
-		return null;
+	/**
+	 * @param  fileSize
+	 * @param  offset
+	 * @param  asked   bytes wanted
+	 * @return  bytes of the chunk at offset, -1 if offset is at or past the end.
+	 */
+	public static int chunkLength(long fileSize,long offset,int asked)
+	{
+		if(offset < 0 || offset >= fileSize)
+		{
+			return -1;
+		}
+		int length = Math.min(Math.max(asked,1),MAXTRANSFERSIZE);
+		return (int)Math.min(length,fileSize - offset);
+	}
+
+	/**
+	 * Block hashes of the current version of the file, for proxies that
+	 * hold an older version and fetch only the blocks that changed.
+	 * @param  path      server relative file path
+	 * @param  blockSize 
+	 * @return  hashes, null if the file cannot be read
+	 * @throws RemoteException 
+	 */
+	public BlockHashes getBlockHashes(String path,int blockSize) throws RemoteException
+	{
+		String sPath = validatePath(path);
+		if(sPath == null || blockSize <= 0)
+		{
+			return null;
+		}
+		File file = new File(sPath);
+		String key = sPath+":"+blockSize;
+
+		long version = file.lastModified();
+		synchronized(blockHashes)
+		{
+			BlockHashes hashes = blockHashes.get(key);
+			if(hashes != null && hashes.version == version && hashes.fileSize == file.length())
+			{
+				return hashes;
+			}
+		}
+
+		try
+		{
+			FileHandleCache.Handle handle = handles.acquire(sPath,false);
+			BlockHashes hashes;
+			try
+			{
+				hashes = BlockHashes.compute(handle.channel,blockSize,version);
+			}
+			finally
+			{
+				handles.release(handle);
+			}
 
+			//changed while hashing, let the proxy fetch it whole.
+			if(file.lastModified() != version)
+			{
+				return null;
+			}
+			synchronized(blockHashes)
+			{
+				blockHashes.put(key,hashes);
+			}
+			return hashes;
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		return null;
 	}
 
 	/**
-	 * Gets the file from the client in chunks.
+	 * Gets the file from the client in chunks, in place. Proxies upload
+	 * through beginUpload instead.
 	 * @param  path            server file path
 	 * @param  chunk           file chunk from client
 	 * @throws RemoteException 
 	 */
 	public void uploadFileToServer(String path, Chunk chunk) throws RemoteException
 	{	
+		try
+		{
+			writeChunk(path,chunk.offset,ByteBuffer.wrap(chunk.buffer,0,chunk.size));
+		}
+		finally
+		{
+			ChunkBufferPool.release(chunk);
+		}
+	}
+
+	/**
+	 * Writes bytes from the client at offset of the file.
+	 * @param  path   server file path
+	 * @param  offset
+	 * @param  buffer bytes between position and limit
+	 */
+	public void writeChunk(String path,long offset,ByteBuffer buffer)
+	{
 		String sPath = validatePath(path);
-		File file = new File(sPath);
 
 
 		try
 		{
-			RandomAccessFile raFile = new RandomAccessFile(file,"rw");
-			raFile.seek(chunk.offset);
-			raFile.write(chunk.buffer,0,chunk.size);
-			raFile.close();
+			FileHandleCache.Handle handle = handles.acquire(sPath,true);
+			try
+			{
+				long position = offset;
+				while(buffer.hasRemaining())
+				{
+					position += handle.channel.write(buffer,position);
+				}
+			}
+			finally
+			{
+				handles.release(handle);
+			}
 
 		}
 		catch(FileNotFoundException e)
@@ -368,12 +878,11 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 		{
 			e.printStackTrace();
 		}
-	
-
 	}
 
 	/**
 	 * only get notified when the client wants to update the file
+	 * in place; staged uploads never delete it.
 	 * @param  path            [description]
 	 * @throws RemoteException [description]
 	 */
@@ -385,15 +894,271 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 		//delete it.
 		String sPath = validatePath(path);
 		File file = new File(sPath);
+
+		//readers holding a lease must not see the change. The leases
+		//granted while the chunks are written are recalled again by
+		//updateVersionNumber, so a client that never calls it blocks nothing.
+		beginWrite(sPath);
+		try
+		{
+			handles.invalidate(sPath);
 	
-		if(file.exists())
+			if(file.exists())
+			{
+				file.delete();
+				System.err.println("DeleteD!="+ sPath);
+			}
+		}
+		finally
 		{
-			file.delete();
-			System.err.println("DeleteD!="+ sPath);
+			endWrite(sPath);
 		}
 		
 	}
 
+	/**
+	 * Starts a staged upload. The chunks go to a temp file in the root and
+	 * replace the file only on commitUpload, in one rename, so readers see
+	 * the old version or the new one and never a missing or half written
+	 * file. Uploads of different proxies run side by side.
+	 * @param  path        server relative file path
+	 * @param  baseVersion last modified time of the version the proxy
+	 *                     changed, to send only its changes; -1 to send
+	 *                     the whole file.
+	 * @return  upload id, FAILURE if the path is invalid or the file is no
+	 *          longer baseVersion
+	 * @throws RemoteException 
+	 */
+	public long beginUpload(String path,long baseVersion) throws RemoteException
+	{
+		String sPath = validatePath(path);
+		if(sPath == null || new File(sPath).isDirectory())
+		{
+			return FAILURE;
+		}
+		dropIdleUploads();
+
+		StagedUpload upload = new StagedUpload();
+		long uploadId = nextUploadId.getAndIncrement();
+		upload.serverPath = sPath;
+		upload.tempPath = rootDir+STAGEDPREFIX+uploadId;
+		upload.baseVersion = baseVersion;
+
+		File file = new File(sPath);
+		try
+		{
+			//only the changes come, start from the current file.
+			if(baseVersion >= 0)
+			{
+				if(!file.isFile() || file.lastModified() != baseVersion)
+				{
+					return FAILURE;
+				}
+				Files.copy(file.toPath(),Paths.get(upload.tempPath),StandardCopyOption.REPLACE_EXISTING);
+				if(file.lastModified() != baseVersion)
+				{
+					new File(upload.tempPath).delete();
+					return FAILURE;
+				}
+			}
+			upload.channel = FileChannel.open(Paths.get(upload.tempPath),
+							StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			new File(upload.tempPath).delete();
+			return FAILURE;
+		}
+
+		upload.lastUsedMillis = System.currentTimeMillis();
+		stagedUploads.put(uploadId,upload);
+		System.err.println("Staging upload "+uploadId+" of "+sPath);
+		return uploadId;
+	}
+
+	/**
+	 * Gets a chunk of a staged upload.
+	 * @param  uploadId from beginUpload
+	 * @param  chunk    file chunk from client
+	 * @return  false if the upload is unknown or the write failed
+	 * @throws RemoteException 
+	 */
+	public boolean uploadChunk(long uploadId,Chunk chunk) throws RemoteException
+	{
+		try
+		{
+			return writeStagedChunk(uploadId,chunk.offset,ByteBuffer.wrap(chunk.buffer,0,chunk.size));
+		}
+		finally
+		{
+			ChunkBufferPool.release(chunk);
+		}
+	}
+
+	/**
+	 * Writes bytes of a staged upload at offset of its temp file.
+	 * @param  uploadId from beginUpload
+	 * @param  offset
+	 * @param  buffer   bytes between position and limit
+	 * @return  false if the upload is unknown or the write failed
+	 */
+	public boolean writeStagedChunk(long uploadId,long offset,ByteBuffer buffer)
+	{
+		StagedUpload upload = stagedUploads.get(uploadId);
+		if(upload == null)
+		{
+			return false;
+		}
+		upload.lastUsedMillis = System.currentTimeMillis();
+
+		try
+		{
+			long position = offset;
+			while(buffer.hasRemaining())
+			{
+				position += upload.channel.write(buffer,position);
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Makes a staged upload the current version: syncs the temp file and
+	 * renames it over the file. An upload of changes is refused if the
+	 * file got another version meanwhile.
+	 * @param  uploadId from beginUpload
+	 * @param  length   length of the new version
+	 * @return  last modified time of the new version, FAILURE if refused
+	 * @throws RemoteException 
+	 */
+	public long commitUpload(long uploadId,long length) throws RemoteException
+	{
+		StagedUpload upload = stagedUploads.remove(uploadId);
+		if(upload == null)
+		{
+			return FAILURE;
+		}
+
+		String sPath = upload.serverPath;
+		File file = new File(sPath);
+		File temp = new File(upload.tempPath);
+		try
+		{
+			FileChannel channel = upload.channel;
+			if(length < channel.size())
+			{
+				channel.truncate(length);
+			}
+			else if(length > channel.size())
+			{
+				channel.write(ByteBuffer.wrap(new byte[1]),length - 1);
+			}
+			if(SYNCUPLOADS)
+			{
+				channel.force(true);
+			}
+			channel.close();
+
+			//a stale upload fails without calling anyone back.
+			if(upload.baseVersion >= 0 && file.lastModified() != upload.baseVersion)
+			{
+				System.err.println("Upload "+uploadId+" changed an old version of "+sPath);
+				temp.delete();
+				return FAILURE;
+			}
+
+			//readers holding a lease must not see the change. Leases are
+			//recalled before the lock versioned reads take, which is held
+			//only for the check and the rename.
+			beginWrite(sPath);
+			try
+			{
+				//commits of one path take turns, the version check and the
+				//rename must not interleave.
+				LeaseState state = leaseMap.computeIfAbsent(sPath,key -> new LeaseState());
+				synchronized(state)
+				{
+					if(upload.baseVersion >= 0 && file.lastModified() != upload.baseVersion)
+					{
+						System.err.println("Upload "+uploadId+" changed an old version of "+sPath);
+						temp.delete();
+						return FAILURE;
+					}
+
+					//versions only move forward, whenever the temp was written.
+					temp.setLastModified(Math.max(System.currentTimeMillis(),file.lastModified() + 1));
+					Files.move(temp.toPath(),file.toPath(),StandardCopyOption.ATOMIC_MOVE);
+					handles.invalidate(sPath);
+					long version = file.lastModified();
+					fileVersionMap.put(sPath,version);
+					System.err.println("Committed upload "+uploadId+" of "+sPath);
+					return version;
+				}
+			}
+			finally
+			{
+				endWrite(sPath);
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			temp.delete();
+			return FAILURE;
+		}
+	}
+
+	/**
+	 * Drops a staged upload, the file keeps its version.
+	 * @param  uploadId from beginUpload
+	 * @throws RemoteException 
+	 */
+	public void abortUpload(long uploadId) throws RemoteException
+	{
+		StagedUpload upload = stagedUploads.remove(uploadId);
+		if(upload != null)
+		{
+			discard(upload);
+		}
+	}
+
+	private void discard(StagedUpload upload)
+	{
+		try
+		{
+			upload.channel.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		new File(upload.tempPath).delete();
+	}
+
+	/**
+	 * Drops the staged uploads of proxies that went away.
+	 */
+	private void dropIdleUploads()
+	{
+		long now = System.currentTimeMillis();
+		for(Map.Entry<Long,StagedUpload> entry : stagedUploads.entrySet())
+		{
+			StagedUpload upload = entry.getValue();
+			if(now - upload.lastUsedMillis > STAGEDIDLEMILLIS
+			   && stagedUploads.remove(entry.getKey(),upload))
+			{
+				System.err.println("Dropping idle upload "+entry.getKey());
+				discard(upload);
+			}
+		}
+	}
+
 	/**
 	 * updates the version hash map as well as sends back the
 	 * last modified time of the file for further processing in the 
@@ -407,8 +1172,17 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 		String sPath = validatePath(path);
 		
 		File file = new File(sPath);
-		fileVersionMap.put(sPath,file.lastModified());
-		return file.lastModified();
+		//recalls the leases granted on the file while it was written.
+		beginWrite(sPath);
+		try
+		{
+			fileVersionMap.put(sPath,file.lastModified());
+			return file.lastModified();
+		}
+		finally
+		{
+			endWrite(sPath);
+		}
 	}
 
 	public static void main(String[] args)
@@ -441,6 +1215,11 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 			
 			//Bind to  name
 			Naming.rebind("//127.0.0.1:"+args[0]+"/Server",server);
+
+			if(NIOPORT > 0)
+			{
+				new NioServer(server,NIOPORT,NIOTHREADS).start();
+			}
 		}
 		catch(Exception e)
 		{
@@ -456,7 +1235,7 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 	 * @throws RemoteException 
 	 */
 
-	public synchronized int unlinkFile(String path) throws RemoteException
+	public int unlinkFile(String path) throws RemoteException
 	{
 			String sPath = validatePath(path);
 			File file = new File(sPath);
@@ -480,7 +1259,23 @@ public class Server extends UnicastRemoteObject implements RemoteCallable
 			}
 					
 
-			file.delete();
+			//leases are recalled before the path's lock, which commits and
+			//versioned reads of the file take, is held for the delete.
+			beginWrite(sPath);
+			try
+			{
+				LeaseState state = leaseMap.computeIfAbsent(sPath,key -> new LeaseState());
+				synchronized(state)
+				{
+					handles.invalidate(sPath);
+					file.delete();
+					canonicalPaths.clear();
+				}
+			}
+			finally
+			{
+				endWrite(sPath);
+			}
 
 			System.err.println("************Server UNLINK FINISHED*************");
 
@@ -0,0 +1,89 @@
+import java.io.IOException;
+
+/**
+ * Read only fd of a master kept in the BlockStore: reads go to the blocks
+ * its manifest names.
+ */
+public class StoredFile implements SeekableFile
+{
+	private BlockStore store;
+	private BlockStore.Manifest manifest;
+	private long position;
+
+	/**
+	 * Constructor
+	 * @param  blockStore
+	 * @param  stored     manifest of a committed master, kept while open
+	 */
+	public StoredFile(BlockStore blockStore,BlockStore.Manifest stored)
+	{
+		this.store = blockStore;
+		this.manifest = stored;
+		this.position = 0;
+	}
+
+	public int read(byte[] buffer) throws IOException
+	{
+		return read(buffer,0,buffer.length);
+	}
+
+	public int read(byte[] buffer,int offset,int length) throws IOException
+	{
+		int result = store.read(manifest,position,buffer,offset,length);
+		if(result > 0)
+		{
+			position += result;
+		}
+		return result;
+	}
+
+	public void write(byte[] buffer) throws IOException
+	{
+		throw new IOException("Stored masters are read only");
+	}
+
+	public void seek(long newPosition) throws IOException
+	{
+		if(newPosition < 0)
+		{
+			throw new IOException("negative seek");
+		}
+		position = newPosition;
+	}
+
+	public long getFilePointer()
+	{
+		return position;
+	}
+
+	public long length()
+	{
+		return manifest.size;
+	}
+
+	public void sync()
+	{
+		//nothing written
+	}
+
+	public long growthFor(long position,int count)
+	{
+		//read only
+		return 0;
+	}
+
+	public long growthForDetach()
+	{
+		return 0;
+	}
+
+	public void detach()
+	{
+		//nothing written
+	}
+
+	public void close()
+	{
+		//the master is pinned in the cache, not here
+	}
+}
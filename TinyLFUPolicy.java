@@ -0,0 +1,124 @@
+/**
+ * W-TinyLFU eviction and admission.
+ *
+ * New files enter a small LRU window. When the window outgrows its share
+ * they move to the probation part of the main region, and a hit in
+ * probation promotes the file to the protected part. Files are evicted
+ * from probation first, then the window, then protected.
+ *
+ * Evicting anything from the main region is only allowed if the incoming
+ * file has been requested more often than the victim, according to a
+ * count-min sketch. That keeps one-shot scans of big files from flushing
+ * the hot set; the caller serves rejected files without caching them.
+ */
+public class TinyLFUPolicy implements EvictionPolicy
+{
+	public static final int WINDOWPERCENT = 1;
+	public static final int PROTECTEDPERCENT = 80;
+
+	private UsageList window;
+	private UsageList probation;
+	private UsageList protectedList;
+
+	private long windowLimit;
+	private long protectedLimit;
+
+	private FrequencySketch sketch;
+
+	/**
+	 * Constructor
+	 * @param  segmentLimit bytes this segment is expected to hold
+	 * @param  sketchWidth  counters per sketch row
+	 */
+	public TinyLFUPolicy(long segmentLimit,int sketchWidth)
+	{
+		window = new UsageList();
+		probation = new UsageList();
+		protectedList = new UsageList();
+
+		windowLimit = segmentLimit * WINDOWPERCENT / 100;
+		protectedLimit = (segmentLimit - windowLimit) * PROTECTEDPERCENT / 100;
+
+		sketch = new FrequencySketch(sketchWidth);
+	}
+
+	public void onInsert(CachedFileInfo file)
+	{
+		window.addFirst(file);
+
+		//overflow of the window goes to probation
+		while(window.getBytes() > windowLimit && window.size() > 1)
+		{
+			probation.addFirst(window.getTail());
+		}
+	}
+
+	public void onAccess(CachedFileInfo file)
+	{
+		if(file.owningList == window)
+		{
+			window.moveToFront(file);
+		}
+		else if(file.owningList == probation)
+		{
+			protectedList.addFirst(file);
+
+			//overflow of protected is demoted back to probation
+			while(protectedList.getBytes() > protectedLimit && protectedList.size() > 1)
+			{
+				probation.addFirst(protectedList.getTail());
+			}
+		}
+		else if(file.owningList == protectedList)
+		{
+			protectedList.moveToFront(file);
+		}
+	}
+
+	public void onRemove(CachedFileInfo file)
+	{
+		if(file.owningList != null)
+		{
+			file.owningList.remove(file);
+		}
+	}
+
+	public void onEvict(CachedFileInfo file)
+	{
+		onRemove(file);
+	}
+
+	public void recordRequest(String cachePath,CachedFileInfo file)
+	{
+		sketch.increment(cachePath);
+	}
+
+	public int frequency(String cachePath)
+	{
+		return sketch.frequency(cachePath);
+	}
+
+	public CachedFileInfo victim()
+	{
+		CachedFileInfo victim = probation.lastEvictable();
+		if(victim == null)
+		{
+			victim = window.lastEvictable();
+		}
+		if(victim == null)
+		{
+			victim = protectedList.lastEvictable();
+		}
+		return victim;
+	}
+
+	public boolean admit(int candidateFrequency, CachedFileInfo victim)
+	{
+		//window files haven't earned their place yet.
+		if(victim.owningList == window)
+		{
+			return true;
+		}
+		return candidateFrequency > sketch.frequency(victim.cachePath);
+	}
+}
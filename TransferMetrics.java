@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of one transfer direction of the proxy: how many chunk
+ * requests were made, with which sizes, how fast they went and how well
+ * they compressed on the wire. Printed with toString.
+ */
+public class TransferMetrics
+{
+	private String name;
+	private AtomicLong requests;
+	private AtomicLong bytes;
+	private AtomicLong nanos;
+	//requests by log2 of the asked chunk size.
+	private AtomicLongArray sizeHistogram;
+	//bytes of chunks with data, before and on the wire
+	private AtomicLong rawBytes;
+	private AtomicLong wireBytes;
+	private AtomicLong compressedChunks;
+	private AtomicLong codecNanos;
+
+	/**
+	 * Constructor
+	 * @param  metricsName shown in toString
+	 */
+	public TransferMetrics(String metricsName)
+	{
+		this.name = metricsName;
+		this.requests = new AtomicLong();
+		this.bytes = new AtomicLong();
+		this.nanos = new AtomicLong();
+		this.sizeHistogram = new AtomicLongArray(32);
+		this.rawBytes = new AtomicLong();
+		this.wireBytes = new AtomicLong();
+		this.compressedChunks = new AtomicLong();
+		this.codecNanos = new AtomicLong();
+	}
+
+	/**
+	 * Counts how a chunk went over the wire.
+	 * @param chunk sent or received, see Chunk.codec
+	 */
+	public void recordWire(Chunk chunk)
+	{
+		if(chunk.size <= 0)
+		{
+			return;
+		}
+		rawBytes.addAndGet(chunk.size);
+		wireBytes.addAndGet(chunk.wireSize);
+		codecNanos.addAndGet(chunk.codecNanos);
+		if(chunk.codec != ChunkCodec.NONE)
+		{
+			compressedChunks.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts one chunk request.
+	 * @param askedSize   chunk size that was asked for
+	 * @param transferred bytes that came back or went out
+	 * @param elapsed     nanos the request took
+	 */
+	public void recordChunk(int askedSize,long transferred,long elapsed)
+	{
+		requests.incrementAndGet();
+		bytes.addAndGet(transferred);
+		nanos.addAndGet(elapsed);
+		sizeHistogram.incrementAndGet(31 - Integer.numberOfLeadingZeros(Math.max(askedSize,1)));
+	}
+
+	public long getRequests()
+	{
+		return requests.get();
+	}
+
+	public long getBytes()
+	{
+		return bytes.get();
+	}
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder(name);
+		result.append(": requests=").append(requests.get());
+		result.append(" bytes=").append(bytes.get());
+		long elapsed = nanos.get();
+		if(elapsed > 0)
+		{
+			//per request, in flight requests overlap.
+			result.append(" MB/s/request=").append(Math.round(bytes.get() * 1000.0 / elapsed));
+		}
+		long wire = wireBytes.get();
+		if(wire > 0)
+		{
+			result.append(" wire=").append(wire);
+			result.append(" ratio=").append(String.format("%.2f",(double)rawBytes.get() / wire));
+			result.append(" compressed=").append(compressedChunks.get());
+			result.append(" codecMs=").append(codecNanos.get() / 1000000);
+		}
+		result.append(" sizes={");
+		String separator = "";
+		for(int shift = 0; shift < 32; shift++)
+		{
+			long count = sizeHistogram.get(shift);
+			if(count > 0)
+			{
+				result.append(separator).append(1L << shift).append(':').append(count);
+				separator = ",";
+			}
+		}
+		return result.append('}').toString();
+	}
+}
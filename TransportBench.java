@@ -0,0 +1,89 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Benchmark of the two transports against a server in this process: the
+ * per-call overhead of getFileInfo on a small file, and the throughput of
+ * downloading a large file one chunk call after the other.
+ *
+ * Usage: java TransportBench [rmiPort] [megabytes]
+ * The NIO server listens on rmiPort + 1.
+ */
+public class TransportBench
+{
+	private static final int CALLS = 5000;
+	private static final int PASSES = 4;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * @return  microseconds per getFileInfo
+	 */
+	private static double timeCalls(RemoteCallable server) throws Exception
+	{
+		long start = System.nanoTime();
+		for(int call = 0; call < CALLS; call++)
+		{
+			server.getFileInfo("small",FileHandling.OpenOption.READ);
+		}
+		return (System.nanoTime() - start) / 1000.0 / CALLS;
+	}
+
+	/**
+	 * @return  megabytes per second downloaded
+	 */
+	private static double timeDownloads(RemoteCallable server,long size) throws Exception
+	{
+		long start = System.nanoTime();
+		for(int pass = 0; pass < PASSES; pass++)
+		{
+			long offset = 0;
+			while(offset < size)
+			{
+				Chunk chunk = server.downloadChunkFromServer("big",offset);
+				offset += chunk.size;
+				ChunkBufferPool.release(chunk);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return PASSES * size / (1024.0 * 1024) / seconds;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 15440;
+		int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+		Path serverDir = BenchHarness.setUp("transport");
+		byte[] big = new byte[megabytes * 1024 * 1024];
+		new Random(1).nextBytes(big);
+		Files.write(serverDir.resolve("big"),big);
+		Files.write(serverDir.resolve("small"),new byte[10]);
+
+		RemoteCallable rmi = BenchHarness.startServer(port,serverDir);
+		RemoteCallable nio = new NioClient("127.0.0.1",port + 1,rmi);
+		String[] names = {"rmi","nio"};
+		RemoteCallable[] transports = {rmi,nio};
+
+		//the first rounds warm up the compiler
+		for(int round = 0; round < ROUNDS; round++)
+		{
+			for(int index = 0; index < transports.length; index++)
+			{
+				double call = timeCalls(transports[index]);
+				double throughput = timeDownloads(transports[index],big.length);
+				if(round == ROUNDS - 1)
+				{
+					System.out.printf("%s: getFileInfo %6.1f us/call, download %5.0f MB/s%n",
+									  names[index],call,throughput);
+				}
+			}
+		}
+
+		new File(serverDir.toFile(),"big").delete();
+		new File(serverDir.toFile(),"small").delete();
+		serverDir.toFile().delete();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Intrusive doubly linked list of cache entries, threaded through the
+ * lruPrev/lruNext links of CachedFileInfo. Every operation is O(1).
+ * MRU at head and LRU at Tail.
+ *
+ * Not thread safe; it is always used under the owning segment's lock.
+ */
+public class UsageList
+{
+	private CachedFileInfo head;
+	private CachedFileInfo tail;
+
+	//sum of the sizes of the files in the list.
+	private long bytes;
+	private int count;
+
+	/**
+	 * Constructor
+	 */
+	public UsageList()
+	{
+		head = null;
+		tail = null;
+		bytes = 0;
+		count = 0;
+	}
+
+	/**
+	 * Adds the file at the head. Takes it out of any other list first.
+	 * @param file fileInfo
+	 */
+	public void addFirst(CachedFileInfo file)
+	{
+		if(file.owningList != null)
+		{
+			file.owningList.remove(file);
+		}
+
+		file.lruPrev = null;
+		file.lruNext = head;
+		if(head != null)
+		{
+			head.lruPrev = file;
+		}
+		head = file;
+		if(tail == null)
+		{
+			tail = file;
+		}
+
+		file.owningList = this;
+		file.listedSize = file.fileSize;
+		bytes += file.listedSize;
+		count++;
+	}
+
+	/**
+	 * Moves a file of this list to the head.
+	 * @param file fileInfo
+	 */
+	public void moveToFront(CachedFileInfo file)
+	{
+		if(head == file)
+		{
+			return;
+		}
+		addFirst(file);
+	}
+
+	/**
+	 * Removes the file from the list. No-op if it isn't there.
+	 * @param file fileInfo
+	 */
+	public void remove(CachedFileInfo file)
+	{
+		if(file.owningList != this)
+		{
+			return;
+		}
+
+		if(file.lruPrev != null)
+		{
+			file.lruPrev.lruNext = file.lruNext;
+		}
+		else
+		{
+			head = file.lruNext;
+		}
+
+		if(file.lruNext != null)
+		{
+			file.lruNext.lruPrev = file.lruPrev;
+		}
+		else
+		{
+			tail = file.lruPrev;
+		}
+
+		file.lruPrev = null;
+		file.lruNext = null;
+		file.owningList = null;
+		bytes -= file.listedSize;
+		count--;
+	}
+
+	/**
+	 * Least recently used evictable file, walking from the tail.
+	 * Only read only masters that nobody is reading are evictable. Write
+	 * copies cannot be touched, as they will be deleted at the end of the
+	 * close operation.
+	 * @return  file or null
+	 */
+	public CachedFileInfo lastEvictable()
+	{
+		//backwards iteration;
+		CachedFileInfo tempFile = tail;
+		while(tempFile != null)
+		{
+			if(tempFile.isReadOnly && tempFile.readerCount == 0)
+			{
+				return tempFile;
+			}
+			tempFile = tempFile.lruPrev;
+		}
+		return null;
+	}
+
+	public CachedFileInfo getTail()
+	{
+		return tail;
+	}
+
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	public int size()
+	{
+		return count;
+	}
+}
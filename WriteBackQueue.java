@@ -0,0 +1,522 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Uploads of closed private copies that run in the background, so that
+ * close does not wait for the server (write-back mode of the proxy).
+ *
+ * close moves the copy into the queue directory and journals it before it
+ * returns; uploads still queued when the proxy stops run again on the
+ * next start. Uploads of one path run in queue order. One that is still
+ * waiting when a newer one of the same path comes is dropped, the newer
+ * copy holds all of its writes. Failed uploads are retried with backoff
+ * until they go through.
+ *
+ * Journal records are appended and synced: ADDED with the upload, DONE
+ * with its id. It is compacted to the ADDED records of the live uploads
+ * on every start.
+ */
+public class WriteBackQueue
+{
+	public static final String JOURNALNAME = "journal";
+	public static final long MAXRETRYMILLIS = 30000;
+
+	private static final byte ADDED = 1;
+	private static final byte DONE = 2;
+
+	/**
+	 * One closed private copy waiting for upload.
+	 */
+	public static class Upload
+	{
+		public long id;
+		//server path
+		public String path;
+		//copy in the queue directory
+		public String file;
+		//server version the ranges apply to, -1 to replace the whole file
+		public long baseVersion;
+		public long length;
+		//pairs of start and end written since baseVersion
+		public ArrayList<long[]> ranges;
+		public int attempts;
+	}
+
+	/**
+	 * Sends an upload to the server.
+	 */
+	public interface Uploader
+	{
+		/**
+		 * @param upload
+		 * @throws IOException to retry later
+		 */
+		void upload(Upload upload) throws IOException;
+	}
+
+	private String directory;
+	private Uploader uploader;
+	private long retryMillis;
+	private FileOutputStream journalFile;
+	private DataOutputStream journal;
+	private long nextId;
+
+	//uploads not done yet, in queue order, running ones included.
+	private LinkedList<Upload> queue;
+	//newest upload of each path, what opens on this proxy see.
+	private HashMap<String,Upload> latest;
+	//upload running per path
+	private HashMap<String,Upload> running;
+	//uploads done or dropped so far
+	private long finished;
+
+	/**
+	 * Constructor. Replays the journal of an earlier run and starts the
+	 * workers.
+	 * @param  queueDirectory where copies and the journal are kept
+	 * @param  uploadTarget   does the uploads
+	 * @param  threads        uploads running at a time
+	 * @param  retryDelay     millis before the first retry
+	 * @throws IOException if the journal can not be read or written
+	 */
+	public WriteBackQueue(String queueDirectory,Uploader uploadTarget,int threads,long retryDelay)
+		throws IOException
+	{
+		this.directory = queueDirectory;
+		this.uploader = uploadTarget;
+		this.retryMillis = retryDelay;
+		this.queue = new LinkedList<Upload>();
+		this.latest = new HashMap<String,Upload>();
+		this.running = new HashMap<String,Upload>();
+		this.nextId = 1;
+
+		new File(directory).mkdirs();
+		recover();
+
+		for(int index = 0; index < threads; index++)
+		{
+			Thread worker = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					work();
+				}
+			},"write-back");
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Reads the journal back, drops copies nothing refers to and rewrites
+	 * the journal with only the live uploads.
+	 */
+	private void recover() throws IOException
+	{
+		File journalPath = new File(directory,JOURNALNAME);
+		TreeMap<Long,Upload> live = new TreeMap<Long,Upload>();
+		if(journalPath.exists())
+		{
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+									 new FileInputStream(journalPath))))
+			{
+				while(true)
+				{
+					byte type = in.readByte();
+					if(type == ADDED)
+					{
+						Upload upload = readUpload(in);
+						live.put(upload.id,upload);
+						nextId = Math.max(nextId,upload.id + 1);
+					}
+					else if(type == DONE)
+					{
+						live.remove(in.readLong());
+					}
+					else
+					{
+						System.err.println("Write-back journal corrupt, rest ignored");
+						break;
+					}
+				}
+			}
+			catch(EOFException e)
+			{
+				//end, or a record torn by a crash
+			}
+		}
+
+		//copies moved in but never journaled
+		File[] files = new File(directory).listFiles();
+		for(File file : files)
+		{
+			if(file.getName().equals(JOURNALNAME))
+			{
+				continue;
+			}
+			boolean used = false;
+			for(Upload upload : live.values())
+			{
+				used |= upload.file.equals(file.getPath());
+			}
+			if(!used)
+			{
+				file.delete();
+			}
+		}
+
+		//compact: write the live records, then swap the journal
+		File compacted = new File(directory,JOURNALNAME+".tmp");
+		try(FileOutputStream out = new FileOutputStream(compacted))
+		{
+			DataOutputStream data = new DataOutputStream(out);
+			for(Upload upload : live.values())
+			{
+				if(!new File(upload.file).exists())
+				{
+					System.err.println("Write-back copy lost:"+upload.file);
+					continue;
+				}
+				data.writeByte(ADDED);
+				writeUpload(data,upload);
+				queue.add(upload);
+				latest.put(upload.path,upload);
+			}
+			data.flush();
+			out.getFD().sync();
+		}
+		Files.move(compacted.toPath(),journalPath.toPath(),StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+
+		journalFile = new FileOutputStream(journalPath,true);
+		journal = new DataOutputStream(journalFile);
+		if(!queue.isEmpty())
+		{
+			System.err.println("Write-back: "+queue.size()+" uploads recovered");
+		}
+	}
+
+	private static Upload readUpload(DataInputStream in) throws IOException
+	{
+		Upload upload = new Upload();
+		upload.id = in.readLong();
+		upload.path = in.readUTF();
+		upload.file = in.readUTF();
+		upload.baseVersion = in.readLong();
+		upload.length = in.readLong();
+		int count = in.readInt();
+		upload.ranges = new ArrayList<long[]>(count);
+		for(int index = 0; index < count; index++)
+		{
+			upload.ranges.add(new long[]{in.readLong(),in.readLong()});
+		}
+		return upload;
+	}
+
+	private static void writeUpload(DataOutputStream out,Upload upload) throws IOException
+	{
+		out.writeLong(upload.id);
+		out.writeUTF(upload.path);
+		out.writeUTF(upload.file);
+		out.writeLong(upload.baseVersion);
+		out.writeLong(upload.length);
+		out.writeInt(upload.ranges.size());
+		for(long[] range : upload.ranges)
+		{
+			out.writeLong(range[0]);
+			out.writeLong(range[1]);
+		}
+	}
+
+	/**
+	 * Appends one record as a whole and syncs it.
+	 */
+	private void append(byte type,Upload upload) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(type);
+		if(type == ADDED)
+		{
+			writeUpload(record,upload);
+		}
+		else
+		{
+			record.writeLong(upload.id);
+		}
+		journal.write(bytes.toByteArray());
+		journal.flush();
+		journalFile.getFD().sync();
+	}
+
+	/**
+	 * Makes renames in the queue directory durable.
+	 */
+	private void syncDirectory()
+	{
+		try(FileChannel dir = FileChannel.open(Paths.get(directory),StandardOpenOption.READ))
+		{
+			dir.force(true);
+		}
+		catch(IOException e)
+		{
+			//not supported everywhere, the journal sync still holds.
+		}
+	}
+
+	/**
+	 * Queues a closed private copy. The copy must be synced to disk; it is
+	 * moved into the queue directory.
+	 * @param  path        server path
+	 * @param  copyPath    the private copy
+	 * @param  baseVersion server version it was copied from, -1 if none
+	 * @param  length
+	 * @param  ranges      pairs of start and end written
+	 * @throws IOException if it could not be queued, the copy stays then
+	 */
+	public synchronized void enqueue(String path,String copyPath,long baseVersion,long length,
+									 ArrayList<long[]> ranges) throws IOException
+	{
+		Upload upload = new Upload();
+		upload.id = nextId++;
+		upload.path = path;
+		upload.file = new File(directory,Long.toString(upload.id)).getPath();
+		upload.baseVersion = baseVersion;
+		upload.length = length;
+		upload.ranges = ranges;
+
+		//an older upload still queued has to go first, so the ranges
+		//alone are not enough.
+		Upload previous = latest.get(path);
+		if(previous != null)
+		{
+			upload.baseVersion = -1;
+			upload.ranges = new ArrayList<long[]>();
+		}
+
+		Files.move(Paths.get(copyPath),Paths.get(upload.file),StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		try
+		{
+			append(ADDED,upload);
+		}
+		catch(IOException e)
+		{
+			Files.move(Paths.get(upload.file),Paths.get(copyPath),StandardCopyOption.ATOMIC_MOVE);
+			throw e;
+		}
+
+		queue.add(upload);
+		latest.put(path,upload);
+		System.err.println("Write-back queued:"+path+" as "+upload.file);
+
+		//a waiting older one is covered by this one.
+		if(previous != null && running.get(path) != previous && queue.remove(previous))
+		{
+			finish(previous);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Records an upload as done and drops its copy. Readers that opened
+	 * the copy keep reading it.
+	 */
+	private void finish(Upload upload)
+	{
+		try
+		{
+			append(DONE,upload);
+		}
+		catch(IOException e)
+		{
+			//replayed once more on the next start, harmless.
+			e.printStackTrace();
+		}
+		new File(upload.file).delete();
+		finished++;
+		if(latest.get(upload.path) == upload)
+		{
+			latest.remove(upload.path);
+		}
+	}
+
+	/**
+	 * Opens the newest queued copy of a path. It stays readable after its
+	 * upload is done.
+	 * @param  path server path
+	 * @return  the copy opened read only, null if nothing is queued
+	 */
+	public synchronized RandomAccessFile openLatest(String path)
+	{
+		Upload upload = latest.get(path);
+		if(upload == null)
+		{
+			return null;
+		}
+		try
+		{
+			return new RandomAccessFile(upload.file,"r");
+		}
+		catch(FileNotFoundException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Drops the queued uploads of a path, for unlink. Waits for one that is
+	 * running.
+	 * @param path server path
+	 */
+	public synchronized void cancel(String path)
+	{
+		while(running.containsKey(path))
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		Iterator<Upload> pending = queue.iterator();
+		while(pending.hasNext())
+		{
+			Upload upload = pending.next();
+			if(upload.path.equals(path))
+			{
+				pending.remove();
+				finish(upload);
+			}
+		}
+	}
+
+	/**
+	 * An open that asked the server for a file before this changed may
+	 * have missed an upload of it.
+	 * @return  uploads done or dropped so far
+	 */
+	public synchronized long getFinishedCount()
+	{
+		return finished;
+	}
+
+	/**
+	 * @return  uploads not done yet
+	 */
+	public synchronized int getPendingCount()
+	{
+		return queue.size();
+	}
+
+	/**
+	 * Blocks until every queued upload is done.
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitEmpty() throws InterruptedException
+	{
+		while(!queue.isEmpty())
+		{
+			wait();
+		}
+	}
+
+	/**
+	 * Takes the first upload whose path has none running.
+	 */
+	private synchronized Upload take() throws InterruptedException
+	{
+		while(true)
+		{
+			for(Upload upload : queue)
+			{
+				if(!running.containsKey(upload.path))
+				{
+					running.put(upload.path,upload);
+					return upload;
+				}
+			}
+			wait();
+		}
+	}
+
+	private void work()
+	{
+		while(true)
+		{
+			Upload upload;
+			try
+			{
+				upload = take();
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+
+			boolean uploaded = false;
+			try
+			{
+				uploader.upload(upload);
+				uploaded = true;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				upload.attempts++;
+				System.err.println("Write-back of "+upload.path+" failed "+upload.attempts+" times");
+			}
+
+			if(!uploaded)
+			{
+				//the path stays taken, so later uploads of it wait too.
+				long delay = Math.min(retryMillis << Math.min(upload.attempts - 1,16),MAXRETRYMILLIS);
+				try
+				{
+					Thread.sleep(delay);
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+			}
+
+			synchronized(this)
+			{
+				running.remove(upload.path);
+				if(uploaded)
+				{
+					queue.remove(upload);
+					finish(upload);
+					System.err.println("Write-back done:"+upload.path);
+				}
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hit ratios of the eviction policies on synthetic Zipf traces, with and
+ * without large one-shot scans mixed in. Files are cache entries only,
+ * nothing is downloaded; a miss admits the file the way open does.
+ *
+ * Usage: java ZipfHitRatio [policy...]
+ */
+public class ZipfHitRatio
+{
+	private static final int FILES = 5000;
+	private static final int REQUESTS = 400000;
+	//cache limit, about a tenth of the total size of the files
+	private static final long LIMIT = 3L * 1024 * 1024;
+	//one request in SCANRATE reads a new file of a twentieth of the cache
+	private static final int SCANRATE = 50;
+	private static final double[] SKEWS = {0.8,1.0,1.2};
+
+	/**
+	 * Replays one trace.
+	 * @return  request and byte hit ratios
+	 */
+	private static double[] replay(String policy,double skew,boolean scans,String directory)
+	{
+		Random random = new Random(42);
+		double[] cdf = new double[FILES];
+		double sum = 0;
+		for(int index = 0; index < FILES; index++)
+		{
+			sum += 1.0 / Math.pow(index + 1,skew);
+			cdf[index] = sum;
+		}
+		long[] sizes = new long[FILES];
+		for(int index = 0; index < FILES; index++)
+		{
+			sizes[index] = 1000 + random.nextInt(10000);
+		}
+
+		Cache cache = new Cache(LIMIT,Cache.DEFAULTSEGMENTS,policy);
+		long hits = 0;
+		long hitBytes = 0;
+		long bytes = 0;
+		int scanCount = 0;
+		for(int request = 0; request < REQUESTS; request++)
+		{
+			String path;
+			long size;
+			if(scans && request % SCANRATE == 0)
+			{
+				path = directory + "/scan" + (scanCount++);
+				size = LIMIT / 20;
+			}
+			else
+			{
+				int index = Arrays.binarySearch(cdf,random.nextDouble() * sum);
+				if(index < 0)
+				{
+					index = -index - 1;
+				}
+				path = directory + "/f" + index;
+				size = sizes[index];
+			}
+			bytes += size;
+
+			cache.recordRequest(path);
+			CachedFileInfo info = cache.getFromCache(path);
+			if(info != null)
+			{
+				hits++;
+				hitBytes += size;
+				cache.makeMRU(info);
+				continue;
+			}
+
+			//refused files are served pass-through
+			if(cache.admit(path,size) != Cache.ADMITTED)
+			{
+				continue;
+			}
+			info = BenchHarness.master(path,size);
+			//a round trip per chunk plus the transfer, for gdsf
+			info.fetchNanos = ((size + Server.MAXCHUNKSIZE - 1) / Server.MAXCHUNKSIZE) * 1000000L + size * 10;
+			cache.putInCache(path,info,size);
+			cache.makeMRU(info);
+		}
+		return new double[]{hits / (double)REQUESTS,hitBytes / (double)bytes};
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String[] policies = args.length > 0 ? args : new String[]{"lru","tinylfu","gdsf"};
+
+		String directory = BenchHarness.setUp("zipf").toString();
+
+		for(boolean scans : new boolean[]{false,true})
+		{
+			for(double skew : SKEWS)
+			{
+				for(String policy : policies)
+				{
+					double[] ratio = replay(policy,skew,scans,directory);
+					System.out.printf("%-8s skew %.1f %-10s hit %.3f  byte hit %.3f%n",policy,skew,
+									  scans ? "with scans" : "",ratio[0],ratio[1]);
+				}
+			}
+		}
+		new java.io.File(directory).delete();
+	}
+}